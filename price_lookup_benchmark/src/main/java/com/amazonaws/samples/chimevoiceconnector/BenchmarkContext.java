@@ -0,0 +1,80 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * A Lambda context whose logger discards every line, so benchmarks measure formatting but not console output.
+ */
+public class BenchmarkContext implements Context
+{
+    private final LambdaLogger logger = message -> { };
+
+    @Override
+    public String getAwsRequestId()
+    {
+        return "benchmark";
+    }
+
+    @Override
+    public String getLogGroupName()
+    {
+        return "benchmark";
+    }
+
+    @Override
+    public String getLogStreamName()
+    {
+        return "benchmark";
+    }
+
+    @Override
+    public String getFunctionName()
+    {
+        return "benchmark";
+    }
+
+    @Override
+    public String getFunctionVersion()
+    {
+        return "1.0";
+    }
+
+    @Override
+    public String getInvokedFunctionArn()
+    {
+        return "benchmark";
+    }
+
+    @Override
+    public CognitoIdentity getIdentity()
+    {
+        return null;
+    }
+
+    @Override
+    public ClientContext getClientContext()
+    {
+        return null;
+    }
+
+    @Override
+    public int getRemainingTimeInMillis()
+    {
+        return 30000;
+    }
+
+    @Override
+    public int getMemoryLimitInMB()
+    {
+        return 512;
+    }
+
+    @Override
+    public LambdaLogger getLogger()
+    {
+        return logger;
+    }
+}
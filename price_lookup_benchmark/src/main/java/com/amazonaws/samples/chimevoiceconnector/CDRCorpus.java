@@ -0,0 +1,101 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.json.JSONObject;
+
+/**
+ * Generates synthetic Voice Connector CDRs. The generator is seeded, so every run measures the same corpus.
+ */
+public final class CDRCorpus
+{
+    public static final String[] USAGE_TYPES = {
+            "USE1-US-US-outbound-minutes", "USE1-US-US-inbound-minutes", "USE1-US-DE-outbound-minutes",
+            "USE1-US-GB-outbound-minutes", "USW2-US-US-outbound-minutes", "USW2-US-MX-outbound-minutes" };
+
+    private static final String[] COUNTRIES = { "US", "DE", "GB", "MX" };
+
+    private CDRCorpus()
+    {
+    }
+
+    /**
+     * @param count the number of CDRs
+     * @param extraFields the number of additional fields per CDR, to model wider schema versions
+     * @return the CDRs
+     */
+    public static List<JSONObject> cdrs(int count, int extraFields)
+    {
+        Random random = new Random(count * 31L + extraFields);
+        List<JSONObject> cdrs = new ArrayList<JSONObject>(count);
+        for (int i = 0; i < count; i++)
+        {
+            long start = 1600700400L + random.nextInt(86400);
+            int seconds = random.nextInt(3600);
+            JSONObject cdr = new JSONObject();
+            cdr.put("AwsAccountId", "111122223333");
+            cdr.put("TransactionId", new UUID(random.nextLong(), random.nextLong()).toString());
+            cdr.put("CallId", Long.toHexString(random.nextLong()) + "@203.0.113.9:8080");
+            cdr.put("VoiceConnectorId", "abcd" + random.nextInt(8));
+            cdr.put("Status", "Completed");
+            cdr.put("StatusMessage", "OK");
+            cdr.put("SipAuthUser", "5600");
+            cdr.put("BillableDurationSeconds", seconds);
+            cdr.put("BillableDurationMinutes", Math.round(seconds / 6.0) / 10.0);
+            cdr.put("SchemaVersion", "2.0");
+            cdr.put("SourcePhoneNumber", "+1510555" + (1000 + random.nextInt(9000)));
+            cdr.put("SourceCountry", "US");
+            cdr.put("DestinationPhoneNumber", "+1628555" + (1000 + random.nextInt(9000)));
+            cdr.put("DestinationCountry", COUNTRIES[random.nextInt(COUNTRIES.length)]);
+            cdr.put("UsageType", USAGE_TYPES[random.nextInt(USAGE_TYPES.length)]);
+            cdr.put("ServiceCode", "AmazonChimeVoiceConnector");
+            cdr.put("Direction", "Outbound");
+            cdr.put("StartTimeEpochSeconds", start);
+            cdr.put("EndTimeEpochSeconds", start + seconds);
+            cdr.put("Region", "us-east-1");
+            cdr.put("Streaming", random.nextBoolean());
+            for (int field = 0; field < extraFields; field++)
+            {
+                cdr.put("Extension" + field, "value-" + random.nextInt(1000));
+            }
+            cdrs.add(cdr);
+        }
+        return cdrs;
+    }
+
+    /**
+     * @param cdrs
+     * @return the CDRs as newline delimited JSON, the layout of a Voice Connector CDR object
+     */
+    public static byte[] ndjson(List<JSONObject> cdrs)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (JSONObject cdr : cdrs)
+        {
+            builder.append(cdr.toString()).append('\n');
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param usageType
+     * @return a price list entry for the usage type in the format returned by GetProducts
+     */
+    public static String priceList(String usageType)
+    {
+        String price = "0.00" + (10 + Math.abs(usageType.hashCode() % 90)) + "000000";
+        return "{\"product\":{\"productFamily\":\"Voice Connector\",\"attributes\":{\"usagetype\":\"" + usageType
+                + "\",\"servicecode\":\"AmazonChimeVoiceConnector\",\"location\":\"US East (N. Virginia)\","
+                + "\"operation\":\"\",\"callingType\":\"Outbound\"},\"sku\":\"SKU" + usageType.hashCode() + "\"},"
+                + "\"serviceCode\":\"AmazonChimeVoiceConnector\",\"terms\":{\"OnDemand\":{\"SKU.TERM\":{"
+                + "\"priceDimensions\":{\"SKU.TERM.RATE\":{\"unit\":\"minute\",\"endRange\":\"Inf\","
+                + "\"description\":\"$" + price + " per minute for " + usageType + "\",\"appliesTo\":[],"
+                + "\"rateCode\":\"SKU.TERM.RATE\",\"beginRange\":\"0\",\"pricePerUnit\":{\"USD\":\"" + price + "\"}}},"
+                + "\"sku\":\"SKU\",\"effectiveDate\":\"2020-09-01T00:00:00Z\",\"offerTermCode\":\"TERM\","
+                + "\"termAttributes\":{}}}},\"version\":\"20200901000000\",\"publicationDate\":\"2020-09-01T00:00:00Z\"}";
+    }
+}
@@ -0,0 +1,32 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.Collections;
+
+import com.amazonaws.services.pricing.AbstractAWSPricing;
+import com.amazonaws.services.pricing.model.Filter;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+
+/**
+ * An in-memory stand-in for the AWS Pricing API, answering usage type lookups with a
+ * synthetic price list entry.
+ */
+public class LocalPricing extends AbstractAWSPricing
+{
+    @Override
+    public GetProductsResult getProducts(GetProductsRequest request)
+    {
+        String usageType = CDRCorpus.USAGE_TYPES[0];
+        if (request.getFilters() != null)
+        {
+            for (Filter filter : request.getFilters())
+            {
+                if ("UsageType".equals(filter.getField()))
+                {
+                    usageType = filter.getValue();
+                }
+            }
+        }
+        return new GetProductsResult().withPriceList(Collections.singletonList(CDRCorpus.priceList(usageType)));
+    }
+}
@@ -0,0 +1,75 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * An in-memory stand-in for Amazon S3. Objects are served from byte arrays and uploads are
+ * read to the end and discarded, so only the bytes written by the function are measured.
+ */
+public class LocalS3 extends AbstractAmazonS3
+{
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+
+    public void putObject(String bucket, String key, byte[] content)
+    {
+        objects.put(bucket + '/' + key, content);
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request)
+    {
+        byte[] content = objects.get(request.getBucketName() + '/' + request.getKey());
+        if (content == null)
+        {
+            throw new SdkClientException("No such object " + request.getKey());
+        }
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType("application/json");
+        metadata.setContentLength(content.length);
+
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata);
+        object.setObjectContent(new ByteArrayInputStream(content));
+        return object;
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request)
+    {
+        byte[] chunk = new byte[8192];
+        try (InputStream input = request.getInputStream())
+        {
+            int read;
+            while ((read = input.read(chunk)) != -1)
+            {
+                uploadedBytes.addAndGet(read);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new SdkClientException("Unable to read the upload", e);
+        }
+        return new PutObjectResult();
+    }
+
+    public long getUploadedBytes()
+    {
+        return uploadedBytes.get();
+    }
+}
@@ -0,0 +1,84 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+
+/**
+ * Measures whole CDR objects of a given size against the local S3 and Pricing stand-ins.
+ * Every score is per object, divide it by the cdrs parameter for a per CDR figure.
+ *
+ * The enriched objects are uploaded to the local S3 unless the sink parameter selects other output
+ * sinks, i.e. -p sink=memory or -p sink=file:/tmp/enriched, as OUTPUT_SINK.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ObjectBenchmark
+{
+    private static final String BUCKET = "benchmark-cdrs";
+    private static final String KEY = "Amazon-Chime-Voice-Connector-CDRs/json/abcd/2020/09/21/benchmark";
+
+    @Param({ "1", "100", "10000" })
+    public int cdrs;
+
+    @Param({ "s3" })
+    public String sink;
+
+    private LocalS3 s3;
+    private LambdaFunctionHandler handler;
+    private S3Event event;
+    private BenchmarkContext context;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        s3 = new LocalS3();
+        s3.putObject(BUCKET, KEY, CDRCorpus.ndjson(CDRCorpus.cdrs(cdrs, 0)));
+
+        handler = new LambdaFunctionHandler(s3, new LocalPricing());
+        if (!"s3".equals(sink))
+        {
+            handler.setOutputSink(OutputSink.fromString(sink, null, BUCKET));
+        }
+        context = new BenchmarkContext();
+        handler.setContext(context);
+
+        String json = "{\"Records\":[{\"eventSource\":\"aws:s3\",\"awsRegion\":\"us-east-1\","
+                + "\"eventName\":\"ObjectCreated:Put\",\"s3\":{\"bucket\":{\"name\":\"" + BUCKET + "\"},"
+                + "\"object\":{\"key\":\"" + KEY + "\"}}}]}";
+        event = new S3Event(S3EventNotification.parseJson(json).getRecords());
+    }
+
+    @Benchmark
+    public List<JSONObject> parseCDRRecord()
+    {
+        return handler.parseCDRRecord(s3.getObject(new GetObjectRequest(BUCKET, KEY)));
+    }
+
+    @Benchmark
+    public String handleRequest()
+    {
+        return handler.handleRequest(event, context);
+    }
+}
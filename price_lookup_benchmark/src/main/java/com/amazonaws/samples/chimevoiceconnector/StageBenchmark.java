@@ -0,0 +1,153 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the enrichment stages one CDR at a time, cycling through a synthetic corpus,
+ * so every score is per CDR. Run with -prof gc for the bytes allocated per CDR.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark
+{
+    private static final int CORPUS_SIZE = 1024;
+
+    // additional fields per CDR, 0 is the 2.0 schema
+    @Param({ "0", "40" })
+    public int extraFields;
+
+    private List<JSONObject> cdrs;
+    private String[] texts;
+    private byte[][] raw;
+    private String[] priceLists;
+    private PriceDimension price;
+    private LambdaFunctionHandler handler;
+    private OutputBuffer buffer;
+    private Writer jsonWriter;
+    private CSVCDRWriter csvWriter;
+    private CDRFieldScanner scanner;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        cdrs = CDRCorpus.cdrs(CORPUS_SIZE, extraFields);
+        texts = new String[CORPUS_SIZE];
+        raw = new byte[CORPUS_SIZE][];
+        for (int i = 0; i < CORPUS_SIZE; i++)
+        {
+            texts[i] = cdrs.get(i).toString();
+            raw[i] = texts[i].getBytes(StandardCharsets.UTF_8);
+        }
+        priceLists = new String[CDRCorpus.USAGE_TYPES.length];
+        for (int i = 0; i < priceLists.length; i++)
+        {
+            priceLists[i] = CDRCorpus.priceList(CDRCorpus.USAGE_TYPES[i]);
+        }
+        price = PriceListEntry.parseTerms(priceLists[0]).get(0).getFirstDimension();
+
+        handler = new LambdaFunctionHandler(new LocalS3(), new LocalPricing());
+        handler.setContext(new BenchmarkContext());
+        // enrich every CDR once, so the price cache is warm and the output stages see enriched CDRs
+        for (JSONObject cdr : cdrs)
+        {
+            handler.addCostToCDR(cdr, cdr.getString("UsageType"));
+        }
+        // the writers are created once per output object, not per CDR
+        buffer = new OutputBuffer(64 * 1024);
+        jsonWriter = new BufferedWriter(new OutputStreamWriter(buffer, StandardCharsets.UTF_8));
+        csvWriter = new CSVCDRWriter(buffer);
+        scanner = new CDRFieldScanner();
+    }
+
+    private int next()
+    {
+        next = (next + 1) & (CORPUS_SIZE - 1);
+        return next;
+    }
+
+    @Benchmark
+    public JSONObject parseCDR()
+    {
+        return new JSONObject(texts[next()]);
+    }
+
+    @Benchmark
+    public boolean scanCDR()
+    {
+        byte[] cdr = raw[next()];
+        return scanner.scan(cdr, cdr.length);
+    }
+
+    @Benchmark
+    public List<PriceListEntry> extractPriceList()
+    {
+        return PriceListEntry.parseTerms(priceLists[next() % priceLists.length]);
+    }
+
+    @Benchmark
+    public JSONObject calculateCost()
+    {
+        JSONObject cdr = cdrs.get(next());
+        return handler.addCostToCDR(cdr, cdr.getString("UsageType"));
+    }
+
+    @Benchmark
+    public long costEngine()
+    {
+        return CostEngine.costMicros(CostEngine.billableSeconds(cdrs.get(next())), price.getFixedPricePerUnit());
+    }
+
+    @Benchmark
+    public int jsonOutput() throws IOException
+    {
+        buffer.reset();
+        cdrs.get(next()).write(jsonWriter);
+        jsonWriter.flush();
+        return buffer.size();
+    }
+
+    @Benchmark
+    public int selectiveJsonOutput() throws IOException
+    {
+        buffer.reset();
+        byte[] cdr = raw[next()];
+        scanner.scan(cdr, cdr.length);
+        scanner.writeEnriched(buffer, price,
+                CostEngine.costMicros(scanner.getBillableSeconds(), price.getFixedPricePerUnit()));
+        return buffer.size();
+    }
+
+    @Benchmark
+    public int csvOutput() throws IOException
+    {
+        buffer.reset();
+        csvWriter.write(cdrs.get(next()));
+        csvWriter.flush();
+        return buffer.size();
+    }
+}
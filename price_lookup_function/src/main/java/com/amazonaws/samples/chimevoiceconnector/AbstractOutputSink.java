@@ -0,0 +1,53 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The base of the sinks, records the throughput of every write.
+ */
+public abstract class AbstractOutputSink implements OutputSink
+{
+    private final SinkThroughput throughput = new SinkThroughput();
+
+    @Override
+    public final CompletableFuture<Void> write(String key, OutputBuffer content, String contentType,
+            String contentEncoding)
+    {
+        long length = content.size();
+        throughput.started();
+        CompletableFuture<Void> written;
+        try
+        {
+            written = writeContent(key, content, contentType, contentEncoding);
+        }
+        catch (RuntimeException e)
+        {
+            written = new CompletableFuture<Void>();
+            written.completeExceptionally(e);
+        }
+        return written.whenComplete((done, e) -> throughput.completed(length, e == null));
+    }
+
+    /**
+     * This method writes an object, as write
+     * @param key
+     * @param content
+     * @param contentType
+     * @param contentEncoding
+     * @return
+     */
+    protected abstract CompletableFuture<Void> writeContent(String key, OutputBuffer content, String contentType,
+            String contentEncoding);
+
+    @Override
+    public SinkThroughput getThroughput()
+    {
+        return throughput;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getName() + " " + throughput.toJson();
+    }
+}
@@ -0,0 +1,74 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The keys of the CDR objects a backfill has completed, kept in a file with one key per line
+ * so an interrupted run can resume where it stopped.
+ *
+ * A key is only appended once its output is written, and each line is flushed to the file
+ * right away. Objects that failed are not recorded, so they are retried by the next run.
+ */
+public class BackfillCheckpoint implements Closeable
+{
+    private final Set<String> completed;
+    private final BufferedWriter writer;
+
+    public BackfillCheckpoint(Path file) throws IOException
+    {
+        Set<String> keys = new HashSet<String>();
+        if (Files.exists(file))
+        {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+            {
+                if (!line.isEmpty())
+                {
+                    keys.add(line);
+                }
+            }
+        }
+        this.completed = Collections.synchronizedSet(keys);
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    public boolean isCompleted(String key)
+    {
+        return completed.contains(key);
+    }
+
+    /**
+     * This method records the given key as completed
+     * @param key
+     * @throws IOException
+     */
+    public synchronized void markCompleted(String key) throws IOException
+    {
+        if (completed.add(key))
+        {
+            writer.write(key);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    public int size()
+    {
+        return completed.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        writer.close();
+    }
+}
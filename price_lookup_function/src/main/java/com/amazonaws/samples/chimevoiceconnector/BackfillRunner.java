@@ -0,0 +1,564 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.ClientContext;
+import com.amazonaws.services.lambda.runtime.CognitoIdentity;
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/**
+ * Re-enriches historical CDRs from a local directory tree, i.e. a copy of the CDR bucket made with
+ * aws s3 sync, with the same enrichment as the Lambda function. Every CDR object is processed by
+ * LambdaFunctionHandler.processRecord, on as many threads as there are cores.
+ *
+ * The keys of the completed objects are kept in a checkpoint file, and a run started again with the
+ * same checkpoint skips them, so an interrupted backfill resumes where it stopped.
+ *
+ * Usage: java -cp pricefunction-1.0.0.jar com.amazonaws.samples.chimevoiceconnector.BackfillRunner
+ *        --input DIR --output DIR [--checkpoint FILE] [--threads N] [--price-snapshots DIR]
+ *
+ * The input directory must hold the Amazon-Chime-Voice-Connector-CDRs directory. The price snapshots
+ * directory holds retained price lists, so every CDR is priced at the price in force when the call started.
+ *
+ * Usage types with volume tiers are only priced at their tiers with --threads 1, with more threads their CDRs
+ * are priced at the first tier and marked PriceTierProvisional. The objects are then enriched one at a time
+ * in key order, so the monthly usage that selects the tier of each call is the same on every run, and a resumed
+ * run reads the checkpointed objects again to count their calls. An object that failed is priced at the usage
+ * of the run that retries it.
+ *
+ * The cost totals are stored as cost aggregate state files in the output directory, every 1000 objects.
+ * Objects are only checkpointed once their totals are stored, so a resumed run counts every object once.
+ * With DEDUPLICATION=true, CDRs found in several objects are only enriched once, see DEDUP_CAPACITY and
+ * DEDUP_STATE_FILE. Only the ids of checkpointed objects are saved to the state file, so a resumed run does not
+ * skip the CDRs of the objects it enriches again. OUTPUT_FORMAT, PRICE_LOOKUP_MODE and LOG_LEVEL are read
+ * from the environment as in Lambda.
+ */
+public class BackfillRunner
+{
+    private static final String BUCKET = "backfill";
+    private static final int PROGRESS_INTERVAL = 1000;
+
+    private final LambdaFunctionHandler handler;
+    private final Path inputRoot;
+    private final BackfillCheckpoint checkpoint;
+    private final int threads;
+    private final LambdaLogger logger;
+
+    private final AtomicInteger objects = new AtomicInteger();
+    private final AtomicInteger resumed = new AtomicInteger();
+    private final AtomicInteger enriched = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong cdrs = new AtomicLong();
+    private final AtomicLong costMicros = new AtomicLong();
+
+    private CostAggregateStore aggregateStore;
+    private DuplicateFilter checkpointedIds;
+    private MonthlyUsage monthlyUsage;
+    // the objects whose cost totals are not stored yet, guarded by this
+    private final List<RecordOutcome> unflushed = new ArrayList<RecordOutcome>();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private int flushes;
+
+    public BackfillRunner(LambdaFunctionHandler handler, Path inputRoot, BackfillCheckpoint checkpoint, int threads,
+            LambdaLogger logger)
+    {
+        this.handler = handler;
+        this.inputRoot = inputRoot;
+        this.checkpoint = checkpoint;
+        this.threads = threads;
+        this.logger = logger;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Path input = null;
+        Path output = null;
+        Path checkpointFile = null;
+        Path priceSnapshots = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if ("--input".equals(args[i]))
+            {
+                input = Paths.get(args[i + 1]);
+            }
+            else if ("--output".equals(args[i]))
+            {
+                output = Paths.get(args[i + 1]);
+            }
+            else if ("--checkpoint".equals(args[i]))
+            {
+                checkpointFile = Paths.get(args[i + 1]);
+            }
+            else if ("--price-snapshots".equals(args[i]))
+            {
+                priceSnapshots = Paths.get(args[i + 1]);
+            }
+            else if ("--threads".equals(args[i]))
+            {
+                threads = Math.max(1, Integer.parseInt(args[i + 1]));
+            }
+        }
+        if (input == null || output == null)
+        {
+            System.err.println("Usage: BackfillRunner --input DIR --output DIR [--checkpoint FILE] [--threads N]"
+                    + " [--price-snapshots DIR]");
+            System.err.println("Usage types with volume tiers are only priced at their tiers with --threads 1");
+            System.exit(2);
+            return;
+        }
+        input = input.toAbsolutePath().normalize();
+        output = output.toAbsolutePath().normalize();
+        Files.createDirectories(output);
+        if (checkpointFile == null)
+        {
+            checkpointFile = output.resolve(".backfill-checkpoint");
+        }
+
+        AWSPricing pricing = SdkClients.pricing();
+        PriceCatalog catalog = "CATALOG".equalsIgnoreCase(System.getenv("PRICE_LOOKUP_MODE"))
+                ? PriceCatalog.fromEnvironment(pricing) : null;
+        FileSystemS3 fileSystem = new FileSystemS3(input, output);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(fileSystem, pricing, catalog);
+        handler.setOutputSink(new LocalFileSink(output));
+        CostAggregateStore aggregates = CostAggregateStore.fromEnvironment((key, content, contentType) -> {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(contentType);
+            metadata.setContentLength(content.size());
+            fileSystem.putObject(new PutObjectRequest(BUCKET, key, content.toInputStream(), metadata));
+            return true;
+        });
+        handler.setAggregateStore(aggregates);
+        // a backfill re-enriches objects on purpose, duplicates are only skipped on request
+        DuplicateFilter checkpointedIds = null;
+        if ("true".equalsIgnoreCase(System.getenv("DEDUPLICATION")))
+        {
+            checkpointedIds = DuplicateFilter.fromEnvironment();
+            DuplicateFilter duplicates = new DuplicateFilter(DuplicateFilter.capacityFromEnvironment(), null);
+            duplicates.merge(checkpointedIds);
+            handler.setDuplicateFilter(duplicates);
+        }
+        ConsoleContext context = new ConsoleContext();
+        handler.setContext(context);
+        if (priceSnapshots != null)
+        {
+            PriceHistoryIndex snapshots = new PriceHistoryIndex();
+            int documents = snapshots.loadSnapshots(priceSnapshots);
+            context.getLogger().log("Loaded " + documents + " price snapshot documents for "
+                    + snapshots.size() + " usage types");
+            handler.setPriceSnapshots(snapshots);
+        }
+
+        try (BackfillCheckpoint checkpoint = new BackfillCheckpoint(checkpointFile))
+        {
+            BackfillRunner runner = new BackfillRunner(handler, input, checkpoint, threads, context.getLogger());
+            runner.setAggregateStore(aggregates);
+            runner.setCheckpointedIds(checkpointedIds);
+            if (threads == 1)
+            {
+                runner.setMonthlyUsage(new MonthlyUsage());
+            }
+            String result = runner.run();
+            if (checkpointedIds != null)
+            {
+                checkpointedIds.persist();
+            }
+            System.out.println(result);
+            if (runner.failed.get() > 0)
+            {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * This method stores the cost totals of the enriched objects, which the handler must aggregate too
+     * @param aggregateStore
+     */
+    public void setAggregateStore(CostAggregateStore aggregateStore)
+    {
+        this.aggregateStore = aggregateStore;
+    }
+
+    /**
+     * This method records the ids the duplicate filter of the handler claimed for the CDRs of each object
+     * once the object is checkpointed, so they can be saved without the ids of unfinished objects
+     * @param checkpointedIds
+     */
+    public void setCheckpointedIds(DuplicateFilter checkpointedIds)
+    {
+        this.checkpointedIds = checkpointedIds;
+    }
+
+    /**
+     * This method prices the usage types with volume tiers, the objects are then enriched one at a time
+     * in key order, whatever the number of threads
+     * @param monthlyUsage
+     */
+    public void setMonthlyUsage(MonthlyUsage monthlyUsage)
+    {
+        this.monthlyUsage = monthlyUsage;
+        handler.setMonthlyUsage(monthlyUsage);
+    }
+
+    /**
+     * This method enriches every CDR object of the input directory that is not in the checkpoint yet
+     * @return the run summary as JSON
+     * @throws IOException if the input directory cannot be read
+     * @throws InterruptedException
+     */
+    public String run() throws IOException, InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        // the tiers depend on the order of the calls, the objects are enriched in key order on a single worker
+        int workers = monthlyUsage == null ? threads : 1;
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "backfill-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // bounds the queued objects, the tree is walked lazily as the workers catch up
+        Semaphore pending = new Semaphore(workers * 4);
+
+        try (Stream<Path> files = Files.walk(inputRoot))
+        {
+            Iterator<Path> iterator = monthlyUsage == null ? files.filter(Files::isRegularFile).iterator()
+                    : filesInKeyOrder(inputRoot);
+            while (iterator.hasNext())
+            {
+                Path file = iterator.next();
+                if (file.getFileName().toString().startsWith("."))
+                {
+                    continue;
+                }
+                final String key = toKey(file);
+                pending.acquire();
+                executor.execute(() -> {
+                    try
+                    {
+                        process(key);
+                    }
+                    finally
+                    {
+                        pending.release();
+                    }
+                });
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            flushAggregates();
+        }
+
+        JSONObject summary = toJson();
+        summary.put("elapsedMs", System.currentTimeMillis() - start);
+        summary.put("output", handler.getOutputSink().getThroughput().toJson());
+        return summary.toString();
+    }
+
+    /**
+     * @param root
+     * @return the files of the tree in key order, each directory is listed when it is reached
+     */
+    private static Iterator<Path> filesInKeyOrder(Path root)
+    {
+        Deque<Iterator<Path>> directories = new ArrayDeque<Iterator<Path>>();
+        directories.push(list(root));
+        return new Iterator<Path>()
+        {
+            private Path next;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (next == null && !directories.isEmpty())
+                {
+                    if (!directories.peek().hasNext())
+                    {
+                        directories.pop();
+                        continue;
+                    }
+                    Path path = directories.peek().next();
+                    if (Files.isDirectory(path))
+                    {
+                        directories.push(list(path));
+                    }
+                    else if (Files.isRegularFile(path))
+                    {
+                        next = path;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Path next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                Path path = next;
+                next = null;
+                return path;
+            }
+        };
+    }
+
+    private static Iterator<Path> list(Path directory)
+    {
+        try (Stream<Path> children = Files.list(directory))
+        {
+            return children.sorted().collect(Collectors.toList()).iterator();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to list " + directory, e);
+        }
+    }
+
+    private String toKey(Path file)
+    {
+        return inputRoot.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    private void process(String key)
+    {
+        int count = objects.incrementAndGet();
+        if (checkpoint.isCompleted(key))
+        {
+            resumed.incrementAndGet();
+            if (monthlyUsage != null)
+            {
+                countUsage(key);
+            }
+            return;
+        }
+
+        RecordOutcome outcome;
+        try
+        {
+            outcome = handler.processRecord(BUCKET, key);
+        }
+        catch (RuntimeException e)
+        {
+            outcome = RecordOutcome.failed(BUCKET, key, e.toString());
+        }
+
+        cdrs.addAndGet(outcome.getCdrCount());
+        costMicros.addAndGet(outcome.getCostMicros());
+        if (outcome.getStatus() == RecordOutcome.Status.FAILED)
+        {
+            failed.incrementAndGet();
+            logger.log("Backfill of " + key + " failed: " + outcome.getMessage());
+        }
+        else
+        {
+            (outcome.getStatus() == RecordOutcome.Status.ENRICHED ? enriched : skipped).incrementAndGet();
+            if (aggregateStore == null)
+            {
+                markCompleted(outcome);
+            }
+            else
+            {
+                addUnflushed(outcome);
+            }
+        }
+
+        if (count % PROGRESS_INTERVAL == 0)
+        {
+            logger.log("Backfill progress: " + toJson());
+        }
+    }
+
+    private void countUsage(String key)
+    {
+        try
+        {
+            handler.addToMonthlyUsage(BUCKET, key);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // the calls that follow are priced at lower tiers
+            logger.log("Unable to count the monthly usage of " + key + " " + e.getMessage());
+        }
+    }
+
+    private void markCompleted(RecordOutcome outcome)
+    {
+        try
+        {
+            checkpoint.markCompleted(outcome.getKey());
+        }
+        catch (IOException e)
+        {
+            // the object is enriched again by the next run
+            logger.log("Unable to checkpoint " + outcome.getKey() + " " + e.getMessage());
+            return;
+        }
+        if (checkpointedIds != null)
+        {
+            for (String id : outcome.getClaimedIds())
+            {
+                checkpointedIds.markIfAbsent(id);
+            }
+        }
+    }
+
+    private synchronized void addUnflushed(RecordOutcome outcome)
+    {
+        unflushed.add(outcome);
+        if (unflushed.size() >= PROGRESS_INTERVAL)
+        {
+            flushAggregates();
+        }
+    }
+
+    /**
+     * This method stores the cost totals of the objects enriched since the last flush, and then
+     * checkpoints them. If the totals cannot be stored, the objects are enriched again by the next run.
+     */
+    private synchronized void flushAggregates()
+    {
+        if (unflushed.isEmpty())
+        {
+            return;
+        }
+        CostAggregate aggregate = new CostAggregate();
+        for (RecordOutcome outcome : unflushed)
+        {
+            aggregate.merge(outcome.getAggregate());
+        }
+        try
+        {
+            List<String> failedDays = aggregateStore.write(aggregate, "backfill-" + runId + "-" + flushes++);
+            if (!failedDays.isEmpty())
+            {
+                throw new IOException("Unable to store the days " + failedDays);
+            }
+            for (RecordOutcome outcome : unflushed)
+            {
+                markCompleted(outcome);
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.log("Unable to store the cost aggregates of " + unflushed.size() + " objects " + e.getMessage());
+        }
+        unflushed.clear();
+    }
+
+    JSONObject toJson()
+    {
+        JSONObject json = new JSONObject();
+        json.put("objects", objects.get());
+        json.put("resumed", resumed.get());
+        json.put("enriched", enriched.get());
+        json.put("skipped", skipped.get());
+        json.put("failed", failed.get());
+        json.put("cdrs", cdrs.get());
+        json.put("totalCostUSD", CostEngine.formatMicros(costMicros.get()));
+        return json;
+    }
+
+    /**
+     * The context of the handler outside of Lambda, logging to the standard output.
+     */
+    private static final class ConsoleContext implements Context
+    {
+        private final LambdaLogger logger = System.out::println;
+
+        @Override
+        public String getAwsRequestId()
+        {
+            return "backfill";
+        }
+
+        @Override
+        public String getLogGroupName()
+        {
+            return null;
+        }
+
+        @Override
+        public String getLogStreamName()
+        {
+            return null;
+        }
+
+        @Override
+        public String getFunctionName()
+        {
+            return "backfill";
+        }
+
+        @Override
+        public String getFunctionVersion()
+        {
+            return null;
+        }
+
+        @Override
+        public String getInvokedFunctionArn()
+        {
+            return null;
+        }
+
+        @Override
+        public CognitoIdentity getIdentity()
+        {
+            return null;
+        }
+
+        @Override
+        public ClientContext getClientContext()
+        {
+            return null;
+        }
+
+        @Override
+        public int getRemainingTimeInMillis()
+        {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int getMemoryLimitInMB()
+        {
+            return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+        }
+
+        @Override
+        public LambdaLogger getLogger()
+        {
+            return logger;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe Bloom filter of strings. A negative answer is exact, a positive answer is wrong with
+ * the false positive probability the filter was sized for, so positives must be confirmed elsewhere.
+ */
+public final class BloomFilter
+{
+    private final AtomicLongArray words;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * Sizes the filter for the given number of values and false positive probability
+     * @param expectedInsertions
+     * @param falsePositiveProbability
+     */
+    public BloomFilter(int expectedInsertions, double falsePositiveProbability)
+    {
+        if (expectedInsertions <= 0 || falsePositiveProbability <= 0 || falsePositiveProbability >= 1)
+        {
+            throw new IllegalArgumentException("Invalid Bloom filter size");
+        }
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.max(1, (bits + 63) / 64);
+        this.words = new AtomicLongArray(words);
+        this.bitCount = words * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * Math.log(2)));
+    }
+
+    /**
+     * This method adds a value
+     * @param value
+     */
+    public void put(String value)
+    {
+        long hash = hash64(value);
+        long h1 = hash;
+        long h2 = mix64(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++)
+        {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            do
+            {
+                current = words.get(word);
+            }
+            while ((current & mask) == 0 && !words.compareAndSet(word, current, current | mask));
+        }
+    }
+
+    /**
+     * @param value
+     * @return false if the value was never added, true if it may have been
+     */
+    public boolean mightContain(String value)
+    {
+        long hash = hash64(value);
+        long h1 = hash;
+        long h2 = mix64(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++)
+        {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This method adds all the values of another filter of the same size
+     * @param other
+     */
+    public void merge(BloomFilter other)
+    {
+        if (other.bitCount != bitCount || other.hashCount != hashCount)
+        {
+            throw new IllegalArgumentException("Bloom filters of different sizes cannot be merged");
+        }
+        for (int i = 0; i < words.length(); i++)
+        {
+            long bits = other.words.get(i);
+            long current;
+            do
+            {
+                current = words.get(i);
+            }
+            while ((current | bits) != current && !words.compareAndSet(i, current, current | bits));
+        }
+    }
+
+    public long getBitCount()
+    {
+        return bitCount;
+    }
+
+    public int getHashCount()
+    {
+        return hashCount;
+    }
+
+    // FNV-1a over the UTF-16 chars, finished with the MurmurHash3 mixer
+    private static long hash64(String value)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++)
+        {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix64(hash);
+    }
+
+    private static long mix64(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
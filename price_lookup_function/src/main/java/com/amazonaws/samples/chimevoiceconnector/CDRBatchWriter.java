@@ -0,0 +1,672 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.json.JSONObject;
+
+/**
+ * Collects enriched CDRs per Voice Connector and time window, and writes each group as one
+ * compacted newline delimited JSON, CSV or Parquet object instead of one object per CDR.
+ *
+ * A batch is flushed when it reaches the record count or size limit, by the next commit once it is
+ * older than the maximum age, or when flushAll is called at the end of the invocation. JSON and CSV batches are
+ * compressed as they are written when a compression is set, the size limit counts the bytes before
+ * compression.
+ *
+ * With a key template, CDRs are batched per partition and time window instead, and the batches are
+ * written under prefix/partition/.
+ *
+ * The writer is shared by the record workers. A flushed batch is taken out of the pending batches
+ * under the lock and uploaded outside of it, so the other workers keep adding CDRs meanwhile.
+ *
+ * The CDRs of an object are staged while it is enriched and committed to the batches together, so an
+ * object that fails midway leaves none of its CDRs behind. Each batch keeps the ids the duplicate filter
+ * recorded for its CDRs and their cost totals by object, takeResults reports which of them were written.
+ */
+public class CDRBatchWriter
+{
+    /**
+     * Uploads one flushed batch.
+     */
+    public interface BatchUploader
+    {
+        boolean upload(String key, OutputBuffer content, String contentType);
+    }
+
+    private static final String DEFAULT_PREFIX = "Amazon-Chime-Voice-Connector-CDR-Batches";
+    private static final String UNKNOWN_CONNECTOR = "unknown";
+
+    private final OutputFormat format;
+    private final String prefix;
+    private final long windowSeconds;
+    private final int maxRecords;
+    private final int maxBytes;
+    private final long maxAgeMillis;
+    private final BatchUploader uploader;
+    private PartitionKeyTemplate keyTemplate;
+    private Compression compression = Compression.NONE;
+    private int compressionLevel;
+
+    // in creation order, so the batches that expire first come first
+    private final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+    // when the oldest pending batch expires
+    private long nextExpiry = Long.MAX_VALUE;
+    private int flushedBatches;
+    private int failedBatches;
+    private Results results = new Results();
+
+    /**
+     * What the batches flushed since the last call of takeResults held.
+     */
+    public static final class Results
+    {
+        private final Map<Object, CostAggregate> writtenCosts = new HashMap<Object, CostAggregate>();
+        private final List<String> unwrittenClaims = new ArrayList<String>();
+        private final List<String> failedKeys = new ArrayList<String>();
+        private final Set<Object> failedSources = new HashSet<Object>();
+
+        /**
+         * @param source
+         * @return the cost totals of the priced CDRs of the source that were uploaded, null if none
+         */
+        public CostAggregate getWrittenCosts(Object source)
+        {
+            return writtenCosts.get(source);
+        }
+
+        /**
+         * @return the ids the duplicate filter recorded for the CDRs that could not be uploaded
+         */
+        public List<String> getUnwrittenClaims()
+        {
+            return unwrittenClaims;
+        }
+
+        /**
+         * @return the keys of the batches that could not be uploaded
+         */
+        public List<String> getFailedKeys()
+        {
+            return failedKeys;
+        }
+
+        /**
+         * @param source
+         * @return true if some CDRs of the source were in a batch that could not be uploaded
+         */
+        public boolean isFailed(Object source)
+        {
+            return failedSources.contains(source);
+        }
+    }
+
+    /**
+     * The enriched CDRs of one object, added to the batches by commit once the whole object is enriched.
+     */
+    public final class Staging
+    {
+        private final Object source;
+        private final boolean aggregating;
+        private final List<StagedCDR> cdrs = new ArrayList<StagedCDR>();
+        // the serialized CDRs, one after the other
+        private OutputBuffer serialized;
+
+        private Staging(Object source, boolean aggregating)
+        {
+            this.source = source;
+            this.aggregating = aggregating;
+        }
+
+        /**
+         * This method stages an enriched CDR
+         * @param enrichedCDR
+         * @param costMicros the cost of the CDR, or CostEngine.NOT_PRICED
+         * @param claimedId the id the duplicate filter recorded for the CDR, null if none
+         */
+        public void add(JSONObject enrichedCDR, long costMicros, String claimedId)
+        {
+            StagedCDR staged = new StagedCDR(enrichedCDR.optString("VoiceConnectorId", null),
+                    enrichedCDR.optLong("StartTimeEpochSeconds", 0), claimedId);
+            staged.cdr = enrichedCDR;
+            if (aggregating && costMicros != CostEngine.NOT_PRICED)
+            {
+                staged.priced(enrichedCDR.optString("UsageType", null), enrichedCDR.optString("Direction", null),
+                        CostEngine.billableSeconds(enrichedCDR), costMicros);
+            }
+            cdrs.add(staged);
+        }
+
+        /**
+         * This method stages an enriched CDR that is already serialized as JSON, for the JSON format only
+         * @param partition the partition of the CDR, rendered with the key template, or null without a template
+         * @param scanner the scanner that read the CDR
+         * @param costMicros the cost of the CDR, or CostEngine.NOT_PRICED
+         * @param enrichedCDR the UTF-8 bytes of the CDR
+         * @param length
+         * @param claimedId the id the duplicate filter recorded for the CDR, null if none
+         */
+        public void addScanned(String partition, CDRFieldScanner scanner, long costMicros, byte[] enrichedCDR,
+                int length, String claimedId)
+        {
+            if (format != OutputFormat.JSON)
+            {
+                throw new IllegalStateException("Serialized CDRs can only be added to JSON batches");
+            }
+            if (serialized == null)
+            {
+                serialized = new OutputBuffer(Math.max(length, 8 * 1024));
+            }
+            StagedCDR staged = new StagedCDR(scanner.getVoiceConnectorId(), scanner.getStartTimeEpochSeconds(),
+                    claimedId);
+            staged.partition = partition;
+            staged.offset = serialized.size();
+            staged.length = length;
+            serialized.write(enrichedCDR, 0, length);
+            if (aggregating && costMicros != CostEngine.NOT_PRICED)
+            {
+                staged.priced(scanner.getUsageType(), scanner.getDirection(), scanner.getBillableSeconds(), costMicros);
+            }
+            cdrs.add(staged);
+        }
+
+        public boolean isEmpty()
+        {
+            return cdrs.isEmpty();
+        }
+    }
+
+    private static final class StagedCDR
+    {
+        final String voiceConnectorId;
+        final long startTime;
+        final String claimedId;
+        // a CDR to serialize, or the partition and position of a serialized one
+        JSONObject cdr;
+        String partition;
+        int offset;
+        int length;
+        // the cost totals of a priced CDR, when aggregating
+        String usageType;
+        String direction;
+        long billableSeconds;
+        long costMicros = CostEngine.NOT_PRICED;
+
+        StagedCDR(String voiceConnectorId, long startTime, String claimedId)
+        {
+            this.voiceConnectorId = voiceConnectorId;
+            this.startTime = startTime;
+            this.claimedId = claimedId;
+        }
+
+        void priced(String usageType, String direction, long billableSeconds, long costMicros)
+        {
+            this.usageType = usageType;
+            this.direction = direction;
+            this.billableSeconds = billableSeconds;
+            this.costMicros = costMicros;
+        }
+    }
+
+    private static final class Batch
+    {
+        final String connectorId;
+        final String partition;
+        final long windowStart;
+        final long createdAt = System.currentTimeMillis();
+        final OutputBuffer content = new OutputBuffer(8 * 1024);
+        // the JSON and CSV records, compressed into the content as they are written
+        final CompressingOutput out;
+        final Writer writer;
+        CSVCDRWriter csv;
+        ParquetCDRWriter parquet;
+        int records;
+        // the objects the CDRs come from, and the cost totals of their priced CDRs
+        final Set<Object> sources = new HashSet<Object>();
+        final Map<Object, CostAggregate> costs = new HashMap<Object, CostAggregate>();
+        final List<String> claimedIds = new ArrayList<String>();
+
+        Batch(String connectorId, String partition, long windowStart, Compression compression, int level)
+                throws IOException
+        {
+            this.connectorId = connectorId;
+            this.partition = partition;
+            this.windowStart = windowStart;
+            this.out = new CompressingOutput(content, compression, level);
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+    }
+
+    public CDRBatchWriter(OutputFormat format, String prefix, long windowSeconds, int maxRecords, int maxBytes,
+            long maxAgeMillis, BatchUploader uploader)
+    {
+        this.format = format;
+        this.prefix = prefix;
+        this.windowSeconds = windowSeconds;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Creates a batch writer configured by the BATCH_OUTPUT_PREFIX, BATCH_WINDOW_SECONDS (default 3600),
+     * BATCH_MAX_RECORDS (default 10000), BATCH_MAX_BYTES (default 5 MB) and BATCH_MAX_AGE_SECONDS
+     * (default 60) environment variables.
+     * @param format
+     * @param uploader
+     * @return
+     */
+    public static CDRBatchWriter fromEnvironment(OutputFormat format, BatchUploader uploader)
+    {
+        String prefix = System.getenv("BATCH_OUTPUT_PREFIX");
+        return new CDRBatchWriter(format,
+                prefix == null || prefix.trim().isEmpty() ? DEFAULT_PREFIX : prefix.trim(),
+                getPositive("BATCH_WINDOW_SECONDS", 3600),
+                (int) getPositive("BATCH_MAX_RECORDS", 10000),
+                (int) getPositive("BATCH_MAX_BYTES", 5 * 1024 * 1024),
+                getPositive("BATCH_MAX_AGE_SECONDS", 60) * 1000L,
+                uploader);
+    }
+
+    /**
+     * This method batches the CDRs by the partition of the given template, null keeps the batches per
+     * Voice Connector
+     * @param keyTemplate
+     */
+    public synchronized void setKeyTemplate(PartitionKeyTemplate keyTemplate)
+    {
+        this.keyTemplate = keyTemplate;
+    }
+
+    /**
+     * This method compresses the JSON and CSV batches created from now on, Parquet pages are compressed already
+     * @param compression
+     * @param level
+     */
+    public synchronized void setCompression(Compression compression, int level)
+    {
+        this.compression = format == OutputFormat.PARQUET ? Compression.NONE : compression;
+        this.compressionLevel = level;
+    }
+
+    /**
+     * @return the compression of the batches, the Content-Encoding they are uploaded with
+     */
+    public synchronized Compression getCompression()
+    {
+        return compression;
+    }
+
+    private static long getPositive(String name, long defaultValue)
+    {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            long parsed = Long.parseLong(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * This method starts the staging of the CDRs of one object
+     * @param source identifies the object, the cost totals of its CDRs are reported under it
+     * @param aggregating true to keep the cost totals of the priced CDRs
+     * @return
+     */
+    public Staging stage(Object source, boolean aggregating)
+    {
+        return new Staging(source, aggregating);
+    }
+
+    /**
+     * This method appends the staged CDRs to the batches of their Voice Connector and time window, and
+     * flushes the batches that reached one of the limits or the maximum age. Once committed, the ids recorded
+     * for the CDRs follow their batches, the ids of the batches that could not be uploaded are reported by
+     * takeResults. Commit is not atomic: when a CDR cannot be appended, the CDRs appended before it stay in
+     * their batches and are uploaded with them, and the ids of the CDRs from that one on are reported as
+     * unwritten claims.
+     * @param staging
+     * @throws IOException if a CDR could not be appended or a flushed batch could not be uploaded
+     */
+    public void commit(Staging staging) throws IOException
+    {
+        List<Batch> flushed = new ArrayList<Batch>();
+        IOException failure = null;
+        synchronized (this)
+        {
+            for (int i = 0; i < staging.cdrs.size(); i++)
+            {
+                try
+                {
+                    append(staging, staging.cdrs.get(i), flushed);
+                }
+                catch (IOException e)
+                {
+                    // the CDRs that are not in a batch are enriched again
+                    for (StagedCDR unwritten : staging.cdrs.subList(i, staging.cdrs.size()))
+                    {
+                        if (unwritten.claimedId != null)
+                        {
+                            results.unwrittenClaims.add(unwritten.claimedId);
+                        }
+                    }
+                    failure = e;
+                    break;
+                }
+            }
+            takeExpired(flushed);
+        }
+        upload(flushed);
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * This method appends one staged CDR to its batch, called with the lock held
+     * @param staging
+     * @param staged
+     * @param flushed the list the batch is added to if it reached one of the limits
+     * @throws IOException
+     */
+    private void append(Staging staging, StagedCDR staged, List<Batch> flushed) throws IOException
+    {
+        String connectorId = staged.voiceConnectorId != null ? staged.voiceConnectorId : UNKNOWN_CONNECTOR;
+        String partition = staged.partition;
+        if (staged.cdr != null && keyTemplate != null)
+        {
+            partition = keyTemplate.render(staged.cdr);
+        }
+        String batchKey = batchKey(partition, connectorId, staged.startTime);
+        Batch batch = batchFor(batchKey, connectorId, partition, staged.startTime);
+
+        if (staged.cdr != null)
+        {
+            write(batch, staged.cdr);
+        }
+        else
+        {
+            // the writer is flushed after every record, so the bytes can go straight to the output
+            if (batch.records > 0)
+            {
+                batch.out.write('\n');
+            }
+            batch.out.write(staging.serialized.getBuffer(), staged.offset, staged.length);
+            batch.records++;
+        }
+
+        batch.sources.add(staging.source);
+        if (staged.claimedId != null)
+        {
+            batch.claimedIds.add(staged.claimedId);
+        }
+        if (staged.costMicros != CostEngine.NOT_PRICED)
+        {
+            batch.costs.computeIfAbsent(staging.source, source -> new CostAggregate()).add(staged.voiceConnectorId,
+                    staged.usageType, staged.direction, staged.startTime, staged.billableSeconds, staged.costMicros);
+        }
+
+        if (batch.records >= maxRecords || size(batch) >= maxBytes)
+        {
+            batches.remove(batchKey);
+            flushed.add(batch);
+            if (batches.isEmpty())
+            {
+                nextExpiry = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    private String batchKey(String partition, String connectorId, long startTime)
+    {
+        return (partition != null ? partition : connectorId) + '/' + windowStart(startTime);
+    }
+
+    private long windowStart(long startTime)
+    {
+        return startTime - (startTime % windowSeconds);
+    }
+
+    private Batch batchFor(String batchKey, String connectorId, String partition, long startTime) throws IOException
+    {
+        Batch batch = batches.get(batchKey);
+        if (batch == null)
+        {
+            batch = new Batch(connectorId, partition, windowStart(startTime), compression, compressionLevel);
+            if (batches.isEmpty())
+            {
+                nextExpiry = batch.createdAt + maxAgeMillis;
+            }
+            batches.put(batchKey, batch);
+        }
+        return batch;
+    }
+
+    /**
+     * This method takes out the batches that expired, called with the lock held
+     * @param flushed the list the batches are added to
+     */
+    private void takeExpired(List<Batch> flushed)
+    {
+        // the pending batches are only looked at once the oldest one expired
+        long now = System.currentTimeMillis();
+        if (now >= nextExpiry)
+        {
+            takeCreatedBefore(now - maxAgeMillis, flushed);
+        }
+    }
+
+    /**
+     * This method takes out the batches created before the given time, called with the lock held
+     * @param createdBefore
+     * @param flushed the list the batches are added to
+     */
+    private void takeCreatedBefore(long createdBefore, List<Batch> flushed)
+    {
+        nextExpiry = Long.MAX_VALUE;
+        Iterator<Batch> iterator = batches.values().iterator();
+        while (iterator.hasNext())
+        {
+            Batch batch = iterator.next();
+            if (batch.createdAt > createdBefore)
+            {
+                // the batches are in creation order
+                nextExpiry = batch.createdAt + maxAgeMillis;
+                return;
+            }
+            iterator.remove();
+            flushed.add(batch);
+        }
+    }
+
+    /**
+     * This method uploads the given batches, without holding the lock
+     * @param flushed
+     * @throws IOException if a batch could not be uploaded
+     */
+    private void upload(List<Batch> flushed) throws IOException
+    {
+        if (flushed.isEmpty())
+        {
+            return;
+        }
+        List<String> failedKeys = flush(flushed);
+        if (!failedKeys.isEmpty())
+        {
+            throw new IOException("Unable to upload CDR batches " + failedKeys);
+        }
+    }
+
+    private void write(Batch batch, JSONObject enrichedCDR) throws IOException
+    {
+        if (format == OutputFormat.PARQUET)
+        {
+            if (batch.parquet == null)
+            {
+                batch.parquet = new ParquetCDRWriter(batch.content);
+            }
+            batch.parquet.write(enrichedCDR);
+            batch.records++;
+            return;
+        }
+
+        if (format == OutputFormat.CSV)
+        {
+            if (batch.csv == null)
+            {
+                batch.csv = new CSVCDRWriter(batch.out);
+            }
+            batch.csv.write(enrichedCDR);
+            batch.records++;
+            // keep the buffered size accurate for the size limit
+            batch.csv.flush();
+            return;
+        }
+        if (batch.records > 0)
+        {
+            batch.writer.write('\n');
+        }
+        enrichedCDR.write(batch.writer);
+        batch.records++;
+        // keep the buffered size accurate for the size limit
+        batch.writer.flush();
+    }
+
+    private static long size(Batch batch)
+    {
+        // parquet rows are buffered in column pages until the file is closed
+        return batch.parquet != null ? batch.parquet.getDataSize() : batch.out.getWrittenBytes();
+    }
+
+    /**
+     * Flushes all the pending batches, to be called before the invocation returns.
+     * @return the keys of the batches that could not be uploaded
+     */
+    public List<String> flushAll()
+    {
+        List<Batch> flushed = new ArrayList<Batch>();
+        synchronized (this)
+        {
+            takeCreatedBefore(Long.MAX_VALUE, flushed);
+        }
+        return flush(flushed);
+    }
+
+    private List<String> flush(List<Batch> flushed)
+    {
+        List<String> failedKeys = new ArrayList<String>();
+        for (Batch batch : flushed)
+        {
+            String key = batchKey(batch);
+            boolean uploaded = flush(batch, key);
+            synchronized (this)
+            {
+                if (uploaded)
+                {
+                    flushedBatches++;
+                    for (Map.Entry<Object, CostAggregate> costs : batch.costs.entrySet())
+                    {
+                        results.writtenCosts.computeIfAbsent(costs.getKey(), source -> new CostAggregate())
+                                .merge(costs.getValue());
+                    }
+                }
+                else
+                {
+                    failedBatches++;
+                    failedKeys.add(key);
+                    results.failedKeys.add(key);
+                    results.unwrittenClaims.addAll(batch.claimedIds);
+                    results.failedSources.addAll(batch.sources);
+                }
+            }
+        }
+        return failedKeys;
+    }
+
+    private boolean flush(Batch batch, String key)
+    {
+        try
+        {
+            if (batch.parquet != null)
+            {
+                batch.parquet.close();
+            }
+            else
+            {
+                batch.out.finish();
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+        return uploader.upload(key, batch.content, format.getContentType());
+    }
+
+    /**
+     * @return the object key of a batch, i.e. prefix/abcd1234/2020/09/21/15/1600700400-uuid.json, or
+     *         prefix/partition/1600700400-uuid.json with a key template, with the extension of the compression
+     */
+    private String batchKey(Batch batch)
+    {
+        String extension = format.getExtension() + batch.out.getCompression().getExtension();
+        if (batch.partition != null)
+        {
+            return prefix + '/' + batch.partition + '/' + batch.windowStart + '-' + UUID.randomUUID() + extension;
+        }
+        SimpleDateFormat hourFormat = new SimpleDateFormat("yyyy/MM/dd/HH");
+        hourFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return prefix + '/' + batch.connectorId + '/' + hourFormat.format(new Date(batch.windowStart * 1000L)) + '/'
+                + batch.windowStart + '-' + UUID.randomUUID() + extension;
+    }
+
+    /**
+     * @return what the batches flushed since the last call held, the pending batches are not included
+     */
+    public synchronized Results takeResults()
+    {
+        Results taken = results;
+        results = new Results();
+        return taken;
+    }
+
+    public synchronized int getPendingBatches()
+    {
+        return batches.size();
+    }
+
+    public synchronized int getFlushedBatches()
+    {
+        return flushedBatches;
+    }
+
+    public synchronized int getFailedBatches()
+    {
+        return failedBatches;
+    }
+}
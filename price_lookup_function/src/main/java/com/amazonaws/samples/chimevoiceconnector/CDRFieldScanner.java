@@ -0,0 +1,462 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Extracts the few top-level fields that pricing needs from the raw UTF-8 bytes of a CDR,
+ * without building a JSONObject, and writes the enriched CDR by splicing the price and cost
+ * fields in front of the closing brace. All other fields are copied through verbatim.
+ *
+ * An instance holds the fields of the last scanned CDR and is meant to be reused by one thread.
+ */
+public class CDRFieldScanner
+{
+    private static final byte[] USAGE_TYPE = ascii("UsageType");
+    private static final byte[] BILLABLE_SECONDS = ascii("BillableDurationSeconds");
+    private static final byte[] BILLABLE_MINUTES = ascii("BillableDurationMinutes");
+    private static final byte[] VOICE_CONNECTOR_ID = ascii("VoiceConnectorId");
+    private static final byte[] START_TIME = ascii("StartTimeEpochSeconds");
+    private static final byte[] DIRECTION = ascii("Direction");
+    private static final byte[] REGION = ascii("Region");
+    private static final byte[] TRANSACTION_ID = ascii("TransactionId");
+    private static final byte[] CALL_ID = ascii("CallId");
+    private static final byte[] PRICE_PER_UNIT = ascii("PricePerUnitUSD");
+    private static final byte[] COST = ascii("CostUSD");
+
+    private static final byte[] PRICE_FIELD = ascii("\"PricePerUnitUSD\":\"");
+    private static final byte[] COST_FIELD = ascii("\",\"CostUSD\":");
+    private static final byte[] PROVISIONAL_TIER_FIELD = ascii(",\"" + PriceTierTable.PROVISIONAL_TIER_FIELD + "\":true");
+
+    /**
+     * The fields returned by getField, a key template made of these fields does not need a JSONObject
+     */
+    public static final Set<String> FIELDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "UsageType", "VoiceConnectorId", "Direction", "Region", "StartTimeEpochSeconds")));
+
+    private byte[] buffer;
+    private int length;
+    private int closingBrace;
+    private boolean empty;
+
+    private String usageType;
+    private String voiceConnectorId;
+    private String direction;
+    private String region;
+    private String transactionId;
+    private String callId;
+    private long billableSeconds;
+    // BillableDurationSeconds was read, it wins over BillableDurationMinutes in any field order
+    private boolean billableFromSeconds;
+    private long startTimeEpochSeconds;
+    private boolean enriched;
+
+    private static byte[] ascii(String value)
+    {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * This method scans the top-level fields of one CDR
+     * @param cdr the buffer holding the UTF-8 bytes of the CDR, from offset 0
+     * @param length
+     * @return false if the CDR could not be scanned, in which case it must go through the JSONObject path
+     */
+    public boolean scan(byte[] cdr, int length)
+    {
+        this.buffer = cdr;
+        this.length = length;
+        usageType = null;
+        voiceConnectorId = null;
+        direction = null;
+        region = null;
+        transactionId = null;
+        callId = null;
+        billableSeconds = 0;
+        billableFromSeconds = false;
+        startTimeEpochSeconds = 0;
+        enriched = false;
+        empty = true;
+
+        try
+        {
+            int i = skipWhitespace(0);
+            if (cdr[i] != '{')
+            {
+                return false;
+            }
+            i = skipWhitespace(i + 1);
+
+            while (cdr[i] != '}')
+            {
+                if (cdr[i] != '"')
+                {
+                    return false;
+                }
+                int keyStart = i + 1;
+                int keyEnd = skipString(i);
+                i = skipWhitespace(keyEnd + 1);
+                if (cdr[i] != ':')
+                {
+                    return false;
+                }
+                i = skipWhitespace(i + 1);
+
+                int valueStart = i;
+                i = skipValue(i);
+                if (!readField(keyStart, keyEnd, valueStart, i))
+                {
+                    return false;
+                }
+                empty = false;
+
+                i = skipWhitespace(i);
+                if (cdr[i] == ',')
+                {
+                    i = skipWhitespace(i + 1);
+                }
+                else if (cdr[i] != '}')
+                {
+                    return false;
+                }
+            }
+            closingBrace = i;
+            // the CDR must be the only value in the buffer
+            return skipWhitespace(i + 1) == length;
+        }
+        catch (ArrayIndexOutOfBoundsException | NumberFormatException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return false if the field is read by the scanner and its value has another type than expected, the
+     *         JSONObject path then converts it the way org.json does
+     */
+    private boolean readField(int keyStart, int keyEnd, int valueStart, int valueEnd)
+    {
+        if (matches(keyStart, keyEnd, USAGE_TYPE))
+        {
+            usageType = readString(valueStart, valueEnd);
+            return usageType != null;
+        }
+        if (matches(keyStart, keyEnd, VOICE_CONNECTOR_ID))
+        {
+            voiceConnectorId = readString(valueStart, valueEnd);
+            return voiceConnectorId != null || isNull(valueStart, valueEnd);
+        }
+        if (matches(keyStart, keyEnd, DIRECTION))
+        {
+            direction = readString(valueStart, valueEnd);
+            return direction != null || isNull(valueStart, valueEnd);
+        }
+        if (matches(keyStart, keyEnd, REGION))
+        {
+            region = readString(valueStart, valueEnd);
+            return region != null || isNull(valueStart, valueEnd);
+        }
+        if (matches(keyStart, keyEnd, TRANSACTION_ID))
+        {
+            transactionId = readString(valueStart, valueEnd);
+            return transactionId != null || isNull(valueStart, valueEnd);
+        }
+        if (matches(keyStart, keyEnd, CALL_ID))
+        {
+            callId = readString(valueStart, valueEnd);
+            return callId != null || isNull(valueStart, valueEnd);
+        }
+        if (matches(keyStart, keyEnd, BILLABLE_SECONDS))
+        {
+            billableSeconds = readLong(valueStart, valueEnd);
+            billableFromSeconds = true;
+        }
+        else if (matches(keyStart, keyEnd, BILLABLE_MINUTES))
+        {
+            if (!billableFromSeconds)
+            {
+                // only used for records without BillableDurationSeconds
+                billableSeconds = Math.round(readDouble(valueStart, valueEnd) * 60);
+            }
+        }
+        else if (matches(keyStart, keyEnd, START_TIME))
+        {
+            startTimeEpochSeconds = readLong(valueStart, valueEnd);
+        }
+        else if (matches(keyStart, keyEnd, PRICE_PER_UNIT) || matches(keyStart, keyEnd, COST))
+        {
+            enriched = true;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the value is the null literal, which org.json reads as a missing string too
+     */
+    private boolean isNull(int start, int end)
+    {
+        return end - start == 4 && buffer[start] == 'n' && buffer[start + 1] == 'u' && buffer[start + 2] == 'l'
+                && buffer[start + 3] == 'l';
+    }
+
+    private boolean matches(int start, int end, byte[] key)
+    {
+        if (end - start != key.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++)
+        {
+            if (buffer[start + i] != key[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readString(int start, int end)
+    {
+        if (buffer[start] != '"')
+        {
+            return null;
+        }
+        for (int i = start + 1; i < end - 1; i++)
+        {
+            if (buffer[i] == '\\')
+            {
+                // escaped values are rare enough to let org.json decode them
+                return new org.json.JSONTokener(new String(buffer, start, end - start, StandardCharsets.UTF_8))
+                        .nextValue().toString();
+            }
+        }
+        return new String(buffer, start + 1, end - start - 2, StandardCharsets.UTF_8);
+    }
+
+    private long readLong(int start, int end)
+    {
+        long value = 0;
+        boolean negative = buffer[start] == '-';
+        for (int i = negative ? start + 1 : start; i < end; i++)
+        {
+            byte b = buffer[i];
+            if (b < '0' || b > '9')
+            {
+                // not an integer, i.e. 6.0
+                return Math.round(readDouble(start, end));
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private double readDouble(int start, int end)
+    {
+        return Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.US_ASCII));
+    }
+
+    private int skipWhitespace(int i)
+    {
+        while (i < length && (buffer[i] == ' ' || buffer[i] == '\n' || buffer[i] == '\r' || buffer[i] == '\t'))
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the closing quote of the string starting at i
+     */
+    private int skipString(int i)
+    {
+        i++;
+        while (buffer[i] != '"')
+        {
+            i += buffer[i] == '\\' ? 2 : 1;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index just after the value starting at i
+     */
+    private int skipValue(int i)
+    {
+        byte first = buffer[i];
+        if (first == '"')
+        {
+            return skipString(i) + 1;
+        }
+        if (first == '{' || first == '[')
+        {
+            int depth = 0;
+            do
+            {
+                byte b = buffer[i];
+                if (b == '"')
+                {
+                    i = skipString(i);
+                }
+                else if (b == '{' || b == '[')
+                {
+                    depth++;
+                }
+                else if (b == '}' || b == ']')
+                {
+                    depth--;
+                }
+                i++;
+            }
+            while (depth > 0);
+            return i;
+        }
+        // number, true, false or null
+        while (i < length && buffer[i] != ',' && buffer[i] != '}' && buffer[i] != ' ' && buffer[i] != '\n'
+                && buffer[i] != '\r' && buffer[i] != '\t')
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * This method writes the scanned CDR with the PricePerUnitUSD and CostUSD fields added
+     * @param out
+     * @param price
+     * @param costMicros
+     * @throws IOException
+     */
+    public void writeEnriched(OutputStream out, PriceDimension price, long costMicros) throws IOException
+    {
+        writeEnriched(out, price, costMicros, false);
+    }
+
+    /**
+     * This method writes the scanned CDR with the PricePerUnitUSD and CostUSD fields added
+     * @param out
+     * @param price
+     * @param costMicros
+     * @param provisionalTier true to add PriceTierProvisional, the volume tier of the price is not known
+     * @throws IOException
+     */
+    public void writeEnriched(OutputStream out, PriceDimension price, long costMicros, boolean provisionalTier)
+            throws IOException
+    {
+        out.write(buffer, 0, closingBrace);
+        if (!empty)
+        {
+            out.write(',');
+        }
+        out.write(PRICE_FIELD);
+        writeAscii(out, price.getPricePerUnitText());
+        out.write(COST_FIELD);
+        writeAscii(out, CostEngine.formatMicros(costMicros));
+        if (provisionalTier)
+        {
+            out.write(PROVISIONAL_TIER_FIELD);
+        }
+        out.write('}');
+    }
+
+    /**
+     * This method writes the scanned CDR unchanged
+     * @param out
+     * @throws IOException
+     */
+    public void writeUnchanged(OutputStream out) throws IOException
+    {
+        out.write(buffer, 0, length);
+    }
+
+    private static void writeAscii(OutputStream out, String value) throws IOException
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            out.write(value.charAt(i));
+        }
+    }
+
+    public String getUsageType()
+    {
+        return usageType;
+    }
+
+    public String getVoiceConnectorId()
+    {
+        return voiceConnectorId;
+    }
+
+    /**
+     * @return the Direction, i.e. Outbound, or null if the CDR has none
+     */
+    public String getDirection()
+    {
+        return direction;
+    }
+
+    /**
+     * @return the Region, i.e. us-east-1, or null if the CDR has none
+     */
+    public String getRegion()
+    {
+        return region;
+    }
+
+    /**
+     * @param name one of FIELDS
+     * @return the value of the field, null if the CDR has none or the field is not scanned
+     */
+    public Object getField(String name)
+    {
+        switch (name)
+        {
+        case "UsageType":
+            return usageType;
+        case "VoiceConnectorId":
+            return voiceConnectorId;
+        case "Direction":
+            return direction;
+        case "Region":
+            return region;
+        case "StartTimeEpochSeconds":
+            // a CDR without a start time is scanned as 0
+            return startTimeEpochSeconds == 0 ? null : startTimeEpochSeconds;
+        default:
+            return null;
+        }
+    }
+
+    /**
+     * @return the TransactionId, or the CallId for CDRs without one, null if the CDR has neither
+     */
+    public String getDeduplicationId()
+    {
+        return transactionId != null ? transactionId : callId;
+    }
+
+    /**
+     * @return the BillableDurationSeconds, or the BillableDurationMinutes in seconds for records without it
+     */
+    public long getBillableSeconds()
+    {
+        return Math.max(billableSeconds, 0);
+    }
+
+    public long getStartTimeEpochSeconds()
+    {
+        return startTimeEpochSeconds;
+    }
+
+    /**
+     * @return true if the CDR already has a PricePerUnitUSD or CostUSD field
+     */
+    public boolean isEnriched()
+    {
+        return enriched;
+    }
+}
@@ -0,0 +1,77 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ordered columns of an enriched CDR for a given CDR SchemaVersion, used to write
+ * output with a stable column order instead of the key order of each JSON object.
+ *
+ * CDRs with a missing or unknown SchemaVersion use the latest known schema.
+ */
+public final class CDRSchema
+{
+    // fields added by the enrichment, always the last columns
+    private static final List<String> ENRICHMENT_COLUMNS = Arrays.asList("PricePerUnitUSD", "CostUSD");
+
+    private static final Map<String, CDRSchema> SCHEMAS = new HashMap<String, CDRSchema>();
+
+    public static final CDRSchema V2 = register("2.0",
+            "AwsAccountId", "TransactionId", "CallId", "VoiceConnectorId", "Status", "StatusMessage",
+            "SipAuthUser", "BillableDurationSeconds", "BillableDurationMinutes", "SchemaVersion",
+            "SourcePhoneNumber", "SourceCountry", "DestinationPhoneNumber", "DestinationCountry",
+            "UsageType", "ServiceCode", "Direction", "StartTimeEpochSeconds", "EndTimeEpochSeconds",
+            "Region", "Streaming");
+
+    public static final CDRSchema LATEST = V2;
+
+    private final String version;
+    private final List<String> columns;
+
+    private CDRSchema(String version, List<String> columns)
+    {
+        this.version = version;
+        this.columns = columns;
+    }
+
+    private static CDRSchema register(String version, String... cdrColumns)
+    {
+        String[] columns = Arrays.copyOf(cdrColumns, cdrColumns.length + ENRICHMENT_COLUMNS.size());
+        for (int i = 0; i < ENRICHMENT_COLUMNS.size(); i++)
+        {
+            columns[cdrColumns.length + i] = ENRICHMENT_COLUMNS.get(i);
+        }
+        CDRSchema schema = new CDRSchema(version, Collections.unmodifiableList(Arrays.asList(columns)));
+        SCHEMAS.put(version, schema);
+        return schema;
+    }
+
+    /**
+     * @param schemaVersion the SchemaVersion of a CDR, may be null
+     * @return the schema of that version, or the latest schema if the version is unknown
+     */
+    public static CDRSchema forVersion(String schemaVersion)
+    {
+        CDRSchema schema = schemaVersion == null ? null : SCHEMAS.get(schemaVersion);
+        return schema == null ? LATEST : schema;
+    }
+
+    public String getVersion()
+    {
+        return version;
+    }
+
+    public List<String> getColumns()
+    {
+        return columns;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CDRSchema[" + version + "]";
+    }
+}
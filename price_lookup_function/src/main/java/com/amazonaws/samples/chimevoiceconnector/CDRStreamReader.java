@@ -0,0 +1,199 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+
+/**
+ * Reads CDRs one at a time from a stream without loading the whole object into memory.
+ *
+ * Accepts a single JSON object, a JSON array of objects and newline delimited JSON
+ * (or any other sequence of concatenated objects). Only the bytes of the current CDR
+ * are held in memory, in a buffer that is reused for the next one.
+ */
+public class CDRStreamReader implements Closeable
+{
+    // a CDR is about 1 KB, anything this large is not a CDR
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+    private static final int INITIAL_RECORD_BYTES = 2048;
+
+    private final InputStream input;
+    private byte[] record = new byte[INITIAL_RECORD_BYTES];
+    private int length;
+    private long offset;
+    private boolean inArray;
+    private boolean started;
+    private boolean finished;
+
+    public CDRStreamReader(InputStream input)
+    {
+        this.input = input instanceof BufferedInputStream ? input : new BufferedInputStream(input, 64 * 1024);
+    }
+
+    /**
+     * Moves to the next CDR in the stream.
+     * @return false once the end of the stream is reached
+     * @throws IOException if the stream cannot be read or is not a sequence of JSON objects
+     */
+    public boolean advance() throws IOException
+    {
+        length = 0;
+        if (finished)
+        {
+            return false;
+        }
+
+        int b;
+        while ((b = read()) != -1)
+        {
+            if (b == '{')
+            {
+                readObject();
+                started = true;
+                return true;
+            }
+            else if (b == '[' && !started && !inArray)
+            {
+                inArray = true;
+            }
+            else if (b == ']' && inArray)
+            {
+                inArray = false;
+            }
+            else if (b == 0xEF && offset == 1)
+            {
+                skipByteOrderMark();
+            }
+            else if (!isSeparator(b))
+            {
+                throw new IOException("Unexpected character '" + (char) b + "' at offset " + (offset - 1));
+            }
+        }
+
+        finished = true;
+        if (inArray)
+        {
+            throw new IOException("Unterminated JSON array at offset " + offset);
+        }
+        return false;
+    }
+
+    private void readObject() throws IOException
+    {
+        append('{');
+        int depth = 1;
+        boolean inString = false;
+        boolean escaped = false;
+
+        while (depth > 0)
+        {
+            int b = read();
+            if (b == -1)
+            {
+                throw new IOException("Unterminated CDR at offset " + offset);
+            }
+            append(b);
+
+            if (inString)
+            {
+                if (escaped)
+                {
+                    escaped = false;
+                }
+                else if (b == '\\')
+                {
+                    escaped = true;
+                }
+                else if (b == '"')
+                {
+                    inString = false;
+                }
+            }
+            else if (b == '"')
+            {
+                inString = true;
+            }
+            else if (b == '{' || b == '[')
+            {
+                depth++;
+            }
+            else if (b == '}' || b == ']')
+            {
+                depth--;
+            }
+        }
+    }
+
+    private void skipByteOrderMark() throws IOException
+    {
+        if (read() != 0xBB || read() != 0xBF)
+        {
+            throw new IOException("Invalid byte order mark");
+        }
+    }
+
+    private int read() throws IOException
+    {
+        int b = input.read();
+        if (b != -1)
+        {
+            offset++;
+        }
+        return b;
+    }
+
+    private void append(int b) throws IOException
+    {
+        if (length == record.length)
+        {
+            if (length >= MAX_RECORD_BYTES)
+            {
+                throw new IOException("CDR larger than " + MAX_RECORD_BYTES + " bytes at offset " + offset);
+            }
+            record = Arrays.copyOf(record, Math.min(length * 2, MAX_RECORD_BYTES));
+        }
+        record[length++] = (byte) b;
+    }
+
+    private static boolean isSeparator(int b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == ',';
+    }
+
+    /**
+     * @return the buffer holding the UTF-8 bytes of the current CDR, reused by the next call to advance
+     */
+    public byte[] getBuffer()
+    {
+        return record;
+    }
+
+    /**
+     * @return the number of bytes of the current CDR in the buffer
+     */
+    public int getLength()
+    {
+        return length;
+    }
+
+    public String getText()
+    {
+        return new String(record, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public JSONObject getObject()
+    {
+        return new JSONObject(getText());
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        input.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Writes enriched CDRs as CSV rows straight to an output stream, with the columns of the
+ * CDRSchema of the first CDR. The header is written once, before the first row, so one
+ * writer must be used per output object.
+ *
+ * Fields are quoted as in RFC 4180 when they hold a comma, a quote or a line break.
+ * Fields that are not part of the schema are not written.
+ */
+public class CSVCDRWriter implements Closeable
+{
+    private final Writer writer;
+    private CDRSchema schema;
+    private int rows;
+
+    public CSVCDRWriter(OutputStream out)
+    {
+        this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * This method writes the given CDR as one row, preceded by the header for the first CDR
+     * @param enrichedCDR
+     * @throws IOException
+     */
+    public void write(JSONObject enrichedCDR) throws IOException
+    {
+        if (schema == null)
+        {
+            schema = CDRSchema.forVersion(enrichedCDR.optString("SchemaVersion", null));
+            writeHeader();
+        }
+
+        List<String> columns = schema.getColumns();
+        for (int i = 0; i < columns.size(); i++)
+        {
+            if (i > 0)
+            {
+                writer.write(',');
+            }
+            writeValue(enrichedCDR.opt(columns.get(i)));
+        }
+        writer.write('\n');
+        rows++;
+    }
+
+    private void writeHeader() throws IOException
+    {
+        List<String> columns = schema.getColumns();
+        for (int i = 0; i < columns.size(); i++)
+        {
+            if (i > 0)
+            {
+                writer.write(',');
+            }
+            writeField(columns.get(i));
+        }
+        writer.write('\n');
+    }
+
+    private void writeValue(Object value) throws IOException
+    {
+        if (value == null || value == JSONObject.NULL)
+        {
+            return;
+        }
+        if (value instanceof BigDecimal)
+        {
+            writer.write(((BigDecimal) value).toPlainString());
+        }
+        else if (value instanceof Number || value instanceof Boolean)
+        {
+            writer.write(value.toString());
+        }
+        else
+        {
+            writeField(value.toString());
+        }
+    }
+
+    private void writeField(String value) throws IOException
+    {
+        if (!needsQuotes(value))
+        {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"')
+            {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    private static boolean needsQuotes(String value)
+    {
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r')
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the schema of the written rows, or null before the first row
+     */
+    public CDRSchema getSchema()
+    {
+        return schema;
+    }
+
+    public int getRowCount()
+    {
+        return rows;
+    }
+
+    /**
+     * This method writes the buffered rows to the output stream
+     * @throws IOException
+     */
+    public void flush() throws IOException
+    {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        writer.close();
+    }
+}
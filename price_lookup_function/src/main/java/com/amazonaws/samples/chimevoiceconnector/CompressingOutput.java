@@ -0,0 +1,91 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The content of one output object, compressed as it is serialized into its buffer, so the object
+ * is never held both uncompressed and compressed.
+ */
+public class CompressingOutput extends OutputStream
+{
+    private final OutputBuffer content;
+    private final Compression compression;
+    private final OutputStream out;
+    private long writtenBytes;
+    private boolean finished;
+
+    /**
+     * @param content the buffer the compressed bytes are written to, released with this output
+     * @param compression
+     * @param level
+     * @throws IOException
+     */
+    public CompressingOutput(OutputBuffer content, Compression compression, int level) throws IOException
+    {
+        this.content = content;
+        this.compression = compression;
+        this.out = compression == Compression.NONE ? content : compression.compress(content, level);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        out.write(b);
+        writtenBytes++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        out.write(b, off, len);
+        writtenBytes += len;
+    }
+
+    /**
+     * @return the bytes written before compression
+     */
+    public long getWrittenBytes()
+    {
+        return writtenBytes;
+    }
+
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * This method ends the compressed stream
+     * @return the buffer holding the object
+     * @throws IOException
+     */
+    public OutputBuffer finish() throws IOException
+    {
+        if (!finished)
+        {
+            finished = true;
+            if (out != content)
+            {
+                out.close();
+            }
+        }
+        return content;
+    }
+
+    /**
+     * This method releases the buffer, and the compressor if the stream was not finished
+     */
+    public void release()
+    {
+        try
+        {
+            finish();
+        }
+        catch (IOException e)
+        {
+            // the content is dropped
+        }
+        content.release();
+    }
+}
@@ -0,0 +1,245 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * The stream compressions of CDR objects. Compressed input is detected from the Content-Encoding
+ * of the object or from its first bytes, the compression of the enriched output is selected by
+ * the OUTPUT_COMPRESSION environment variable, at the level set by OUTPUT_COMPRESSION_LEVEL.
+ *
+ * Content is compressed and decompressed as it is written and read, it is never held twice in memory.
+ */
+public enum Compression
+{
+    NONE(null, "", 0, 0, 0),
+    GZIP("gzip", ".gz", 6, Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION),
+    ZSTD("zstd", ".zst", 3, 1, 22);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] GZIP_MAGIC = { (byte) 0x1f, (byte) 0x8b };
+    private static final byte[] ZSTD_MAGIC = { (byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd };
+
+    private final String contentEncoding;
+    private final String extension;
+    private final int defaultLevel;
+    private final int minLevel;
+    private final int maxLevel;
+
+    Compression(String contentEncoding, String extension, int defaultLevel, int minLevel, int maxLevel)
+    {
+        this.contentEncoding = contentEncoding;
+        this.extension = extension;
+        this.defaultLevel = defaultLevel;
+        this.minLevel = minLevel;
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * @return the Content-Encoding of compressed objects, null for NONE
+     */
+    public String getContentEncoding()
+    {
+        return contentEncoding;
+    }
+
+    /**
+     * @return the suffix added to the keys of compressed objects, empty for NONE
+     */
+    public String getExtension()
+    {
+        return extension;
+    }
+
+    public int getDefaultLevel()
+    {
+        return defaultLevel;
+    }
+
+    /**
+     * @param value the OUTPUT_COMPRESSION value
+     * @return the matching compression, NONE if the value is not set or not known
+     */
+    public static Compression fromString(String value)
+    {
+        if (value != null)
+        {
+            for (Compression compression : values())
+            {
+                if (compression.name().equalsIgnoreCase(value.trim()))
+                {
+                    return compression;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * @param compression
+     * @return the OUTPUT_COMPRESSION_LEVEL environment variable, see parseLevel
+     */
+    public static int levelFromEnvironment(Compression compression)
+    {
+        return compression.parseLevel(System.getenv("OUTPUT_COMPRESSION_LEVEL"));
+    }
+
+    /**
+     * @param value a compression level
+     * @return the level, within the levels of the compression (0 to 9 for GZIP, 1 to 22 for ZSTD),
+     *         the default level if the value is not set or not a number
+     */
+    public int parseLevel(String value)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return defaultLevel;
+        }
+        try
+        {
+            return Math.max(minLevel, Math.min(maxLevel, Integer.parseInt(value.trim())));
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultLevel;
+        }
+    }
+
+    /**
+     * @param key
+     * @return the key without the extension of a compression, the same key if it has none
+     */
+    public static String stripExtension(String key)
+    {
+        for (Compression compression : values())
+        {
+            if (compression != NONE && key.endsWith(compression.extension))
+            {
+                return key.substring(0, key.length() - compression.extension.length());
+            }
+        }
+        return key;
+    }
+
+    /**
+     * This method wraps the given stream so what is written to it is compressed
+     * @param output
+     * @param level
+     * @return the stream to write to, closing it finishes the compressed stream and closes the output
+     * @throws IOException
+     */
+    public OutputStream compress(OutputStream output, int level) throws IOException
+    {
+        switch (this)
+        {
+        case GZIP:
+            return new GZIPOutputStream(output, BUFFER_SIZE)
+            {
+                {
+                    def.setLevel(level);
+                }
+            };
+        case ZSTD:
+            return new ZstdOutputStream(output, level);
+        default:
+            return output;
+        }
+    }
+
+    /**
+     * This method wraps the content of an object so it is read decompressed. The compression is taken
+     * from the Content-Encoding when it is set, otherwise from the magic bytes of the content.
+     * @param input
+     * @param contentEncoding the Content-Encoding of the object, may be null
+     * @return the decompressed content, the input itself if it is not compressed
+     * @throws IOException
+     */
+    public static InputStream decompress(InputStream input, String contentEncoding) throws IOException
+    {
+        Compression compression = fromContentEncoding(contentEncoding);
+        if (compression == NONE)
+        {
+            if (!input.markSupported())
+            {
+                input = new BufferedInputStream(input, BUFFER_SIZE);
+            }
+            compression = detect(input);
+        }
+        switch (compression)
+        {
+        case GZIP:
+            return new GZIPInputStream(input, BUFFER_SIZE);
+        case ZSTD:
+            return new BufferedInputStream(new ZstdInputStream(input), BUFFER_SIZE);
+        default:
+            return input;
+        }
+    }
+
+    private static Compression fromContentEncoding(String contentEncoding)
+    {
+        if (contentEncoding != null)
+        {
+            for (Compression compression : values())
+            {
+                if (contentEncoding.trim().equalsIgnoreCase(compression.contentEncoding))
+                {
+                    return compression;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * This method reads the first bytes of the content and resets the stream
+     * @param input a stream that supports mark
+     * @return the compression of the content, NONE if the content is not compressed
+     * @throws IOException
+     */
+    static Compression detect(InputStream input) throws IOException
+    {
+        byte[] head = new byte[ZSTD_MAGIC.length];
+        input.mark(head.length);
+        int length = 0;
+        int read;
+        while (length < head.length && (read = input.read(head, length, head.length - length)) > 0)
+        {
+            length += read;
+        }
+        input.reset();
+        if (startsWith(head, length, GZIP_MAGIC))
+        {
+            return GZIP;
+        }
+        if (startsWith(head, length, ZSTD_MAGIC))
+        {
+            return ZSTD;
+        }
+        return NONE;
+    }
+
+    private static boolean startsWith(byte[] head, int length, byte[] magic)
+    {
+        if (length < magic.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++)
+        {
+            if (head[i] != magic[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,315 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Running totals of the priced CDRs, the call count, billable seconds and cost, grouped by
+ * VoiceConnectorId, UsageType, Direction and period (a day, yyyy-MM-dd, or a month, yyyy-MM).
+ *
+ * Aggregates are mergeable, so the partial aggregate of every invocation is stored as its own state
+ * file and reports merge the state files of a day or month, which costs O(groups) rather than O(calls).
+ * A state file holds one JSON array per group: [voiceConnectorId, usageType, direction, period, calls,
+ * billableSeconds, costMicros]. Instances are not thread safe.
+ */
+public class CostAggregate
+{
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final BigDecimal SECONDS_PER_MINUTE = BigDecimal.valueOf(60);
+
+    private final Map<Group, long[]> totals = new TreeMap<Group, long[]>();
+
+    /**
+     * The key of an aggregate row.
+     */
+    public static final class Group implements Comparable<Group>
+    {
+        private final String voiceConnectorId;
+        private final String usageType;
+        private final String direction;
+        private final String period;
+
+        public Group(String voiceConnectorId, String usageType, String direction, String period)
+        {
+            this.voiceConnectorId = voiceConnectorId == null ? "" : voiceConnectorId;
+            this.usageType = usageType == null ? "" : usageType;
+            this.direction = direction == null ? "" : direction;
+            this.period = period;
+        }
+
+        public String getVoiceConnectorId()
+        {
+            return voiceConnectorId;
+        }
+
+        public String getUsageType()
+        {
+            return usageType;
+        }
+
+        public String getDirection()
+        {
+            return direction;
+        }
+
+        public String getPeriod()
+        {
+            return period;
+        }
+
+        @Override
+        public int compareTo(Group other)
+        {
+            int result = period.compareTo(other.period);
+            if (result == 0)
+            {
+                result = voiceConnectorId.compareTo(other.voiceConnectorId);
+            }
+            if (result == 0)
+            {
+                result = usageType.compareTo(other.usageType);
+            }
+            return result == 0 ? direction.compareTo(other.direction) : result;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Group && compareTo((Group) other) == 0;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(voiceConnectorId, usageType, direction, period);
+        }
+    }
+
+    /**
+     * @param startEpochSeconds
+     * @return the day of the given time in UTC, i.e. 2019-08-10
+     */
+    public static String dayOf(long startEpochSeconds)
+    {
+        return LocalDate.ofEpochDay(Math.floorDiv(startEpochSeconds, SECONDS_PER_DAY)).toString();
+    }
+
+    /**
+     * This method adds one priced CDR to the totals of its day
+     * @param voiceConnectorId
+     * @param usageType
+     * @param direction
+     * @param startEpochSeconds
+     * @param billableSeconds
+     * @param costMicros
+     */
+    public void add(String voiceConnectorId, String usageType, String direction, long startEpochSeconds,
+            long billableSeconds, long costMicros)
+    {
+        add(new Group(voiceConnectorId, usageType, direction, dayOf(startEpochSeconds)), 1, billableSeconds, costMicros);
+    }
+
+    private void add(Group group, long calls, long billableSeconds, long costMicros)
+    {
+        long[] row = totals.get(group);
+        if (row == null)
+        {
+            row = new long[3];
+            totals.put(group, row);
+        }
+        row[0] += calls;
+        row[1] += billableSeconds;
+        row[2] += costMicros;
+    }
+
+    /**
+     * This method adds the totals of another aggregate to this one
+     * @param other
+     */
+    public void merge(CostAggregate other)
+    {
+        for (Map.Entry<Group, long[]> entry : other.totals.entrySet())
+        {
+            long[] row = entry.getValue();
+            add(entry.getKey(), row[0], row[1], row[2]);
+        }
+    }
+
+    /**
+     * @return the totals grouped by month instead of day
+     */
+    public CostAggregate byMonth()
+    {
+        CostAggregate monthly = new CostAggregate();
+        for (Map.Entry<Group, long[]> entry : totals.entrySet())
+        {
+            Group day = entry.getKey();
+            long[] row = entry.getValue();
+            monthly.add(new Group(day.voiceConnectorId, day.usageType, day.direction, day.period.substring(0, 7)),
+                    row[0], row[1], row[2]);
+        }
+        return monthly;
+    }
+
+    /**
+     * @param period a day or a month
+     * @return the groups of the given period only
+     */
+    public CostAggregate forPeriod(String period)
+    {
+        CostAggregate selected = new CostAggregate();
+        for (Map.Entry<Group, long[]> entry : totals.entrySet())
+        {
+            if (entry.getKey().period.equals(period))
+            {
+                long[] row = entry.getValue();
+                selected.add(entry.getKey(), row[0], row[1], row[2]);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the periods with totals, in order
+     */
+    public Set<String> getPeriods()
+    {
+        Set<String> periods = new TreeSet<String>();
+        for (Group group : totals.keySet())
+        {
+            periods.add(group.period);
+        }
+        return periods;
+    }
+
+    public Set<Group> getGroups()
+    {
+        return totals.keySet();
+    }
+
+    public long getCalls(Group group)
+    {
+        long[] row = totals.get(group);
+        return row == null ? 0 : row[0];
+    }
+
+    public long getBillableSeconds(Group group)
+    {
+        long[] row = totals.get(group);
+        return row == null ? 0 : row[1];
+    }
+
+    public long getCostMicros(Group group)
+    {
+        long[] row = totals.get(group);
+        return row == null ? 0 : row[2];
+    }
+
+    public boolean isEmpty()
+    {
+        return totals.isEmpty();
+    }
+
+    public int size()
+    {
+        return totals.size();
+    }
+
+    /**
+     * This method writes the aggregate as a state file
+     * @param out
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        for (Map.Entry<Group, long[]> entry : totals.entrySet())
+        {
+            Group group = entry.getKey();
+            long[] row = entry.getValue();
+            writer.write(new JSONArray().put(group.voiceConnectorId).put(group.usageType).put(group.direction)
+                    .put(group.period).put(row[0]).put(row[1]).put(row[2]).toString());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * This method reads a state file and adds its totals to this aggregate
+     * @param in
+     * @throws IOException
+     */
+    public void read(InputStream in) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (line.trim().isEmpty())
+            {
+                continue;
+            }
+            JSONArray row = new JSONArray(line);
+            add(new Group(row.getString(0), row.getString(1), row.getString(2), row.getString(3)),
+                    row.getLong(4), row.getLong(5), row.getLong(6));
+        }
+    }
+
+    /**
+     * @return the report of the totals, with the billable minutes and the cost in USD
+     */
+    public JSONObject toReport()
+    {
+        JSONArray groups = new JSONArray();
+        long calls = 0;
+        long billableSeconds = 0;
+        long costMicros = 0;
+        for (Map.Entry<Group, long[]> entry : totals.entrySet())
+        {
+            Group group = entry.getKey();
+            long[] row = entry.getValue();
+            JSONObject json = new JSONObject();
+            json.put("period", group.period);
+            json.put("voiceConnectorId", group.voiceConnectorId);
+            json.put("usageType", group.usageType);
+            json.put("direction", group.direction);
+            json.put("calls", row[0]);
+            json.put("minutes", minutes(row[1]));
+            json.put("costUSD", CostEngine.formatMicros(row[2]));
+            groups.put(json);
+            calls += row[0];
+            billableSeconds += row[1];
+            costMicros += row[2];
+        }
+
+        JSONObject report = new JSONObject();
+        report.put("calls", calls);
+        report.put("minutes", minutes(billableSeconds));
+        report.put("costUSD", CostEngine.formatMicros(costMicros));
+        report.put("groups", groups);
+        return report;
+    }
+
+    private static String minutes(long billableSeconds)
+    {
+        return BigDecimal.valueOf(billableSeconds).divide(SECONDS_PER_MINUTE, 2, RoundingMode.HALF_UP).toPlainString();
+    }
+}
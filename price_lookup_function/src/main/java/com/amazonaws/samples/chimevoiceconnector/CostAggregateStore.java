@@ -0,0 +1,161 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * Stores partial cost aggregates as state files under a prefix of the target bucket, one file per day
+ * and writer, i.e. Amazon-Chime-Voice-Connector-Cost-Aggregates/2019/08/10/&lt;request id&gt;.json.
+ *
+ * State files are never updated, so concurrent invocations do not conflict, and a retried invocation
+ * overwrites its own file. Reports merge all state files of a day or a month.
+ */
+public class CostAggregateStore
+{
+    private static final String DEFAULT_PREFIX = "Amazon-Chime-Voice-Connector-Cost-Aggregates";
+    private static final String STATE_FILE_SUFFIX = ".json";
+
+    private final String prefix;
+    private final CDRBatchWriter.BatchUploader uploader;
+
+    public CostAggregateStore(String prefix, CDRBatchWriter.BatchUploader uploader)
+    {
+        this.prefix = prefix;
+        this.uploader = uploader;
+    }
+
+    /**
+     * Creates a store under the AGGREGATE_PREFIX (default Amazon-Chime-Voice-Connector-Cost-Aggregates)
+     * @param uploader
+     * @return
+     */
+    public static CostAggregateStore fromEnvironment(CDRBatchWriter.BatchUploader uploader)
+    {
+        return new CostAggregateStore(prefixFromEnvironment(), uploader);
+    }
+
+    static String prefixFromEnvironment()
+    {
+        String prefix = System.getenv("AGGREGATE_PREFIX");
+        return prefix == null || prefix.trim().isEmpty() ? DEFAULT_PREFIX : prefix.trim();
+    }
+
+    /**
+     * @param prefix
+     * @param period a day (2019-08-10) or a month (2019-08)
+     * @return the key prefix of the state files of the period, i.e. prefix/2019/08/10/
+     */
+    public static String periodPrefix(String prefix, String period)
+    {
+        return prefix + "/" + period.replace('-', '/') + "/";
+    }
+
+    /**
+     * This method writes one state file for each day of the aggregate
+     * @param aggregate
+     * @param writerId unique to the writer, i.e. the Lambda request id
+     * @return the days whose state files could not be uploaded
+     * @throws IOException
+     */
+    public List<String> write(CostAggregate aggregate, String writerId) throws IOException
+    {
+        List<String> failedDays = new ArrayList<String>();
+        for (String day : aggregate.getPeriods())
+        {
+            String key = periodPrefix(prefix, day) + writerId + STATE_FILE_SUFFIX;
+            OutputBuffer buffer = OutputBuffer.acquire();
+            try
+            {
+                aggregate.forPeriod(day).write(buffer);
+                if (!uploader.upload(key, buffer, "application/x-ndjson"))
+                {
+                    failedDays.add(day);
+                }
+            }
+            finally
+            {
+                buffer.release();
+            }
+        }
+        return failedDays;
+    }
+
+    /**
+     * This method merges the state files of a day or a month stored in S3
+     * @param s3
+     * @param bucket
+     * @param prefix
+     * @param period a day (2019-08-10) or a month (2019-08)
+     * @return the totals of the period, by day
+     * @throws IOException
+     */
+    public static CostAggregate read(AmazonS3 s3, String bucket, String prefix, String period) throws IOException
+    {
+        CostAggregate aggregate = new CostAggregate();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket)
+                .withPrefix(periodPrefix(prefix, period));
+        ListObjectsV2Result result;
+        do
+        {
+            result = s3.listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries())
+            {
+                if (summary.getKey().endsWith(STATE_FILE_SUFFIX))
+                {
+                    try (S3Object object = s3.getObject(bucket, summary.getKey()))
+                    {
+                        aggregate.read(object.getObjectContent());
+                    }
+                }
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        }
+        while (result.isTruncated());
+        return aggregate;
+    }
+
+    /**
+     * This method merges the state files of a day or a month written to a local directory,
+     * i.e. the output directory of the BackfillRunner
+     * @param root
+     * @param prefix
+     * @param period a day (2019-08-10) or a month (2019-08)
+     * @return the totals of the period, by day
+     * @throws IOException
+     */
+    public static CostAggregate read(Path root, String prefix, String period) throws IOException
+    {
+        CostAggregate aggregate = new CostAggregate();
+        Path directory = root.resolve(periodPrefix(prefix, period));
+        if (!Files.isDirectory(directory))
+        {
+            return aggregate;
+        }
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory))
+        {
+            files = walk.filter(path -> path.toString().endsWith(STATE_FILE_SUFFIX)).collect(Collectors.toList());
+        }
+        for (Path file : files)
+        {
+            try (InputStream in = Files.newInputStream(file))
+            {
+                aggregate.read(in);
+            }
+        }
+        return aggregate;
+    }
+}
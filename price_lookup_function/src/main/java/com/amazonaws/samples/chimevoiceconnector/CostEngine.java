@@ -0,0 +1,134 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import org.json.JSONObject;
+
+/**
+ * Fixed-point cost arithmetic for CDRs.
+ *
+ * Prices are kept as longs with the 10 decimal places published in the AWS Price List, and costs
+ * are computed in micro-dollars from the billable seconds of the call, so totals are exact and
+ * reproducible, and the per-call path does no floating point or BigDecimal arithmetic.
+ */
+public final class CostEngine
+{
+    /** decimal places of fixed-point prices, as published by the AWS Price List */
+    public static final int PRICE_SCALE = 10;
+    /** decimal places of costs, i.e. micro-dollars */
+    public static final int COST_SCALE = 6;
+
+    /** the cost of a CDR that could not be priced */
+    public static final long NOT_PRICED = -1;
+
+    private static final long SECONDS_PER_MINUTE = 60;
+    // converts (seconds * price per minute) at PRICE_SCALE into minutes at COST_SCALE
+    private static final long COST_DIVISOR = SECONDS_PER_MINUTE * 10000L;
+
+    private CostEngine()
+    {
+    }
+
+    /**
+     * Converts a price to a fixed-point long with PRICE_SCALE decimal places, rounding half up
+     * any further digits.
+     * @param price
+     * @return
+     * @throws ArithmeticException if the price does not fit in a long
+     */
+    public static long toFixedPrice(BigDecimal price)
+    {
+        return price.setScale(PRICE_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * This method calculates the cost of a call billed per minute, rounded half up to the micro-dollar
+     * @param billableSeconds
+     * @param fixedPricePerMinute the price per minute with PRICE_SCALE decimal places
+     * @return the cost in micro-dollars
+     */
+    public static long costMicros(long billableSeconds, long fixedPricePerMinute)
+    {
+        return roundCost(Math.multiplyExact(billableSeconds, fixedPricePerMinute));
+    }
+
+    /**
+     * This method rounds a cost accumulated as billable seconds times fixed-point price per minute,
+     * so a call billed at several tier prices is rounded only once
+     * @param secondsTimesPrice the sum of billable seconds * price per minute with PRICE_SCALE decimal places
+     * @return the cost in micro-dollars, rounded half up
+     */
+    public static long roundCost(long secondsTimesPrice)
+    {
+        return (secondsTimesPrice + COST_DIVISOR / 2) / COST_DIVISOR;
+    }
+
+    /**
+     * @param enrichedCDR
+     * @return the CostUSD of an enriched CDR in micro-dollars, or NOT_PRICED if the CDR has no cost
+     */
+    public static long costMicros(JSONObject enrichedCDR)
+    {
+        BigDecimal cost = enrichedCDR.optBigDecimal("CostUSD", null);
+        if (cost == null)
+        {
+            return NOT_PRICED;
+        }
+        return cost.setScale(COST_SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * @param cdrRecord
+     * @return the BillableDurationSeconds of the CDR, or the BillableDurationMinutes converted to seconds
+     *         for records without it, 0 for negative durations as CDRFieldScanner reads them
+     */
+    public static long billableSeconds(JSONObject cdrRecord)
+    {
+        if (cdrRecord.has("BillableDurationSeconds"))
+        {
+            return Math.max(cdrRecord.getLong("BillableDurationSeconds"), 0);
+        }
+        return Math.max(Math.round(cdrRecord.optDouble("BillableDurationMinutes", 0) * SECONDS_PER_MINUTE), 0);
+    }
+
+    /**
+     * @param micros
+     * @return the amount as a BigDecimal with COST_SCALE decimal places, for JSON output
+     */
+    public static BigDecimal toDecimal(long micros)
+    {
+        return BigDecimal.valueOf(micros, COST_SCALE);
+    }
+
+    /**
+     * @param micros
+     * @return the amount as a plain decimal string with COST_SCALE decimal places, i.e. 0.019200
+     */
+    public static String formatMicros(long micros)
+    {
+        return format(micros, COST_SCALE);
+    }
+
+    /**
+     * Formats a fixed-point value as a plain decimal string without going through BigDecimal.
+     * @param value
+     * @param scale
+     * @return
+     */
+    public static String format(long value, int scale)
+    {
+        StringBuilder digits = new StringBuilder(24);
+        digits.append(Math.abs(value));
+        while (digits.length() <= scale)
+        {
+            digits.insert(0, '0');
+        }
+        digits.insert(digits.length() - scale, '.');
+        if (value < 0)
+        {
+            digits.insert(0, '-');
+        }
+        return digits.toString();
+    }
+}
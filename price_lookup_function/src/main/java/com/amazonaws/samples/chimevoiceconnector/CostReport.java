@@ -0,0 +1,73 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.json.JSONObject;
+
+/**
+ * Prints the daily or monthly cost report of the stored cost aggregates, by Voice Connector,
+ * usage type and direction, without reading any CDR.
+ *
+ * Usage: java -cp pricefunction-1.0.0.jar com.amazonaws.samples.chimevoiceconnector.CostReport
+ *        --period 2019-08|2019-08-10 (--bucket BUCKET | --dir DIR) [--prefix PREFIX]
+ *
+ * The bucket is the target bucket of the Lambda function, the directory the output directory of the
+ * BackfillRunner. The prefix defaults to AGGREGATE_PREFIX as in Lambda.
+ */
+public class CostReport
+{
+    private static final int MONTH_LENGTH = "2019-08".length();
+
+    public static void main(String[] args) throws Exception
+    {
+        String period = null;
+        String bucket = null;
+        Path directory = null;
+        String prefix = CostAggregateStore.prefixFromEnvironment();
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if ("--period".equals(args[i]))
+            {
+                period = args[i + 1];
+            }
+            else if ("--bucket".equals(args[i]))
+            {
+                bucket = args[i + 1];
+            }
+            else if ("--dir".equals(args[i]))
+            {
+                directory = Paths.get(args[i + 1]);
+            }
+            else if ("--prefix".equals(args[i]))
+            {
+                prefix = args[i + 1];
+            }
+        }
+        if (period == null || (bucket == null) == (directory == null))
+        {
+            System.err.println("Usage: CostReport --period 2019-08|2019-08-10 (--bucket BUCKET | --dir DIR) [--prefix PREFIX]");
+            System.exit(2);
+            return;
+        }
+
+        CostAggregate aggregate = bucket != null
+                ? CostAggregateStore.read(SdkClients.s3(), bucket, prefix, period)
+                : CostAggregateStore.read(directory, prefix, period);
+        System.out.println(report(aggregate, period).toString(2));
+    }
+
+    /**
+     * This method reports the totals of a day, or of a month rolled up from its days
+     * @param aggregate
+     * @param period
+     * @return
+     */
+    static JSONObject report(CostAggregate aggregate, String period)
+    {
+        CostAggregate totals = period.length() == MONTH_LENGTH ? aggregate.byMonth() : aggregate;
+        JSONObject report = totals.toReport();
+        report.put("period", period);
+        return report;
+    }
+}
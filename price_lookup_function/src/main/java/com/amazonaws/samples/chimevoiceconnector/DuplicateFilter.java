@@ -0,0 +1,351 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Remembers the CDRs already enriched, by TransactionId (or CallId for CDRs without one), so a
+ * redelivered S3 notification is skipped before pricing.
+ *
+ * Every id is checked against a Bloom filter first, which answers in constant time for the common case
+ * of a new CDR. Only a positive answer is confirmed with the exact id set, so a false positive never
+ * drops a CDR. Ids are kept in two generations of the given capacity each, the older generation is
+ * dropped when the current one is full, which bounds the memory of a long-lived container. Ids are
+ * recorded under the read lock of the generations and the generations are rotated under its write lock,
+ * so an id checked against one pair of generations is never recorded in the next pair.
+ *
+ * The ids can be saved to a local file and merged with the file written by another process. Writers
+ * take a lock file next to the state file, so concurrent containers do not drop each other's ids, and
+ * the file is only written when ids were recorded since the last save. The shared state is best effort:
+ * a container only sees the ids of the others when it saves, so a notification redelivered to another
+ * container meanwhile is enriched again.
+ */
+public class DuplicateFilter
+{
+    private static final int DEFAULT_CAPACITY = 100000;
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+    // file locks are held by the whole JVM, the filters of one JVM take turns before locking
+    private static final Object PERSIST_LOCK = new Object();
+
+    private static final class Generation
+    {
+        final BloomFilter bloom;
+        final Set<String> ids = ConcurrentHashMap.newKeySet();
+
+        Generation(int capacity)
+        {
+            bloom = new BloomFilter(capacity, FALSE_POSITIVE_PROBABILITY);
+        }
+
+        boolean contains(String id)
+        {
+            return bloom.mightContain(id) && ids.contains(id);
+        }
+    }
+
+    // the generations are replaced together, so a reader never sees the previous of one pair with the current of another
+    private static final class Generations
+    {
+        final Generation previous;
+        final Generation current;
+
+        Generations(Generation previous, Generation current)
+        {
+            this.previous = previous;
+            this.current = current;
+        }
+    }
+
+    private final int capacity;
+    private final Path stateFile;
+    private volatile Generations generations;
+    private final ReadWriteLock rotation = new ReentrantReadWriteLock();
+    // counts the changes of the ids, the state file is written when it moved since the last save
+    private final AtomicLong version = new AtomicLong();
+    private long savedVersion;
+
+    /**
+     * @param capacity the number of ids per generation
+     * @param stateFile the local file the ids are persisted to, or null
+     */
+    public DuplicateFilter(int capacity, Path stateFile)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.stateFile = stateFile;
+        this.generations = new Generations(new Generation(capacity), new Generation(capacity));
+    }
+
+    /**
+     * Creates a filter of DEDUP_CAPACITY ids per generation (default 100000), persisted to the
+     * DEDUP_STATE_FILE if set, i.e. a file on an EFS mount shared by all containers.
+     * @return
+     * @throws IOException if the state file cannot be read
+     */
+    public static DuplicateFilter fromEnvironment() throws IOException
+    {
+        String stateFile = System.getenv("DEDUP_STATE_FILE");
+        DuplicateFilter filter = new DuplicateFilter(capacityFromEnvironment(),
+                stateFile == null || stateFile.trim().isEmpty() ? null : Paths.get(stateFile.trim()));
+        filter.load();
+        return filter;
+    }
+
+    /**
+     * @return DEDUP_CAPACITY, the number of ids per generation (default 100000)
+     */
+    public static int capacityFromEnvironment()
+    {
+        String value = System.getenv("DEDUP_CAPACITY");
+        if (value != null && !value.trim().isEmpty())
+        {
+            try
+            {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                // keep the default
+            }
+        }
+        return DEFAULT_CAPACITY;
+    }
+
+    /**
+     * This method records the id unless it was recorded already
+     * @param id the TransactionId or CallId of a CDR
+     * @return true if the id is new, false if the CDR is a duplicate
+     */
+    public boolean markIfAbsent(String id)
+    {
+        Generation newer;
+        Lock marking = rotation.readLock();
+        marking.lock();
+        try
+        {
+            Generations pair = generations;
+            if (pair.previous.contains(id))
+            {
+                return false;
+            }
+            newer = pair.current;
+            if (!newer.ids.add(id))
+            {
+                return false;
+            }
+            newer.bloom.put(id);
+            version.incrementAndGet();
+        }
+        finally
+        {
+            marking.unlock();
+        }
+        if (newer.ids.size() >= capacity)
+        {
+            rotate(newer);
+        }
+        return true;
+    }
+
+    /**
+     * @param id
+     * @return true if the id was recorded
+     */
+    public boolean contains(String id)
+    {
+        Generations pair = generations;
+        return pair.current.contains(id) || pair.previous.contains(id);
+    }
+
+    /**
+     * This method drops ids that were recorded for CDRs whose processing failed, so their retry is
+     * not taken for a duplicate. The Bloom filter keeps their bits, the exact set decides.
+     * @param ids
+     */
+    public void forget(Collection<String> ids)
+    {
+        Generations pair = generations;
+        for (String id : ids)
+        {
+            pair.current.ids.remove(id);
+            pair.previous.ids.remove(id);
+        }
+        version.incrementAndGet();
+    }
+
+    private void rotate(Generation full)
+    {
+        Lock rotating = rotation.writeLock();
+        rotating.lock();
+        try
+        {
+            if (generations.current == full)
+            {
+                generations = new Generations(full, new Generation(capacity));
+            }
+        }
+        finally
+        {
+            rotating.unlock();
+        }
+    }
+
+    /**
+     * This method records all the ids of another filter
+     * @param other
+     */
+    public void merge(DuplicateFilter other)
+    {
+        Generations pair = other.generations;
+        for (String id : pair.previous.ids)
+        {
+            markIfAbsent(id);
+        }
+        for (String id : pair.current.ids)
+        {
+            markIfAbsent(id);
+        }
+    }
+
+    /**
+     * This method writes the ids, one per line, oldest generation first
+     * @param out
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException
+    {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        Generations pair = generations;
+        for (Generation generation : new Generation[] { pair.previous, pair.current })
+        {
+            for (String id : generation.ids)
+            {
+                writer.write(id);
+                writer.write('\n');
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * This method records the ids written by write
+     * @param in
+     * @throws IOException
+     */
+    public void read(InputStream in) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (!line.isEmpty())
+            {
+                markIfAbsent(line);
+            }
+        }
+    }
+
+    /**
+     * This method records the ids of the state file, if there is one
+     * @throws IOException
+     */
+    public synchronized void load() throws IOException
+    {
+        readStateFile();
+        savedVersion = version.get();
+    }
+
+    private void readStateFile() throws IOException
+    {
+        if (stateFile != null && Files.exists(stateFile))
+        {
+            try (InputStream in = Files.newInputStream(stateFile))
+            {
+                read(in);
+            }
+        }
+    }
+
+    /**
+     * This method merges the ids of the state file, which other processes may have updated, and writes
+     * the result back, unless no id was recorded since the last save. The merge holds the lock file of
+     * the state file, and the file is replaced atomically.
+     * @throws IOException
+     */
+    public synchronized void persist() throws IOException
+    {
+        if (stateFile == null || version.get() == savedVersion)
+        {
+            return;
+        }
+        Path directory = stateFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path lockFile = directory.resolve(stateFile.getFileName() + ".lock");
+        synchronized (PERSIST_LOCK)
+        {
+            persistLocked(directory, lockFile);
+        }
+    }
+
+    private void persistLocked(Path directory, Path lockFile) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = channel.lock())
+        {
+            readStateFile();
+            long saving = version.get();
+            Path temporary = Files.createTempFile(directory, ".dedup", ".tmp");
+            try
+            {
+                try (OutputStream out = Files.newOutputStream(temporary))
+                {
+                    write(out);
+                }
+                Files.move(temporary, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+            savedVersion = saving;
+        }
+    }
+
+    public boolean isPersistent()
+    {
+        return stateFile != null;
+    }
+
+    /**
+     * @return the number of ids recorded
+     */
+    public int size()
+    {
+        Generations pair = generations;
+        return pair.current.ids.size() + pair.previous.ids.size();
+    }
+}
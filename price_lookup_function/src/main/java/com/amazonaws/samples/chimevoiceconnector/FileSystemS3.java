@@ -0,0 +1,95 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * A stand-in for Amazon S3 backed by two local directories, so the handler can enrich CDR files
+ * without S3. Objects are read from the input directory and written to the output directory,
+ * with the key as the relative path. The bucket names are ignored.
+ *
+ * Objects are written to a temporary file first and then moved in place, so an interrupted run
+ * never leaves a partial object behind.
+ */
+public class FileSystemS3 extends AbstractAmazonS3
+{
+    private final Path inputRoot;
+    private final Path outputRoot;
+
+    public FileSystemS3(Path inputRoot, Path outputRoot)
+    {
+        this.inputRoot = inputRoot;
+        this.outputRoot = outputRoot;
+    }
+
+    @Override
+    public S3Object getObject(GetObjectRequest request)
+    {
+        File file = resolve(inputRoot, request.getKey()).toFile();
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(file.length());
+
+        S3Object object = new S3Object();
+        object.setBucketName(request.getBucketName());
+        object.setKey(request.getKey());
+        object.setObjectMetadata(metadata);
+        try
+        {
+            object.setObjectContent(new FileInputStream(file));
+        }
+        catch (FileNotFoundException e)
+        {
+            throw new SdkClientException("No such file " + file, e);
+        }
+        return object;
+    }
+
+    @Override
+    public PutObjectResult putObject(PutObjectRequest request)
+    {
+        Path target = resolve(outputRoot, request.getKey());
+        try
+        {
+            Files.createDirectories(target.getParent());
+            Path temporary = Files.createTempFile(target.getParent(), ".backfill", ".tmp");
+            try (InputStream input = request.getInputStream())
+            {
+                Files.copy(input, temporary, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new SdkClientException("Unable to write " + target, e);
+        }
+        return new PutObjectResult();
+    }
+
+    private static Path resolve(Path root, String key)
+    {
+        Path path = root.resolve(key).normalize();
+        if (!path.startsWith(root))
+        {
+            throw new SdkClientException("Key " + key + " is outside of " + root);
+        }
+        return path;
+    }
+}
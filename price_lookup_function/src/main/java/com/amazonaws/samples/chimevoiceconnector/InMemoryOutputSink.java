@@ -0,0 +1,47 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the last object written under every key in memory, for benchmarks and load tests of the
+ * whole pipeline without S3.
+ */
+public class InMemoryOutputSink extends AbstractOutputSink
+{
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+
+    @Override
+    protected CompletableFuture<Void> writeContent(String key, OutputBuffer content, String contentType,
+            String contentEncoding)
+    {
+        objects.put(key, content.toByteArray());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @param key
+     * @return the content of the object, null if no object was written under the key
+     */
+    public byte[] getObject(String key)
+    {
+        return objects.get(key);
+    }
+
+    public int size()
+    {
+        return objects.size();
+    }
+
+    public void clear()
+    {
+        objects.clear();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "memory";
+    }
+}
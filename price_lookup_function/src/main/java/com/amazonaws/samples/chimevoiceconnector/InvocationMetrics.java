@@ -0,0 +1,181 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Latency histograms of the stages of an invocation, and its counters, written once per invocation
+ * as a single CloudWatch embedded metric format (EMF) line. CloudWatch extracts the metrics from the
+ * log line, including the percentiles of every stage, without a PutMetricData call.
+ *
+ * Recording is thread safe and lock free, the records of an event are processed concurrently.
+ */
+public class InvocationMetrics
+{
+    private static final String DEFAULT_NAMESPACE = "ChimeVoiceConnectorReports";
+
+    public enum Stage
+    {
+        S3_READ("S3ReadLatency"),
+        PARSE("ParseLatency"),
+        PRICE_LOOKUP("PriceLookupLatency"),
+        COST("CostLatency"),
+        SERIALIZE("SerializeLatency"),
+        UPLOAD("UploadLatency"),
+        INVOCATION("InvocationLatency");
+
+        private final String metricName;
+
+        Stage(String metricName)
+        {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName()
+        {
+            return metricName;
+        }
+    }
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong cdrs = new AtomicLong();
+    private final AtomicLong priceLookups = new AtomicLong();
+    private final AtomicLong pricingCalls = new AtomicLong();
+
+    public InvocationMetrics()
+    {
+        for (Stage stage : Stage.values())
+        {
+            histograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @return true unless the METRICS environment variable is false
+     */
+    public static boolean isEnabled()
+    {
+        return !"false".equalsIgnoreCase(System.getenv("METRICS"));
+    }
+
+    /**
+     * @return the METRICS_NAMESPACE environment variable, ChimeVoiceConnectorReports by default
+     */
+    public static String namespaceFromEnvironment()
+    {
+        String namespace = System.getenv("METRICS_NAMESPACE");
+        return namespace == null || namespace.trim().isEmpty() ? DEFAULT_NAMESPACE : namespace.trim();
+    }
+
+    /**
+     * @return the start of a stage, to pass to record
+     */
+    public static long start()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * This method records the time since the given start
+     * @param stage
+     * @param startNanos the value returned by start
+     */
+    public void record(Stage stage, long startNanos)
+    {
+        histograms.get(stage).recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage)
+    {
+        return histograms.get(stage);
+    }
+
+    /**
+     * This method counts a processed S3 object and its CDRs
+     * @param cdrCount
+     */
+    public void addRecord(int cdrCount)
+    {
+        records.incrementAndGet();
+        cdrs.addAndGet(cdrCount);
+    }
+
+    public void addPriceLookup()
+    {
+        priceLookups.incrementAndGet();
+    }
+
+    public void addPricingCall()
+    {
+        pricingCalls.incrementAndGet();
+    }
+
+    public long getPricingCalls()
+    {
+        return pricingCalls.get();
+    }
+
+    /**
+     * @return the share of the price lookups that did not call the Pricing API, 1 if there was no lookup
+     */
+    public double getCacheHitRatio()
+    {
+        long lookups = priceLookups.get();
+        return lookups == 0 ? 1.0 : Math.max(0, lookups - pricingCalls.get()) / (double) lookups;
+    }
+
+    /**
+     * This method writes the metrics in the CloudWatch embedded metric format, stages without any
+     * sample are left out
+     * @param namespace
+     * @param functionName the value of the FunctionName dimension
+     * @param timestampMillis
+     * @return
+     */
+    public JSONObject toEmf(String namespace, String functionName, long timestampMillis)
+    {
+        JSONObject line = new JSONObject();
+        JSONArray definitions = new JSONArray();
+        for (Stage stage : Stage.values())
+        {
+            JSONObject distribution = histograms.get(stage).toEmfValue();
+            if (distribution != null)
+            {
+                definitions.put(metric(stage.getMetricName(), "Milliseconds"));
+                line.put(stage.getMetricName(), distribution);
+            }
+        }
+        definitions.put(metric("Records", "Count"));
+        line.put("Records", records.get());
+        definitions.put(metric("CDRs", "Count"));
+        line.put("CDRs", cdrs.get());
+        definitions.put(metric("PricingCalls", "Count"));
+        line.put("PricingCalls", pricingCalls.get());
+        definitions.put(metric("PriceCacheHitRatio", "None"));
+        line.put("PriceCacheHitRatio", getCacheHitRatio());
+
+        JSONObject directive = new JSONObject();
+        directive.put("Namespace", namespace);
+        directive.put("Dimensions", new JSONArray().put(new JSONArray().put("FunctionName")));
+        directive.put("Metrics", definitions);
+        JSONObject aws = new JSONObject();
+        aws.put("Timestamp", timestampMillis);
+        aws.put("CloudWatchMetrics", new JSONArray().put(directive));
+        line.put("_aws", aws);
+        line.put("FunctionName", functionName == null ? "" : functionName);
+        return line;
+    }
+
+    private static JSONObject metric(String name, String unit)
+    {
+        JSONObject metric = new JSONObject();
+        metric.put("Name", name);
+        metric.put("Unit", unit);
+        return metric;
+    }
+}
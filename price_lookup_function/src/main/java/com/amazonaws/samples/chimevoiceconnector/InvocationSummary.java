@@ -0,0 +1,94 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The per record outcomes of one handler invocation, returned as the handler result.
+ */
+public class InvocationSummary
+{
+    private final List<RecordOutcome> outcomes = new ArrayList<RecordOutcome>();
+
+    public void add(RecordOutcome outcome)
+    {
+        outcomes.add(outcome);
+    }
+
+    public List<RecordOutcome> getOutcomes()
+    {
+        return outcomes;
+    }
+
+    public int count(RecordOutcome.Status status)
+    {
+        int count = 0;
+        for (RecordOutcome outcome : outcomes)
+        {
+            if (outcome.getStatus() == status)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public int getCdrCount()
+    {
+        int count = 0;
+        for (RecordOutcome outcome : outcomes)
+        {
+            count += outcome.getCdrCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return the cost of all the priced CDRs in micro-dollars
+     */
+    public long getTotalCostMicros()
+    {
+        long total = 0;
+        for (RecordOutcome outcome : outcomes)
+        {
+            total += outcome.getCostMicros();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of CDRs skipped as duplicates
+     */
+    public int getDuplicateCount()
+    {
+        int total = 0;
+        for (RecordOutcome outcome : outcomes)
+        {
+            total += outcome.getDuplicateCount();
+        }
+        return total;
+    }
+
+    public String toJson()
+    {
+        JSONObject json = new JSONObject();
+        json.put("records", outcomes.size());
+        json.put("enriched", count(RecordOutcome.Status.ENRICHED));
+        json.put("skipped", count(RecordOutcome.Status.SKIPPED));
+        json.put("failed", count(RecordOutcome.Status.FAILED));
+        json.put("cdrs", getCdrCount());
+        json.put("duplicates", getDuplicateCount());
+        json.put("totalCostUSD", CostEngine.formatMicros(getTotalCostMicros()));
+
+        JSONArray records = new JSONArray();
+        for (RecordOutcome outcome : outcomes)
+        {
+            records.put(outcome.toJson());
+        }
+        json.put("outcomes", records);
+        return json.toString();
+    }
+}
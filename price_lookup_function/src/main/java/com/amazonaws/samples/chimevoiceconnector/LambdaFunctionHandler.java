@@ -1,234 +1,1274 @@
 package com.amazonaws.samples.chimevoiceconnector;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileWriter;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.math.BigDecimal;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
-import org.json.CDL;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.pricing.AWSPricing;
-import com.amazonaws.services.pricing.AWSPricingClientBuilder;
 import com.amazonaws.services.pricing.model.Filter;
 import com.amazonaws.services.pricing.model.GetProductsRequest;
 import com.amazonaws.services.pricing.model.GetProductsResult;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
-import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
 import com.amazonaws.services.s3.model.S3Object;
 
 public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
 
     private AmazonS3 s3;
-    private AWSPricing pricingClient = AWSPricingClientBuilder.defaultClient();
+    private AWSPricing pricingClient;
+    
+    //downloads and uploads the CDR objects without holding the record workers
+    private ObjectStore objectStore;
+    private int maxInFlight = MAX_IN_FLIGHT;
+    private int maxInFlightBytes = MAX_IN_FLIGHT_BYTES;
+    
+    //receives the enriched CDR objects, the target bucket unless OUTPUT_SINK is set
+    private OutputSink outputSink;
+    
+    //partitions of the enriched objects, the input keys are kept unless OUTPUT_KEY_TEMPLATE is set
+    private PartitionKeyTemplate keyTemplate = PartitionKeyTemplate.fromEnvironment();
+    
+    //the partitions written by the current invocation, only used with a key template
+    private volatile PartitionManifest partitionManifest;
+    private final String MANIFEST_PREFIX = PartitionManifest.prefixFromEnvironment();
+    
+    //price per unit by usage type, kept for the lifetime of the container
+    private static final PriceCache PRICE_CACHE = PriceCache.fromEnvironment();
+    //the usage types whose provisional tiers were logged by this container
+    private static final Set<String> PROVISIONAL_TIERS_WARNED = ConcurrentHashMap.newKeySet();
+    
+    //billable seconds per Voice Connector and usage type and month, selects the tier of tiered prices,
+    //only set by an ordered backfill, tiered usage types are not priced without it
+    private MonthlyUsage monthlyUsage;
+    
+    //full price list index, only used when PRICE_LOOKUP_MODE is CATALOG
+    private PriceCatalog priceCatalog;
+    
+    //price versions of the retained price list snapshots, used to price old CDRs
+    private PriceHistoryIndex priceSnapshots = new PriceHistoryIndex();
+    
+    //rolls enriched CDRs up into batch objects, only used when OUTPUT_BATCHING is true
+    private CDRBatchWriter batchWriter;
+    
+    //stores the cost totals of every invocation, only used when COST_AGGREGATION is true
+    private CostAggregateStore aggregateStore;
+    
+    //ids of the CDRs enriched by this container, skips redelivered notifications unless DEDUPLICATION is false
+    private DuplicateFilter duplicateFilter;
+    
+    //cost totals of written CDRs whose state files could not be uploaded, stored by the next invocation
+    private CostAggregate unstoredCosts = new CostAggregate();
+    
+    //stage latencies and counters of the current invocation, emitted as one EMF line unless METRICS is false
+    private volatile InvocationMetrics metrics = new InvocationMetrics();
+    private final boolean METRICS_ENABLED = InvocationMetrics.isEnabled();
+    private final String METRICS_NAMESPACE = InvocationMetrics.namespaceFromEnvironment();
     
     private final String TARGET_BUCKET_NAME = System.getenv("TARGET_BUCKET_NAME");
-    private final String OUTPUT_FORMAT=System.getenv("OUTPUT_FORMAT");
+    private final OutputFormat OUTPUT_FORMAT = OutputFormat.fromString(System.getenv("OUTPUT_FORMAT"));
+    
+    //compression of the enriched JSON and CSV objects, Parquet pages are compressed by the Parquet writer
+    private Compression outputCompression = Compression.fromString(System.getenv("OUTPUT_COMPRESSION"));
+    private int outputCompressionLevel = Compression.levelFromEnvironment(outputCompression);
     private final String CHIME_VOICE_CONNECTOR_SERVICE_CODE = "AmazonChimeVoiceConnector";
     private static final String DEFAULT_FORMAT_VERISION ="aws_v1";
     private static final String CDR_USAGE_TYPE = "UsageType";
     private static final String TERM_MATCH_FILTER="TERM_MATCH";
+    private static final String CATALOG_LOOKUP_MODE = "CATALOG";
+    private static final String DUPLICATE_MESSAGE = "All CDRs were enriched before";
+    private static final int DEFAULT_RECORD_CONCURRENCY = 4;
+    private static final DateTimeFormatter MANIFEST_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd")
+    		.withZone(ZoneOffset.UTC);
+    
+    //bounded pool that enriches the objects of one event concurrently, shared by warm invocations
+    private static final ExecutorService RECORD_EXECUTOR = createRecordExecutor();
+    
+    //pool of IO_CONCURRENCY threads that runs the S3 transfers of all the records
+    private static final ExecutorService IO_EXECUTOR = S3ObjectStore.createIoExecutor(S3ObjectStore.ioConcurrency());
+    
+    //objects downloaded, enriched or uploaded at once, bounds the memory of large events
+    private static final int MAX_IN_FLIGHT = maxInFlight();
+    
+    //bytes of the objects downloaded at once, the downloads are held in memory until they are enriched
+    private static final int MAX_IN_FLIGHT_BYTES = maxInFlightBytes();
+    
+    static
+    {
+    	//warm the first invocation during init, or before the SnapStart snapshot
+    	StartupPriming.register();
+    }
     
     private Context lambdaContext;
+    private Log log;
     
     public LambdaFunctionHandler() 
     {
-    	s3 = AmazonS3ClientBuilder.standard().build();
+    	//the clients are shared by the container and built once
+    	s3 = SdkClients.s3();
+    	pricingClient = SdkClients.pricing();
+    	objectStore = new S3ObjectStore(s3, IO_EXECUTOR);
+    	outputSink = OutputSink.fromEnvironment(objectStore, TARGET_BUCKET_NAME);
+    	try
+    	{
+    		priceSnapshots = PriceHistoryIndex.fromEnvironment(s3);
+    	}
+    	catch (RuntimeException e)
+    	{
+    		//current prices are still available from the Pricing API
+    		LambdaRuntime.getLogger().log("Unable to load the price snapshots " + e.getMessage());
+    	}
+    	if (CATALOG_LOOKUP_MODE.equalsIgnoreCase(System.getenv("PRICE_LOOKUP_MODE")))
+    	{
+    		priceCatalog = PriceCatalog.fromEnvironment(pricingClient);
+    		priceCatalog.setSnapshots(priceSnapshots);
+    	}
+    	if ("true".equalsIgnoreCase(System.getenv("OUTPUT_BATCHING")))
+    	{
+    		batchWriter = CDRBatchWriter.fromEnvironment(OUTPUT_FORMAT,
+    				(batchKey, content, contentType) -> uploadAsync(content, batchKey, contentType,
+    						batchWriter.getCompression().getContentEncoding()).join());
+    		batchWriter.setKeyTemplate(keyTemplate);
+    		batchWriter.setCompression(outputCompression, outputCompressionLevel);
+    	}
+    	if (!"false".equalsIgnoreCase(System.getenv("DEDUPLICATION")))
+    	{
+    		try
+    		{
+    			duplicateFilter = DuplicateFilter.fromEnvironment();
+    		}
+    		catch (IOException e)
+    		{
+    			//start from an empty filter, the state file is replaced on the next save
+    			LambdaRuntime.getLogger().log("Unable to load the deduplication state " + e.getMessage());
+    			duplicateFilter = new DuplicateFilter(100000, null);
+    		}
+    	}
+    	if ("true".equalsIgnoreCase(System.getenv("COST_AGGREGATION")))
+    	{
+    		aggregateStore = CostAggregateStore.fromEnvironment(
+    				(stateKey, content, contentType) -> uploadBufferToS3(content, stateKey, contentType));
+    	}
+    	StartupMetrics.initialized();
     }
 
     // Test purpose only.
-    LambdaFunctionHandler(AmazonS3 s3) {
+    LambdaFunctionHandler(AmazonS3 s3, AWSPricing pricingClient) {
+        this(s3, pricingClient, null);
+    }
+
+    // Used by tests and the BackfillRunner.
+    LambdaFunctionHandler(AmazonS3 s3, AWSPricing pricingClient, PriceCatalog priceCatalog) {
         this.s3 = s3;
-       
+        this.pricingClient = pricingClient;
+        this.priceCatalog = priceCatalog;
+        this.objectStore = new S3ObjectStore(s3, IO_EXECUTOR);
+        this.outputSink = new S3OutputSink(objectStore, TARGET_BUCKET_NAME);
+    }
+    
+    // Test purpose only, the enriched CDRs are written to the same store.
+    void setObjectStore(ObjectStore objectStore) {
+        this.objectStore = objectStore;
+        this.outputSink = new S3OutputSink(objectStore, TARGET_BUCKET_NAME);
+    }
+    
+    // Used by tests, benchmarks and the BackfillRunner.
+    void setOutputSink(OutputSink outputSink) {
+        this.outputSink = outputSink;
+    }
+    
+    OutputSink getOutputSink() {
+        return outputSink;
+    }
+    
+    // Test purpose only.
+    void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+    
+    // Test purpose only.
+    void setMaxInFlightBytes(int maxInFlightBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+    
+    // Test purpose only.
+    void setOutputCompression(Compression outputCompression, int level) {
+        this.outputCompression = outputCompression;
+        this.outputCompressionLevel = level;
+    }
+    
+    // Test purpose only.
+    void setKeyTemplate(PartitionKeyTemplate keyTemplate) {
+        this.keyTemplate = keyTemplate;
+        if (batchWriter != null) {
+            batchWriter.setKeyTemplate(keyTemplate);
+        }
+    }
+    
+    // Test purpose only.
+    void setBatchWriter(CDRBatchWriter batchWriter) {
+        this.batchWriter = batchWriter;
+    }
+    
+    // Used by tests and the BackfillRunner.
+    void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+    
+    // Used by tests and the BackfillRunner.
+    void setAggregateStore(CostAggregateStore aggregateStore) {
+        this.aggregateStore = aggregateStore;
+    }
+    
+    // Used by tests and the BackfillRunner.
+    void setMonthlyUsage(MonthlyUsage monthlyUsage) {
+        this.monthlyUsage = monthlyUsage;
+    }
+    
+    // Used by tests and the BackfillRunner.
+    void setPriceSnapshots(PriceHistoryIndex priceSnapshots) {
+        this.priceSnapshots = priceSnapshots;
+        if (priceCatalog != null) {
+            priceCatalog.setSnapshots(priceSnapshots);
+        }
+    }
+    
+    // Used by tests and the BackfillRunner, lets the stages run without an invocation.
+    void setContext(Context context) {
+        this.lambdaContext = context;
+        this.log = new Log(context.getLogger());
     }
 
     @Override
     public String handleRequest(S3Event event, Context context) {
-        context.getLogger().log("Received event: " + event.toJson());
-     
+        long started = startInvocation(context);
+        log.debug(() -> "Received event: " + event.toJson());
+        
+        InvocationSummary summary = new InvocationSummary();
+        for (RecordOutcome outcome : processRecords(event.getRecords()))
+        {
+        	summary.add(outcome);
+        }
+        
+        String result;
+        try
+        {
+        	CDRBatchWriter.Results batches = flushBatches();
+        	int failed = summary.count(RecordOutcome.Status.FAILED);
+        	
+        	//one state file per day with the cost totals of the invocation, retries overwrite it
+        	if (failed == 0 && batches.getFailedKeys().isEmpty())
+        	{
+        		writeAggregates(summary.getOutcomes(), batches, context.getAwsRequestId());
+        	}
+        	else if (duplicateFilter != null)
+        	{
+        		//the written CDRs are skipped by the retry, which keeps the request id
+        		writeAggregates(summary.getOutcomes(), batches, context.getAwsRequestId() + '-' + UUID.randomUUID());
+        	}
+        	
+        	log.debug(() -> "Price cache statistics: " + PRICE_CACHE);
+        	result = summary.toJson();
+        	final String summaryJson = result;
+        	log.info(() -> "Invocation summary: " + summaryJson);
+        	
+        	//fail the invocation so that the event is retried, the CDRs that were written keep their ids
+        	//in the duplicate filter so the retry only enriches the others
+        	if (failed > 0)
+        	{
+        		throw new IllegalStateException(failed + " of " + summary.getOutcomes().size() + " records failed: " + result);
+        	}
+        	if (!batches.getFailedKeys().isEmpty())
+        	{
+        		throw new IllegalStateException("Unable to upload CDR batches " + batches.getFailedKeys());
+        	}
+        }
+        finally
+        {
+        	finishInvocation(context, started);
+        	persistDuplicateFilter();
+        }
+        return result;
+    }
+    
+    /**
+     * This method starts the logging and metrics of an invocation
+     * @param context
+     * @return the start of the invocation, to pass to finishInvocation
+     */
+    long startInvocation(Context context)
+    {
+        long started = InvocationMetrics.start();
+        this.metrics = new InvocationMetrics();
+        this.partitionManifest = keyTemplate == null ? null : new PartitionManifest();
         this.lambdaContext = context;
-       
-     
-        // Get the object from the event 
-        String bucket = event.getRecords().get(0).getS3().getBucket().getName();
-        String key = event.getRecords().get(0).getS3().getObject().getKey();
+        this.log = new Log(context.getLogger());
+        return started;
+    }
+    
+    /**
+     * This method emits the metrics of the invocation
+     * @param context
+     * @param started
+     */
+    void finishInvocation(Context context, long started)
+    {
+        metrics.record(InvocationMetrics.Stage.INVOCATION, started);
+        emitMetrics(context);
+        log.debug(() -> "Output throughput: " + outputSink);
+    }
+    
+    /**
+     * This method enriches the objects of the given notification records. The transfers and the enrichment
+     * of several objects overlap and no more than maxInFlight objects, or maxInFlightBytes bytes by the sizes in
+     * the records, are held at once. An object larger than maxInFlightBytes is processed alone.
+     * @param records
+     * @return the outcome of every record, in the order of the records
+     */
+    List<RecordOutcome> processRecords(List<S3EventNotificationRecord> records)
+    {
+        List<CompletableFuture<RecordOutcome>> futures = new ArrayList<CompletableFuture<RecordOutcome>>();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        Semaphore inFlightBytes = new Semaphore(maxInFlightBytes);
+        for (S3EventNotificationRecord record : records)
+        {
+        	final String bucket = record.getS3().getBucket().getName();
+        	final String key = record.getS3().getObject().getKey();
+        	final int bytes = inFlightBytes(record);
+        	try
+        	{
+        		inFlight.acquire();
+        	}
+        	catch (InterruptedException e)
+        	{
+        		Thread.currentThread().interrupt();
+        		futures.add(CompletableFuture.completedFuture(RecordOutcome.failed(bucket, key, "Interrupted")));
+        		continue;
+        	}
+        	try
+        	{
+        		inFlightBytes.acquire(bytes);
+        	}
+        	catch (InterruptedException e)
+        	{
+        		inFlight.release();
+        		Thread.currentThread().interrupt();
+        		futures.add(CompletableFuture.completedFuture(RecordOutcome.failed(bucket, key, "Interrupted")));
+        		continue;
+        	}
+        	CompletableFuture<RecordOutcome> future = processRecordAsync(bucket, key);
+        	future.whenComplete((outcome, e) -> {
+        		inFlightBytes.release(bytes);
+        		inFlight.release();
+        	});
+        	futures.add(future);
+        }
         
+        List<RecordOutcome> outcomes = new ArrayList<RecordOutcome>();
+        for (int i = 0; i < futures.size(); i++)
+        {
+        	S3EventNotificationRecord record = records.get(i);
+        	RecordOutcome outcome;
+        	try
+        	{
+        		outcome = futures.get(i).get();
+        	}
+        	catch (InterruptedException e)
+        	{
+        		Thread.currentThread().interrupt();
+        		outcome = RecordOutcome.failed(record.getS3().getBucket().getName(),
+        				record.getS3().getObject().getKey(), "Interrupted");
+        	}
+        	catch (ExecutionException e)
+        	{
+        		outcome = RecordOutcome.failed(record.getS3().getBucket().getName(),
+        				record.getS3().getObject().getKey(), String.valueOf(e.getCause()));
+        	}
+        	//one structured line per record
+        	final RecordOutcome completed = outcome;
+        	log.info(() -> "Record outcome: " + completed.toJson());
+        	outcomes.add(outcome);
+        	metrics.addRecord(outcome.getCdrCount());
+        }
+        return outcomes;
+    }
+    
+    /**
+     * This method writes out the CDRs still buffered by the batch writer, and releases the ids of the CDRs
+     * that could not be uploaded so they are enriched again
+     * @return what the batches flushed by the invocation held, empty without batching
+     */
+    CDRBatchWriter.Results flushBatches()
+    {
+        try
+        {
+        	if (batchWriter == null)
+        	{
+        		return new CDRBatchWriter.Results();
+        	}
+        	batchWriter.flushAll();
+        	CDRBatchWriter.Results batches = batchWriter.takeResults();
+        	if (duplicateFilter != null)
+        	{
+        		duplicateFilter.forget(batches.getUnwrittenClaims());
+        	}
+        	return batches;
+        }
+        finally
+        {
+        	//the objects that were written are listed even if a batch failed
+        	writePartitionManifest();
+        }
+    }
+    
+    /**
+     * This method writes the partitions of the objects written by the invocation to the output sink,
+     * as MANIFEST_PREFIX/yyyy/MM/dd/requestId.json. The objects are in place already, so a manifest
+     * that cannot be written is only logged.
+     */
+    private void writePartitionManifest()
+    {
+        PartitionManifest manifest = partitionManifest;
+        if (manifest == null || manifest.isEmpty())
+        {
+        	return;
+        }
+        partitionManifest = new PartitionManifest();
+        
+        String requestId = lambdaContext.getAwsRequestId();
+        String key = MANIFEST_PREFIX + '/' + MANIFEST_DATE_FORMAT.format(Instant.now()) + '/' + requestId + ".json";
+        byte[] json = manifest.toJson(requestId).toString().getBytes(StandardCharsets.UTF_8);
+        OutputBuffer content = new OutputBuffer(json.length);
+        content.write(json, 0, json.length);
+        try
+        {
+        	outputSink.write(key, content, OutputFormat.JSON.getContentType(), null).join();
+        	log.debug(() -> "Wrote the partition manifest " + key + " with " + manifest.size() + " partitions");
+        }
+        catch (CompletionException e)
+        {
+        	log.error("Unable to write the partition manifest " + key, e.getCause());
+        }
+    }
+    
+    // Used by the SQSBatchHandler.
+    boolean isDeduplicating()
+    {
+        return duplicateFilter != null;
+    }
+    
+    /**
+     * This method enriches all the CDRs of the given S3 object and uploads them to the target bucket.
+     * It is thread safe, the BackfillRunner calls it for many objects at once.
+     * @param bucket
+     * @param key
+     * @return
+     */
+    RecordOutcome processRecord(String bucket, String key)
+    {
+        return processRecordAsync(bucket, key).join();
+    }
+    
+    /**
+     * This method downloads the given S3 object, enriches its CDRs on a record worker and uploads them,
+     * the returned future completes when the upload does. It never completes exceptionally.
+     * @param bucket
+     * @param key
+     * @return
+     */
+    CompletableFuture<RecordOutcome> processRecordAsync(String bucket, String key)
+    {
         //only process Amazon Chime Voice Connector call records
-        if (key.contains("Amazon-Chime-Voice-Connector-CDRs"))
+        if (!key.contains("Amazon-Chime-Voice-Connector-CDRs"))
         {
-	        try {
-	        	
-	            S3Object s3Object = s3.getObject(new GetObjectRequest(bucket, key));
-	            String contentType = s3Object.getObjectMetadata().getContentType();
-	            lambdaContext.getLogger().log("Retrieved notification for object with key " + key + " CONTENT TYPE: " + contentType);
-	           
-	            List<JSONObject> cdrRecords = parseCDRRecord(s3Object);
-	            
-	            if (cdrRecords != null)
-	            {
-	            	for(JSONObject crdRecord : cdrRecords)
-	            	{
-	            		//The usage type contains source and destination country, as well as the call type and unit
-	            		//i.e. USE1-US-PA-outbound-minutes
-	            		String usage_type = crdRecord.getString(CDR_USAGE_TYPE);
-	            		
-	            		if (usage_type != null)
-	            		{
-		            		//get the cost
-		            		JSONObject enrichedCDR = addCostToCDR( crdRecord, usage_type);
-		            		
-		            		//check to see if desired output is in CSV
-		            		if (OUTPUT_FORMAT != null && OUTPUT_FORMAT.equalsIgnoreCase("CSV"))
-		            		{
-		            			File csvFile = convertJsonToCSV(enrichedCDR, key);
-		            			if (csvFile != null)
-		            			{
-		            				String csvKey = key + ".csv";
-		            				uploadCSVFIleToS3(csvFile, csvKey);
-		            			}
-		            			else
-		            			{
-		            				lambdaContext.getLogger().log("CSV File not generated");
-		            			}
-		            		
-		            			
-		            		}
-		            		else
-		            		{
-		            			uploadCDRToS3(enrichedCDR, key);
-		            		}
-		            		
-		            		
-		            		return String.valueOf(enrichedCDR.getFloat("CostUSD"));
-		            		
-		            		//lambdaContext.getLogger().log("cost of service is " + cost);
-	            		}
-	            		else
-	            		{
-	            			lambdaContext.getLogger().log("Unable to get the usage type for CDR record");
-	            			return null;
-	            		}
-	            	}
-	            }
-	           
-	            
-	            return null;
-	        } catch (Exception e) {
-	            e.printStackTrace();
-	            lambdaContext.getLogger().log(String.format(
-	                "Error getting object %s from bucket %s. Make sure they exist and"
-	                + " your bucket is in the same region as this function.", key, bucket));
-	            throw e;
-	        }
+        	log.warn("Incoming Event object " + key + " is not an Amazon Chime Voice Connector CDR,"
+        			+ " CDR Records must be in a Amazon-Chime-Voice-Connector-CDRs directory" );
+        	return CompletableFuture.completedFuture(
+        			RecordOutcome.skipped(bucket, key, "Not an Amazon Chime Voice Connector CDR"));
+        }
+        
+        RecordOutcome outcome = new RecordOutcome(bucket, key);
+        long readStarted = InvocationMetrics.start();
+        return objectStore.get(bucket, key)
+        		.whenComplete((s3Object, e) -> metrics.record(InvocationMetrics.Stage.S3_READ, readStarted))
+        		.thenComposeAsync(s3Object -> enrichRecord(s3Object, bucket, key, outcome), RECORD_EXECUTOR)
+        		.exceptionally(e -> failed(outcome, e instanceof CompletionException && e.getCause() != null ? e.getCause() : e))
+        		.thenApply(completed -> {
+        			//a failed object is enriched again, so its CDRs must not be taken for duplicates
+        			if (completed.getStatus() == RecordOutcome.Status.FAILED && duplicateFilter != null)
+        			{
+        				duplicateFilter.forget(completed.getClaimedIds());
+        			}
+        			return completed;
+        		});
+    }
+    
+    private RecordOutcome failed(RecordOutcome outcome, Throwable e)
+    {
+        log.error(String.format(
+            "Error getting object %s from bucket %s. Make sure they exist and"
+            + " your bucket is in the same region as this function.", outcome.getKey(), outcome.getBucket()), e);
+        outcome.setStatus(RecordOutcome.Status.FAILED);
+        outcome.setMessage(e.toString());
+        return outcome;
+    }
+    
+    private CompletableFuture<RecordOutcome> enrichRecord(S3Object s3Object, String bucket, String key, RecordOutcome outcome)
+    {
+        try {
+            String contentType = s3Object.getObjectMetadata().getContentType();
+            log.debug(() -> "Retrieved notification for object with key " + key + " CONTENT TYPE: " + contentType);
+            
+            //the enriched CDRs of a compressed object are written as set by OUTPUT_COMPRESSION
+            String outputKey = Compression.stripExtension(key);
+           
+            //JSON output is enriched from the raw bytes of each CDR, without a JSONObject
+            if (OUTPUT_FORMAT == OutputFormat.JSON)
+            {
+            	return enrichSelectively(s3Object, outputKey, outcome);
+            }
+            
+            List<JSONObject> enrichedCDRs = new ArrayList<JSONObject>();
+            //with batching the CDRs of the object are committed to the batches once all of them are enriched
+            CDRBatchWriter.Staging staging = batchWriter == null ? null : batchWriter.stage(outcome, aggregateStore != null);
+            
+            //CDRs are read from the stream and enriched one at a time
+            CDRStreamReader reader = new CDRStreamReader(openContent(s3Object));
+            try
+            {
+            	while (reader.advance())
+            	{
+            		long parseStarted = InvocationMetrics.start();
+            		JSONObject crdRecord = reader.getObject();
+            		metrics.record(InvocationMetrics.Stage.PARSE, parseStarted);
+            		
+            		//The usage type contains source and destination country, as well as the call type and unit
+            		//i.e. USE1-US-PA-outbound-minutes
+            		String usage_type = crdRecord.optString(CDR_USAGE_TYPE, null);
+            		
+            		String cdrId = deduplicationId(crdRecord);
+            		if (usage_type != null && isDuplicate(cdrId, outcome))
+            		{
+            			continue;
+            		}
+            		if (usage_type != null)
+            		{
+            			//get the cost
+            			JSONObject enrichedCDR = addCostToCDR( crdRecord, usage_type);
+            			long costMicros = CostEngine.costMicros(enrichedCDR);
+            			if (staging != null)
+            			{
+            				staging.add(enrichedCDR, costMicros, claimedId(cdrId));
+            			}
+            			else
+            			{
+            				enrichedCDRs.add(enrichedCDR);
+            				aggregate(outcome, enrichedCDR, usage_type, costMicros);
+            			}
+            			if (costMicros != CostEngine.NOT_PRICED)
+            			{
+            				StartupMetrics.firstEnrichedCDR(log.getLogger());
+            			}
+            			outcome.addCDR(costMicros);
+            		}
+            		else
+            		{
+            			log.warn("Unable to get the usage type for CDR record");
+            			outcome.addCDR(CostEngine.NOT_PRICED);
+            		}
+            	}
+            }
+            finally
+            {
+            	// To ensure that the network connection doesn't remain open, close any open input streams.
+            	s3Object.close();
+            }
+            
+            if (staging != null && !staging.isEmpty())
+            {
+            	//the CDRs are uploaded with the batches of their Voice Connector, which keep their ids from here
+            	outcome.clearClaimedIds();
+            	batchWriter.commit(staging);
+            	outcome.setStatus(RecordOutcome.Status.ENRICHED);
+            	return CompletableFuture.completedFuture(outcome);
+            }
+            
+            if (enrichedCDRs.isEmpty())
+            {
+            	outcome.setStatus(RecordOutcome.Status.SKIPPED);
+            	outcome.setMessage(outcome.getDuplicateCount() > 0 ? DUPLICATE_MESSAGE : "No CDR with a usage type found");
+            	return CompletableFuture.completedFuture(outcome);
+            }
+            
+            CompletableFuture<Boolean> uploaded;
+            if (keyTemplate == null)
+            {
+            	uploaded = uploadEnriched(enrichedCDRs, outputKey);
+            }
+            else
+            {
+            	//one object per partition, named after the CDR object
+            	Map<String, List<JSONObject>> partitions = new LinkedHashMap<String, List<JSONObject>>();
+            	for (JSONObject enrichedCDR : enrichedCDRs)
+            	{
+            		partitions.computeIfAbsent(keyTemplate.render(enrichedCDR), partition -> new ArrayList<JSONObject>())
+            				.add(enrichedCDR);
+            	}
+            	List<CompletableFuture<Boolean>> uploads = new ArrayList<CompletableFuture<Boolean>>();
+            	for (Map.Entry<String, List<JSONObject>> partition : partitions.entrySet())
+            	{
+            		uploads.add(uploadEnriched(partition.getValue(), partitionedKey(partition.getKey(), outputKey)));
+            	}
+            	uploaded = allUploaded(uploads);
+            }
+            
+            return uploaded.thenApply(done -> uploaded(outcome, done));
+        } catch (Exception e) {
+            return CompletableFuture.completedFuture(failed(outcome, e));
+        }
+    }
+    
+    /**
+     * This method uploads the given CDRs in the output format
+     * @param enrichedCDRs
+     * @param key the key of the JSON object, the CSV and Parquet objects add their extension
+     * @return true once uploaded, false if the upload failed
+     */
+    private CompletableFuture<Boolean> uploadEnriched(List<JSONObject> enrichedCDRs, String key)
+    {
+        //check to see if desired output is in CSV or Parquet
+        if (OUTPUT_FORMAT == OutputFormat.CSV)
+        {
+        	String csvKey = key + ".csv";
+        	return uploadCSVToS3(enrichedCDRs, csvKey);
+        }
+        else if (OUTPUT_FORMAT == OutputFormat.PARQUET)
+        {
+        	String parquetKey = key + ".parquet";
+        	return uploadParquetToS3(enrichedCDRs, parquetKey);
+        }
+        return uploadCDRToS3(enrichedCDRs, key);
+    }
+    
+    /**
+     * @param partition rendered with the key template
+     * @param key the key of the CDR object
+     * @return the key of the enriched object of the partition, the file name of the CDR object in the partition
+     */
+    private static String partitionedKey(String partition, String key)
+    {
+        String fileName = key.substring(key.lastIndexOf('/') + 1);
+        return partition.isEmpty() ? fileName : partition + '/' + fileName;
+    }
+    
+    private static CompletableFuture<Boolean> allUploaded(List<CompletableFuture<Boolean>> uploads)
+    {
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture<?>[0]))
+        		.thenApply(done -> uploads.stream().allMatch(CompletableFuture::join));
+    }
+    
+    /**
+     * @param partitions the outputs of the partitions of an object
+     * @param partition
+     * @return the output of the partition, opened on its first CDR
+     * @throws IOException
+     */
+    private CompressingOutput partitionOutput(Map<String, CompressingOutput> partitions, String partition) throws IOException
+    {
+        CompressingOutput output = partitions.get(partition);
+        if (output == null)
+        {
+        	output = openOutput(OutputFormat.JSON.getContentType());
+        	partitions.put(partition, output);
+        }
+        return output;
+    }
+    
+    private static RecordOutcome uploaded(RecordOutcome outcome, boolean uploaded)
+    {
+        if (uploaded)
+        {
+        	outcome.setStatus(RecordOutcome.Status.ENRICHED);
         }
         else
         {
-        	lambdaContext.getLogger().log("Incoming Event object is not an Amazon Chime Voice Connector CDR" );
-        	lambdaContext.getLogger().log("CDR Records must be in a Amazon-Chime-Voice-Connector-CDRs directory" );
-        	return null;
+        	outcome.setStatus(RecordOutcome.Status.FAILED);
+        	outcome.setMessage("Unable to upload the enriched CDRs");
         }
-      
+        return outcome;
     }
     
     /**
-     * This function converst the enriched CDR from JSON to CSV format
-     * @param enrichedCDR
+     * This method enriches the CDRs of the given S3 object by scanning only the fields pricing needs
+     * and splicing the price and cost into the JSON output, all the other fields are copied verbatim.
+     * CDRs that cannot be scanned, or that already hold a price, go through the JSONObject path.
+     * @param s3Object
+     * @param key
+     * @param outcome
+     * @return the outcome, once the enriched CDRs are uploaded
+     * @throws IOException
      */
-    private File convertJsonToCSV(JSONObject enrichedCDR, String key )
+    private CompletableFuture<RecordOutcome> enrichSelectively(S3Object s3Object, String key, RecordOutcome outcome) throws IOException
     {
-    	lambdaContext.getLogger().log("Converting enriched CDR to CSV format");
-    	
-    	JSONArray jsonArray = new JSONArray();
-    	jsonArray.put(enrichedCDR);
-    	
-    	//convert file to a comma deliminated file in string
-    	String csv = CDL.toString(jsonArray);
-    	
-    	lambdaContext.getLogger().log("CSV data is " + csv);
+    	//when batching the buffer holds one enriched CDR at a time, the batches compress them
+    	OutputBuffer staged = batchWriter == null ? null : OutputBuffer.acquire();
+    	//otherwise the CDRs of the object, or of every partition with a key template, are compressed as they are
+    	//written and the upload releases the output
+    	CompressingOutput output = null;
+    	Map<String, CompressingOutput> partitions = new LinkedHashMap<String, CompressingOutput>();
+    	try
+    	{
+    		CDRFieldScanner scanner = new CDRFieldScanner();
+    		int writtenCDRs = 0;
+    		//with batching the CDRs of the object are committed to the batches once all of them are enriched
+    		CDRBatchWriter.Staging staging = batchWriter == null ? null : batchWriter.stage(outcome, aggregateStore != null);
+    		
+    		//a key template with fields the scanner does not read needs the JSONObject of every CDR
+    		boolean scannable = keyTemplate == null || CDRFieldScanner.FIELDS.containsAll(keyTemplate.getFields());
+    		
+    		CDRStreamReader reader = new CDRStreamReader(openContent(s3Object));
+    		try
+    		{
+    			while (reader.advance())
+    			{
+    				JSONObject crdRecord = null;
+    				String usage_type;
+    				long parseStarted = InvocationMetrics.start();
+    				boolean scanned = scannable && scanner.scan(reader.getBuffer(), reader.getLength()) && !scanner.isEnriched();
+    				if (scanned)
+    				{
+    					usage_type = scanner.getUsageType();
+    				}
+    				else
+    				{
+    					crdRecord = reader.getObject();
+    					usage_type = crdRecord.optString(CDR_USAGE_TYPE, null);
+    				}
+    				metrics.record(InvocationMetrics.Stage.PARSE, parseStarted);
+    				
+    				if (usage_type == null)
+    				{
+    					log.warn("Unable to get the usage type for CDR record");
+    					outcome.addCDR(CostEngine.NOT_PRICED);
+    					continue;
+    				}
+    				
+    				//redelivered CDRs are skipped before pricing
+    				String cdrId = scanned ? scanner.getDeduplicationId() : deduplicationId(crdRecord);
+    				if (isDuplicate(cdrId, outcome))
+    				{
+    					continue;
+    				}
+    				
+    				String partition = keyTemplate == null ? null
+    						: scanned ? keyTemplate.render(scanner::getField) : keyTemplate.render(crdRecord);
+    				
+    				OutputStream target;
+    				if (staged != null)
+    				{
+    					staged.reset();
+    					target = staged;
+    				}
+    				else
+    				{
+    					CompressingOutput cdrOutput;
+    					if (partition != null)
+    					{
+    						cdrOutput = partitionOutput(partitions, partition);
+    					}
+    					else
+    					{
+    						if (output == null)
+    						{
+    							output = openOutput(OutputFormat.JSON.getContentType());
+    						}
+    						cdrOutput = output;
+    					}
+    					if (cdrOutput.getWrittenBytes() > 0)
+    					{
+    						cdrOutput.write('\n');
+    					}
+    					target = cdrOutput;
+    				}
+    				
+    				long costMicros;
+    				if (scanned)
+    				{
+    					PriceTierTable prices = resolvePrice(usage_type, scanner.getStartTimeEpochSeconds());
+    					if (prices == null)
+    					{
+    						costMicros = CostEngine.NOT_PRICED;
+    						long serializeStarted = InvocationMetrics.start();
+    						scanner.writeUnchanged(target);
+    						metrics.record(InvocationMetrics.Stage.SERIALIZE, serializeStarted);
+    					}
+    					else
+    					{
+    						long costStarted = InvocationMetrics.start();
+    						long billableSeconds = scanner.getBillableSeconds();
+    						long usageSeconds = usageBefore(prices, scanner.getVoiceConnectorId(), usage_type,
+    								scanner.getStartTimeEpochSeconds(), billableSeconds);
+    						costMicros = prices.costMicros(usageSeconds, billableSeconds);
+    						metrics.record(InvocationMetrics.Stage.COST, costStarted);
+    						long serializeStarted = InvocationMetrics.start();
+    						scanner.writeEnriched(target, prices.tierAt(usageSeconds), costMicros, isProvisional(prices));
+    						metrics.record(InvocationMetrics.Stage.SERIALIZE, serializeStarted);
+    						if (aggregateStore != null && staging == null)
+    						{
+    							outcome.getAggregate().add(scanner.getVoiceConnectorId(), usage_type, scanner.getDirection(),
+    									scanner.getStartTimeEpochSeconds(), billableSeconds, costMicros);
+    						}
+    					}
+    					if (staging != null)
+    					{
+    						staging.addScanned(partition, scanner, costMicros, staged.getBuffer(), staged.size(), claimedId(cdrId));
+    					}
+    				}
+    				else
+    				{
+    					JSONObject enrichedCDR = addCostToCDR(crdRecord, usage_type);
+    					costMicros = CostEngine.costMicros(enrichedCDR);
+    					if (staging != null)
+    					{
+    						staging.add(enrichedCDR, costMicros, claimedId(cdrId));
+    					}
+    					else
+    					{
+    						aggregate(outcome, enrichedCDR, usage_type, costMicros);
+    						target.write(enrichedCDR.toString().getBytes(StandardCharsets.UTF_8));
+    					}
+    				}
+    				if (costMicros != CostEngine.NOT_PRICED)
+    				{
+    					StartupMetrics.firstEnrichedCDR(log.getLogger());
+    				}
+    				outcome.addCDR(costMicros);
+    				writtenCDRs++;
+    			}
+    		}
+    		finally
+    		{
+    			// To ensure that the network connection doesn't remain open, close any open input streams.
+    			s3Object.close();
+    		}
+    		
+    		if (writtenCDRs == 0)
+    		{
+    			outcome.setStatus(RecordOutcome.Status.SKIPPED);
+    			outcome.setMessage(outcome.getDuplicateCount() > 0 ? DUPLICATE_MESSAGE : "No CDR with a usage type found");
+    		}
+    		else if (staging != null)
+    		{
+    			//the CDRs are uploaded with the batches of their Voice Connector, which keep their ids from here
+    			outcome.clearClaimedIds();
+    			batchWriter.commit(staging);
+    			outcome.setStatus(RecordOutcome.Status.ENRICHED);
+    		}
+    		else if (keyTemplate == null)
+    		{
+    			log.debug(() -> "Uploading JSON file to S3 to bucket " + TARGET_BUCKET_NAME + " with key " + key);
+    			CompletableFuture<Boolean> upload = uploadAsync(output, key, OutputFormat.JSON.getContentType());
+    			output = null;
+    			return upload.thenApply(uploaded -> uploaded(outcome, uploaded));
+    		}
+    		else
+    		{
+    			List<CompletableFuture<Boolean>> uploads = new ArrayList<CompletableFuture<Boolean>>();
+    			Iterator<Map.Entry<String, CompressingOutput>> partitionOutputs = partitions.entrySet().iterator();
+    			while (partitionOutputs.hasNext())
+    			{
+    				Map.Entry<String, CompressingOutput> partition = partitionOutputs.next();
+    				partitionOutputs.remove();
+    				uploads.add(uploadAsync(partition.getValue(), partitionedKey(partition.getKey(), key),
+    						OutputFormat.JSON.getContentType()));
+    			}
+    			return allUploaded(uploads).thenApply(uploaded -> uploaded(outcome, uploaded));
+    		}
+    		return CompletableFuture.completedFuture(outcome);
+    	}
+    	finally
+    	{
+    		//only the outputs that were not handed to an upload are left
+    		if (staged != null)
+    		{
+    			staged.release();
+    		}
+    		if (output != null)
+    		{
+    			output.release();
+    		}
+    		for (CompressingOutput partition : partitions.values())
+    		{
+    			partition.release();
+    		}
+    	}
+    }
+    
+    /**
+     * This method records the id of the CDR with the duplicate filter
+     * @param cdrId the TransactionId or CallId
+     * @param outcome
+     * @return true if the CDR was enriched before and must be skipped
+     */
+    private boolean isDuplicate(String cdrId, RecordOutcome outcome)
+    {
+    	if (duplicateFilter == null || cdrId == null)
+    	{
+    		return false;
+    	}
+    	if (duplicateFilter.markIfAbsent(cdrId))
+    	{
+    		outcome.addClaimedId(cdrId);
+    		return false;
+    	}
+    	log.debug(() -> "Skipping duplicate CDR " + cdrId);
+    	outcome.addDuplicate();
+    	return true;
+    }
+    
+    /**
+     * @param cdrRecord
+     * @return the TransactionId, or the CallId for CDRs without one
+     */
+    private static String deduplicationId(JSONObject cdrRecord)
+    {
+    	String id = cdrRecord.optString("TransactionId", null);
+    	return id != null ? id : cdrRecord.optString("CallId", null);
+    }
+    
+    /**
+     * @param cdrId the id of a CDR that is not a duplicate
+     * @return the id the duplicate filter recorded for the CDR, null without a duplicate filter
+     */
+    private String claimedId(String cdrId)
+    {
+    	return duplicateFilter == null ? null : cdrId;
+    }
+    
+    /**
+     * This method writes the metrics of the invocation as one CloudWatch embedded metric format line.
+     * The line bypasses the log level, CloudWatch only extracts the metrics from raw JSON lines.
+     * @param context
+     */
+    private void emitMetrics(Context context)
+    {
+    	if (METRICS_ENABLED)
+    	{
+    		context.getLogger().log(metrics.toEmf(METRICS_NAMESPACE, context.getFunctionName(),
+    				System.currentTimeMillis()).toString());
+    	}
+    }
+    
+    /**
+     * This method saves the duplicate filter to its state file, if it has one
+     */
+    void persistDuplicateFilter()
+    {
+    	if (duplicateFilter != null && duplicateFilter.isPersistent())
+    	{
+    		try
+    		{
+    			duplicateFilter.persist();
+    		}
+    		catch (IOException e)
+    		{
+    			log.warn("Unable to save the deduplication state " + e.getMessage());
+    		}
+    	}
+    }
+    
+    /**
+     * This method adds a priced CDR to the cost totals of its object when cost aggregation is enabled
+     * @param outcome
+     * @param cdrRecord
+     * @param usage_type
+     * @param costMicros
+     */
+    private void aggregate(RecordOutcome outcome, JSONObject cdrRecord, String usage_type, long costMicros)
+    {
+    	if (aggregateStore != null && costMicros != CostEngine.NOT_PRICED)
+    	{
+    		outcome.getAggregate().add(cdrRecord.optString("VoiceConnectorId", null), usage_type,
+    				cdrRecord.optString("Direction", null), cdrRecord.optLong("StartTimeEpochSeconds", 0),
+    				CostEngine.billableSeconds(cdrRecord), costMicros);
+    	}
+    }
+    
+    /**
+     * This method merges the cost totals of the CDRs the given records wrote and stores them when cost
+     * aggregation is enabled. With a duplicate filter the written CDRs are never enriched again, so totals
+     * that cannot be uploaded are kept and stored by the next invocation instead of failing this one.
+     * @param outcomes
+     * @param batches what the flushed batches held
+     * @param writerId unique to the invocation, i.e. the request id
+     * @throws IllegalStateException if the totals could not be stored and there is no duplicate filter
+     */
+    void writeAggregates(Collection<RecordOutcome> outcomes, CDRBatchWriter.Results batches, String writerId)
+    {
+    	if (aggregateStore == null)
+    	{
+    		return;
+    	}
+    	CostAggregate aggregate = new CostAggregate();
+    	aggregate.merge(unstoredCosts);
+    	unstoredCosts = new CostAggregate();
+    	for (RecordOutcome outcome : outcomes)
+    	{
+    		//the CDRs of a failed object were not written, apart from those in uploaded batches
+    		if (outcome.getStatus() != RecordOutcome.Status.FAILED)
+    		{
+    			aggregate.merge(outcome.getAggregate());
+    		}
+    		CostAggregate batched = batches.getWrittenCosts(outcome);
+    		if (batched != null)
+    		{
+    			aggregate.merge(batched);
+    		}
+    	}
+    	if (aggregate.isEmpty())
+    	{
+    		return;
+    	}
     	
-    	ByteArrayOutputStream stream = new ByteArrayOutputStream();
-    	FileWriter filewriter = null;
+    	CostAggregate unstored = new CostAggregate();
     	try
     	{
-			stream.write(key.getBytes());
-	
-			
-			String s3ObjectName = key.substring(key.lastIndexOf('/') + 1);
-			//remove the .json extension
-			String csvFileName = FilenameUtils.removeExtension(s3ObjectName);
-			System.out.println("Removing original extension and adding new csv extension");
-			File csvFile = new File("/tmp/"+csvFileName +".csv");
-			
-			filewriter = new FileWriter(csvFile);
-		
-			filewriter.write(csv);
-		
-			filewriter.close();
-		
-			 
-			return csvFile;
-    	}
-	
-    	catch(IOException ioe)
+    		for (String failedDay : aggregateStore.write(aggregate, writerId))
+    		{
+    			unstored.merge(aggregate.forPeriod(failedDay));
+    		}
+    	}
+    	catch (IOException e)
     	{
-    		System.out.println("IO Excpetion while writing CSV file ");
-    		System.out.println(ioe.getMessage());
-    		
+    		unstored = aggregate;
     	}
-    	finally {
-			 
-            try {
-            	
-            	
-            	if (filewriter != null )
-            	{
-            		lambdaContext.getLogger().log("csv file writer: Closing file stream ");
-            		filewriter.close();
-            	}
-            	
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-               
-            }
-		}
-       return null;
-       
-   
+    	if (unstored.isEmpty())
+    	{
+    		log.debug(() -> "Stored cost aggregates with " + aggregate.size() + " groups");
+    		return;
+    	}
+    	if (duplicateFilter == null)
+    	{
+    		throw new IllegalStateException("Unable to upload cost aggregates of " + unstored.getPeriods());
+    	}
+    	log.error("Unable to upload cost aggregates of " + unstored.getPeriods() + ", they are stored by the next invocation");
+    	unstoredCosts = unstored;
+    }
+    
+    /**
+     * @param record
+     * @return the bytes the object of the record takes from maxInFlightBytes, at most all of them
+     */
+    private int inFlightBytes(S3EventNotificationRecord record)
+    {
+    	Long size = record.getS3().getObject().getSizeAsLong();
+    	return size == null ? 0 : (int) Math.min(Math.max(size, 0), maxInFlightBytes);
+    }
+    
+    /**
+     * @return MAX_IN_FLIGHT_BYTES, by default a quarter of the maximum heap
+     */
+    private static int maxInFlightBytes()
+    {
+    	String value = System.getenv("MAX_IN_FLIGHT_BYTES");
+    	if (value != null && !value.trim().isEmpty())
+    	{
+    		try
+    		{
+    			return (int) Math.min(Integer.MAX_VALUE, Math.max(1, Long.parseLong(value.trim())));
+    		}
+    		catch (NumberFormatException e)
+    		{
+    			// keep the default
+    		}
+    	}
+    	return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4);
+    }
+    
+    /**
+     * @return MAX_IN_FLIGHT, by default twice the number of concurrent transfers
+     */
+    private static int maxInFlight()
+    {
+    	String value = System.getenv("MAX_IN_FLIGHT");
+    	if (value != null && !value.trim().isEmpty())
+    	{
+    		try
+    		{
+    			return Math.max(1, Integer.parseInt(value.trim()));
+    		}
+    		catch (NumberFormatException e)
+    		{
+    			// keep the default
+    		}
+    	}
+    	return 2 * S3ObjectStore.ioConcurrency();
+    }
+    
+    /**
+     * Creates the record executor with RECORD_CONCURRENCY threads (default 4)
+     * @return
+     */
+    private static ExecutorService createRecordExecutor()
+    {
+    	int concurrency = DEFAULT_RECORD_CONCURRENCY;
+    	String value = System.getenv("RECORD_CONCURRENCY");
+    	if (value != null && !value.trim().isEmpty())
+    	{
+    		try
+    		{
+    			concurrency = Math.max(1, Integer.parseInt(value.trim()));
+    		}
+    		catch (NumberFormatException e)
+    		{
+    			// keep the default
+    		}
+    	}
+    	ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+    			new LinkedBlockingQueue<Runnable>(), runnable -> {
+    				Thread thread = new Thread(runnable, "cdr-record-worker");
+    				thread.setDaemon(true);
+    				return thread;
+    			});
+    	executor.allowCoreThreadTimeOut(true);
+    	return executor;
+    }
+    
+    /**
+     * This function converst the enriched CDRs from JSON to CSV format and writes them to the given output
+     * @param enrichedCDRs
+     * @param output
+     */
+    private void convertJsonToCSV(List<JSONObject> enrichedCDRs, OutputStream output) throws IOException
+    {
+    	log.debug(() -> "Converting enriched CDR to CSV format");
+    	
+    	//rows are written straight to the output with the columns of the CDR schema version
+    	CSVCDRWriter writer = new CSVCDRWriter(output);
+    	for (JSONObject enrichedCDR : enrichedCDRs)
+    	{
+    		writer.write(enrichedCDR);
+    	}
+    	writer.flush();
     	
+    	log.debug(() -> "CSV data has " + writer.getRowCount() + " rows with schema " + writer.getSchema());
     }
  
     /**
-     * This method calls the AWS API Pricing and enriches the given CDR record with the price
+     * This method enriches the given CDR record with the price per unit and the total cost.
+     * Prices are served from the price catalog when enabled, otherwise from the price cache.
+     * The AWS Pricing API is only called for usage types that neither of them knows.
      * @param usage_type
      * @return
      */
     public JSONObject  addCostToCDR(JSONObject cdrRecord, String usage_type )
     {
     	
-    	lambdaContext.getLogger().log("Getting cost for CDR record with usage type "
+    	//the price in force when the call started
+    	PriceTierTable prices = resolvePrice(usage_type, cdrRecord.optLong("StartTimeEpochSeconds", 0));
+    	if (prices != null)
+    	{
+    		//calcualtes the total cost
+    		calculateCost(cdrRecord, usage_type, prices);
+    	}
+	    	
+    	return cdrRecord;	
+    	
+    }
+    
+    /**
+     * This method returns the price tiers for the given usage type in force at the start of the call,
+     * from the price catalog when enabled, otherwise from the price cache.
+     * @param usage_type
+     * @param startTimeEpochSeconds the start of the call, the current price is used when it is not set
+     * @return the price tiers, or null if the usage type has no price
+     */
+    private PriceTierTable resolvePrice(String usage_type, long startTimeEpochSeconds)
+    {
+    	log.debug(() -> "Getting cost for CDR record with usage type "
     			+ usage_type );
     	
+    	long lookupStarted = InvocationMetrics.start();
+    	metrics.addPriceLookup();
+    	PriceHistory history = null;
+    	if (priceCatalog != null)
+    	{
+    		priceCatalog.refreshIfStale(log.getLogger());
+    		history = priceCatalog.getHistory(usage_type);
+    	}
+    	if (history == null)
+    	{
+    		//fall back to the per usage type lookup
+    		history = PRICE_CACHE.get(usage_type, this::lookupPrice);
+    	}
+    	
+    	PriceTierTable price = null;
+    	if (history != null)
+    	{
+    		price = startTimeEpochSeconds > 0 ? history.at(startTimeEpochSeconds) : history.latest();
+    	}
+    	metrics.record(InvocationMetrics.Stage.PRICE_LOOKUP, lookupStarted);
+    	if (history == null)
+    	{
+    		log.warn("Unable to get the price list for usage type " + usage_type
+    				+ ", please make sure the calling region is valid" );
+    	}
+    	else if (price == null)
+    	{
+    		//the call is older than every known price, see PRICE_SNAPSHOT_PREFIX
+    		log.warn("No price of usage type " + usage_type + " is known at " + Instant.ofEpochSecond(startTimeEpochSeconds)
+    				+ ", the first known price is effective from " + Instant.ofEpochSecond(history.firstEffective()));
+    	}
+    	else if (isProvisional(price) && PROVISIONAL_TIERS_WARNED.add(usage_type))
+    	{
+    		//the tier depends on every call of the month before this one, see BackfillRunner
+    		log.warn("Usage type " + usage_type + " has volume tiers, its CDRs are priced at the first tier and marked "
+    				+ PriceTierTable.PROVISIONAL_TIER_FIELD + " until an ordered backfill prices them");
+    	}
+    	return price;
+    }
+    
+    /**
+     * This method calls the AWS API Pricing and returns the price versions for the given usage type,
+     * merged with the retained price snapshots
+     * @param usage_type
+     * @return the price versions, or null if no price list is found
+     */
+    private PriceHistory lookupPrice(String usage_type)
+    {
     	GetProductsRequest getProductsRequest = new GetProductsRequest();
     	getProductsRequest.setFormatVersion(DEFAULT_FORMAT_VERISION);
     	getProductsRequest.setServiceCode(CHIME_VOICE_CONNECTOR_SERVICE_CODE);
@@ -250,93 +1290,154 @@ public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
     	getProductsRequest.setFilters(filters);
     	
     	//get the API call result
+    	metrics.addPricingCall();
     	GetProductsResult productResult = pricingClient.getProducts(getProductsRequest);
     	
     	
     	List<String> priceList = productResult.getPriceList();
     	
     	
-    	if (priceList == null || priceList.isEmpty())
+    	PriceHistory history = priceSnapshots.get(usage_type);
+    	if (priceList != null)
     	{
-    		lambdaContext.getLogger().log("Unable to get the price list for usage type " + usage_type);
-    		lambdaContext.getLogger().log("Please make sure the calling region is valid" );
+    		log.debug(() -> "Price List is " + priceList.toString());
+    		for(String price: priceList)
+    		{
+    			for (PriceListEntry entry : PriceListEntry.parseTerms(price))
+    			{
+    				if (entry.getFirstDimension() != null)
+    				{
+    					//compiled once here, the table is cached and shared by every CDR of the usage type
+    					history = history.with(PriceHistory.parseEffectiveDate(entry.getEffectiveDate()),
+    							PriceTierTable.compile(entry.getDimensions()));
+    				}
+    			}
+    		}
     	}
-    	else
+    	if (history.isEmpty())
     	{
-    	
-    		lambdaContext.getLogger().log("Price List is " + priceList.toString());
-    		
-	    	for(String price: priceList)
-	    	{
-	    		
-	    		JSONObject jsonPrice = new JSONObject(price);
-	    		
-	    		JSONObject ondemand = (JSONObject) jsonPrice.query("/terms/OnDemand");
-	    		String demandKey = ondemand.keys().next();
-	    		JSONObject pricedemensions = (JSONObject)((JSONObject)ondemand.get(demandKey)).get("priceDimensions");
-	    		String pricedemnsionkey = pricedemensions.keys().next();
-	    		
-	    		JSONObject priceUnit = (JSONObject) ((JSONObject)pricedemensions.get(pricedemnsionkey)).get("pricePerUnit");
-	    		lambdaContext.getLogger().log("price per unit is " + priceUnit.toString());
-	    		
-	    		String priceUSD = (String) priceUnit.get("USD");
-	    		
-	    		//TODO - get the time period to match the CDR record
-	    
-	    		
-	    		cdrRecord.put("PricePerUnitUSD", priceUSD);
-	    		//calcualtes the total cost
-	    		BigDecimal bprice = new BigDecimal(priceUSD);
-	    		calculateCost(cdrRecord, bprice);
-	    		
-	    		
-	    		//jsonPriceList.add(cdrJson);
-	    	}
+    		return null;
     	}
-	    	
-    	return cdrRecord;	
-    	
+    	final PriceHistory found = history;
+    	log.debug(() -> "price versions are " + found);
+    	return history;
     }
     
-    private JSONObject calculateCost(JSONObject cdrRecord, BigDecimal pricePerCall)
+    /**
+     * This method calculates the cost of the call from its billable seconds with fixed-point arithmetic,
+     * at the tiers the monthly usage of its Voice Connector is in
+     * @param cdrRecord
+     * @param usage_type
+     * @param prices
+     * @return
+     */
+    private JSONObject calculateCost(JSONObject cdrRecord, String usage_type, PriceTierTable prices)
     {
-    	lambdaContext.getLogger().log("price per call is " + pricePerCall);
-    	lambdaContext.getLogger().log("Billable duration in minutes is  " + cdrRecord.getFloat("BillableDurationMinutes"));
-    	float cost = cdrRecord.getFloat("BillableDurationMinutes") * pricePerCall.floatValue();
-		
-		lambdaContext.getLogger().log("Cost for the phone call is " + cost);
+    	long costStarted = InvocationMetrics.start();
+    	long billableSeconds = CostEngine.billableSeconds(cdrRecord);
+    	long usageSeconds = usageBefore(prices, cdrRecord.optString("VoiceConnectorId", null), usage_type,
+    			cdrRecord.optLong("StartTimeEpochSeconds", 0), billableSeconds);
+    	PriceDimension price = prices.tierAt(usageSeconds);
+    	long costMicros = prices.costMicros(usageSeconds, billableSeconds);
+    	metrics.record(InvocationMetrics.Stage.COST, costStarted);
+    	
+    	log.debug(() -> "price per call is " + price.getPricePerUnitText() + ", billable duration in seconds is "
+    			+ billableSeconds + ", cost for the phone call is " + CostEngine.formatMicros(costMicros));
 				
 		//enrich CDR with price per unit cost
-		cdrRecord.put("CostUSD", cost);
+		cdrRecord.put("PricePerUnitUSD", price.getPricePerUnitText());
+		cdrRecord.put("CostUSD", CostEngine.toDecimal(costMicros));
+		if (isProvisional(prices))
+		{
+			cdrRecord.put(PriceTierTable.PROVISIONAL_TIER_FIELD, true);
+		}
 		return cdrRecord;
     }
     
+    /**
+     * @param prices
+     * @return true if the price is tiered and the monthly usage is not counted, the first tier is then used
+     */
+    private boolean isProvisional(PriceTierTable prices)
+    {
+    	return prices.isTiered() && monthlyUsage == null;
+    }
+    
+    /**
+     * This method adds the call to the monthly usage of its Voice Connector when the price is tiered
+     * @return the billable seconds used this month before the call, 0 for prices that are not tiered
+     *         and when the monthly usage is not counted
+     */
+    private long usageBefore(PriceTierTable prices, String connectorId, String usage_type,
+    		long startTimeEpochSeconds, long billableSeconds)
+    {
+    	if (!prices.isTiered() || monthlyUsage == null)
+    	{
+    		return 0;
+    	}
+    	return monthlyUsage.add(connectorId == null ? "unknown" : connectorId, usage_type,
+    			startTimeEpochSeconds, billableSeconds);
+    }
+    
+    /**
+     * This method adds the calls of tiered usage types of an object enriched by an earlier run to the monthly
+     * usage, without enriching it again, so a resumed backfill prices the calls that follow at the same tiers
+     * @param bucket
+     * @param key
+     * @throws IOException
+     */
+    void addToMonthlyUsage(String bucket, String key) throws IOException
+    {
+    	if (!key.contains("Amazon-Chime-Voice-Connector-CDRs"))
+    	{
+    		return;
+    	}
+    	S3Object s3Object = objectStore.get(bucket, key).join();
+    	try
+    	{
+    		CDRStreamReader reader = new CDRStreamReader(openContent(s3Object));
+    		while (reader.advance())
+    		{
+    			JSONObject cdrRecord = reader.getObject();
+    			String usage_type = cdrRecord.optString(CDR_USAGE_TYPE, null);
+    			long startTime = cdrRecord.optLong("StartTimeEpochSeconds", 0);
+    			PriceTierTable prices = usage_type == null ? null : resolvePrice(usage_type, startTime);
+    			if (prices != null)
+    			{
+    				usageBefore(prices, cdrRecord.optString("VoiceConnectorId", null), usage_type, startTime,
+    						CostEngine.billableSeconds(cdrRecord));
+    			}
+    		}
+    	}
+    	finally
+    	{
+    		s3Object.close();
+    	}
+    }
+    
+    /**
+     * This method reads all the CDRs of the given S3 object. The object may hold a single CDR,
+     * a JSON array of CDRs or newline delimited CDRs.
+     * @param s3object
+     * @return
+     */
     public List<JSONObject> parseCDRRecord( S3Object s3object)
     {
     	List<JSONObject> jsonCDRs = new Vector<JSONObject>();
     	try
     	{
-	    	InputStream inputSream = s3object.getObjectContent();
-		
-	        BufferedReader reader = new BufferedReader(new InputStreamReader(inputSream));
-	        String line = null;
-	        
-	        String cdr_json = reader.readLine();
-	        while ((line = reader.readLine()) != null) {
-	        	//build the CDR Json Object
-	        	 cdr_json = cdr_json + line;
-	       
-	        }
-	        if (cdr_json !=null)
-	        {
-	        	lambdaContext.getLogger().log("JSON CDR record is " + cdr_json);
-	        	JSONObject jsonCDR = new JSONObject(cdr_json);
-	        	jsonCDRs.add(jsonCDR);
-	        }
+    		CDRStreamReader reader = new CDRStreamReader(openContent(s3object));
+    		while (reader.advance())
+    		{
+    			log.debug(() -> "JSON CDR record is " + reader.getText());
+    			long parseStarted = InvocationMetrics.start();
+    			jsonCDRs.add(reader.getObject());
+    			metrics.record(InvocationMetrics.Stage.PARSE, parseStarted);
+    		}
     	}
     	catch(IOException ioe)
 		{
-    		lambdaContext.getLogger().log("Unable to process the input stream " + ioe.getMessage());
+    		log.error("Unable to process the input stream " + ioe.getMessage());
 		}
 		finally 
 		{
@@ -348,9 +1449,7 @@ public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
 	            }
 			}
 			catch (IOException e) {
-				lambdaContext.getLogger().log("Cannot close the S3object stream " + e.getMessage() );
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+				log.error("Cannot close the S3object stream", e);
        
 			}
            
@@ -358,101 +1457,254 @@ public class LambdaFunctionHandler implements RequestHandler<S3Event, String> {
         return jsonCDRs;
     }
     /**
-     * This API uploads the given CSV file to S3
-     * @param csvFile
+     * This API converts the given CDRs to CSV and uploads them to S3
+     * @param enrichedCDRs
+     * @param key
+     * @return true once uploaded, false if the upload failed
+     */
+    private CompletableFuture<Boolean> uploadCSVToS3(List<JSONObject> enrichedCDRs, String key)
+    {
+    	CompressingOutput output = null;
+    	try
+    	{
+    		long serializeStarted = InvocationMetrics.start();
+    		output = openOutput("text/csv");
+    		convertJsonToCSV(enrichedCDRs, output);
+    		metrics.record(InvocationMetrics.Stage.SERIALIZE, serializeStarted);
+    		
+    		log.debug(() -> "Uploading CSV file to S3 to bucket " + TARGET_BUCKET_NAME + " with key " + key);
+    		CompletableFuture<Boolean> upload = uploadAsync(output, key, "text/csv");
+    		output = null;
+    		return upload;
+    	}
+    	catch(IOException ioe)
+    	{
+    		log.error("IO Exception while writing CSV data : " +  ioe.getMessage());
+    		return CompletableFuture.completedFuture(false);
+    	}
+    	finally
+    	{
+    		if (output != null)
+    		{
+    			output.release();
+    		}
+    	}
+    }
+    /**
+     * This API writes the given CDRs as a Parquet file and uploads it to S3
+     * @param enrichedCDRs
      * @param key
      * @return
      */
-    private boolean uploadCSVFIleToS3(File csvFile, String key)
+    private CompletableFuture<Boolean> uploadParquetToS3(List<JSONObject> enrichedCDRs, String key)
     {
+    	OutputBuffer buffer = OutputBuffer.acquire();
     	try
     	{
-	    	
-	    	PutObjectRequest s3ObjectRequest = new PutObjectRequest(TARGET_BUCKET_NAME, key, csvFile);
-	
-			ObjectMetadata metadata = new ObjectMetadata();
-	        metadata.setContentType("csv");
-	       metadata.setContentLength(csvFile.length());
-	        
-	       
-	       lambdaContext.getLogger().log("Uploading CSV file to S3 to bucket " + TARGET_BUCKET_NAME + " with key " + key);
-	        PutObjectResult result =  s3.putObject(s3ObjectRequest);
-	       
-		    return true;
-    	}
-    	catch (AmazonServiceException e) {
-			lambdaContext.getLogger().log("Amazon Service Exception : " +  e.getErrorMessage());
-		}
-    	catch (SdkClientException sdke) {
-            // Amazon S3 couldn't be contacted for a response, or the client
-            // couldn't parse the response from Amazon S3.
-    		lambdaContext.getLogger().log("Amazon SDK Exception : " +  sdke.getMessage());
-    		sdke.printStackTrace();
+    		long serializeStarted = InvocationMetrics.start();
+    		try (ParquetCDRWriter writer = new ParquetCDRWriter(buffer))
+    		{
+    			for (JSONObject enrichedCDR : enrichedCDRs)
+    			{
+    				writer.write(enrichedCDR);
+    			}
+    		}
+    		metrics.record(InvocationMetrics.Stage.SERIALIZE, serializeStarted);
+    		
+    		log.debug(() -> "Uploading Parquet file to S3 to bucket " + TARGET_BUCKET_NAME + " with key " + key);
+    		//Parquet pages are compressed already
+    		CompletableFuture<Boolean> upload = uploadAsync(buffer, key, OutputFormat.PARQUET.getContentType(), null);
+    		buffer = null;
+    		return upload;
+    	}
+    	catch(IOException ioe)
+    	{
+    		log.error("IO Exception while writing Parquet data : " +  ioe.getMessage());
+    		return CompletableFuture.completedFuture(false);
+    	}
+    	finally
+    	{
+    		if (buffer != null)
+    		{
+    			buffer.release();
+    		}
     	}
-		return false;
     }
     /**
-     * This method uploads the given CDR to the target bucket on S3. 
-     * If the desired file type is CSV, the CSV record is uploaded, otherwise, JSON file is uploaded.
-     * @param crdRecord
-     * @param filename
+     * This method uploads the given CDRs to the target bucket on S3 as JSON.
+     * A single CDR is uploaded as a JSON object, several CDRs as newline delimited JSON.
+     * @param crdRecords
+     * @param key
      * @return
      */
-    private boolean uploadCDRToS3(JSONObject crdRecord, String key )
+    private CompletableFuture<Boolean> uploadCDRToS3(List<JSONObject> crdRecords, String key )
     {
-    	FileWriter filewriter = null;
-    	String s3ObjectName = key.substring(key.lastIndexOf('/') + 1);
+    	CompressingOutput output = null;
 		try {
-			ByteArrayOutputStream stream = new ByteArrayOutputStream();
-			stream.write(key.getBytes());
-
-			lambdaContext.getLogger().log("S3 object name is " + s3ObjectName);
-			
-			File file = new File("/tmp/"+s3ObjectName);
-			
-			filewriter = new FileWriter(file);
-			
-			filewriter.write(crdRecord.toString());
+			long serializeStarted = InvocationMetrics.start();
+			output = openOutput("application/json");
+			Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+			for (int i = 0; i < crdRecords.size(); i++)
+			{
+				if (i > 0)
+				{
+					writer.write('\n');
+				}
+				crdRecords.get(i).write(writer);
+			}
+			writer.flush();
+			metrics.record(InvocationMetrics.Stage.SERIALIZE, serializeStarted);
 			
-			filewriter.close();
-			PutObjectRequest s3ObjectRequest = new PutObjectRequest(TARGET_BUCKET_NAME, key, file);
-
-			ObjectMetadata metadata = new ObjectMetadata();
-	        metadata.setContentType("application/json");
-	        metadata.setContentLength(crdRecord.length());
-	        
-		    s3.putObject(s3ObjectRequest);
-		    return true;
-		    
-		} 
-		catch (AmazonServiceException e) {
-			lambdaContext.getLogger().log("Amazon Service Exception : " +  e.getErrorMessage());
+			log.debug(() -> "Uploading JSON file to S3 to bucket " + TARGET_BUCKET_NAME + " with key " + key);
+			CompletableFuture<Boolean> upload = uploadAsync(output, key, "application/json");
+			output = null;
+			return upload;
 		}
-		catch (SdkClientException sdke) {
-            // Amazon S3 couldn't be contacted for a response, or the client
-            // couldn't parse the response from Amazon S3.
-    		lambdaContext.getLogger().log("Amazon SDK Exception : " +  sdke.getMessage());
-    		sdke.printStackTrace();
-    	}
 		catch(IOException ioe)
 		{
-			lambdaContext.getLogger().log("IO Exception : " +  ioe.getMessage());
+			log.error("IO Exception : " +  ioe.getMessage());
+			return CompletableFuture.completedFuture(false);
 		}
-		finally {
-			 
-            try {
-            	
-            	lambdaContext.getLogger().log("Closing file stream");
-            	if (filewriter != null)
-            	{
-            		filewriter.close();
-            	}
-            	
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-                return false;
-            }
+		finally
+		{
+			if (output != null)
+			{
+				output.release();
+			}
+		}
+    }
+    
+    /**
+     * This method uploads the content of the given buffer to the target bucket, 
+     * with the content type and length set on the object metadata.
+     * @param buffer
+     * @param key
+     * @param contentType
+     * @return
+     */
+    private boolean uploadBufferToS3(OutputBuffer buffer, String key, String contentType)
+    {
+    	long uploadStarted = InvocationMetrics.start();
+    	return objectStore.put(TARGET_BUCKET_NAME, key, buffer.toInputStream(), buffer.size(), contentType, null)
+    			.handle((done, e) -> uploadSucceeded(e, uploadStarted))
+    			.join();
+    }
+    
+    /**
+     * This method opens the output of an object on a pooled buffer, compressed as set by OUTPUT_COMPRESSION
+     * @param contentType
+     * @return the output, released by the upload it is handed to
+     * @throws IOException
+     */
+    private CompressingOutput openOutput(String contentType) throws IOException
+    {
+    	//Parquet pages are compressed already
+    	Compression compression = OutputFormat.PARQUET.getContentType().equals(contentType)
+    			? Compression.NONE : outputCompression;
+    	OutputBuffer buffer = OutputBuffer.acquire();
+    	try
+    	{
+    		return new CompressingOutput(buffer, compression, outputCompressionLevel);
+    	}
+    	catch (IOException | RuntimeException e)
+    	{
+    		buffer.release();
+    		throw e;
+    	}
+    }
+    
+    /**
+     * This method ends the given output and starts its upload to the output sink,
+     * the extension of its compression is added to the key.
+     * @param output
+     * @param key
+     * @param contentType
+     * @return true once uploaded, false if the upload failed
+     */
+    private CompletableFuture<Boolean> uploadAsync(CompressingOutput output, String key, String contentType)
+    {
+    	OutputBuffer content;
+    	try
+    	{
+    		content = output.finish();
+    	}
+    	catch (IOException e)
+    	{
+    		output.release();
+    		log.error("Unable to compress the enriched CDRs", e);
+    		return CompletableFuture.completedFuture(false);
+    	}
+    	Compression compression = output.getCompression();
+    	return uploadAsync(content, key + compression.getExtension(), contentType, compression.getContentEncoding());
+    }
+    
+    /**
+     * This method starts the upload of the given buffer to the output sink. The sink reads the buffer
+     * itself, so it is released once the upload completes and must not be used by the caller afterwards.
+     * @param content
+     * @param objectKey
+     * @param contentType
+     * @param contentEncoding the Content-Encoding of the content, null if it is not compressed
+     * @return true once uploaded, false if the upload failed
+     */
+    private CompletableFuture<Boolean> uploadAsync(OutputBuffer content, String objectKey, String contentType,
+    		String contentEncoding)
+    {
+    	PartitionManifest manifest = partitionManifest;
+    	long uploadStarted = InvocationMetrics.start();
+    	CompletableFuture<Void> written;
+    	try
+    	{
+    		written = outputSink.write(objectKey, content, contentType, contentEncoding);
+    	}
+    	catch (RuntimeException e)
+    	{
+    		content.release();
+    		throw e;
+    	}
+    	return written.handle((done, e) -> {
+    				content.release();
+    				boolean uploaded = uploadSucceeded(e, uploadStarted);
+    				if (uploaded && manifest != null)
+    				{
+    					manifest.add(objectKey);
+    				}
+    				return uploaded;
+    			});
+    }
+    
+    /**
+     * This method opens the content of the given object, decompressed if the object is compressed
+     * @param s3Object
+     * @return
+     * @throws IOException
+     */
+    private static InputStream openContent(S3Object s3Object) throws IOException
+    {
+    	return Compression.decompress(s3Object.getObjectContent(), s3Object.getObjectMetadata().getContentEncoding());
+    }
+    
+    private boolean uploadSucceeded(Throwable e, long uploadStarted)
+    {
+    	metrics.record(InvocationMetrics.Stage.UPLOAD, uploadStarted);
+    	if (e instanceof CompletionException && e.getCause() != null)
+    	{
+    		e = e.getCause();
+    	}
+    	if (e == null)
+    	{
+    		return true;
+    	}
+		if (e instanceof AmazonServiceException) {
+			log.error("Amazon Service Exception : " +  ((AmazonServiceException) e).getErrorMessage());
+		}
+		else if (e instanceof SdkClientException) {
+            // Amazon S3 couldn't be contacted for a response, or the client
+            // couldn't parse the response from Amazon S3.
+    		log.error("Amazon SDK Exception", e);
+    	}
+		else {
+			log.error("Unable to upload the enriched CDRs", e);
 		}
 		return false;
     }
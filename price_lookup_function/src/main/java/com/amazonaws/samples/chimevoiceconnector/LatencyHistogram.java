@@ -0,0 +1,197 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * A thread safe latency histogram with log-linear buckets: every power of two microseconds is split
+ * into SUB_BUCKETS buckets, so any recorded value is within 1/SUB_BUCKETS of its bucket. Recording is
+ * one atomic increment, there is no allocation and no lock.
+ */
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // up to 2^40 microseconds, longer values are counted in the last bucket
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+    // the most values a CloudWatch embedded metric accepts
+    private static final int MAX_EMF_VALUES = 100;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * This method records a latency
+     * @param nanos
+     */
+    public void recordNanos(long nanos)
+    {
+        recordMicros(Math.max(0, nanos) / 1000);
+    }
+
+    /**
+     * This method records a latency
+     * @param micros
+     */
+    public void recordMicros(long micros)
+    {
+        counts.incrementAndGet(bucketOf(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max;
+        do
+        {
+            max = maxMicros.get();
+        }
+        while (micros > max && !maxMicros.compareAndSet(max, micros));
+    }
+
+    static int bucketOf(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+        {
+            return (int) Math.max(0, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT)
+        {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket
+     * @return the smallest value of the bucket, in microseconds
+     */
+    static long lowerBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * @param bucket
+     * @return the middle of the bucket, in microseconds
+     */
+    static double midpoint(int bucket)
+    {
+        long lower = lowerBound(bucket);
+        long upper = bucket + 1 < BUCKETS ? lowerBound(bucket + 1) : lower + 1;
+        return (lower + upper - 1) / 2.0;
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMaxMicros()
+    {
+        return maxMicros.get();
+    }
+
+    public long getSumMicros()
+    {
+        return sumMicros.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket holding the percentile, in microseconds, 0 if nothing was recorded
+     */
+    public long percentileMicros(double percentile)
+    {
+        long total = count.get();
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+                return Math.min(upper, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    /**
+     * This method writes the histogram as a CloudWatch embedded metric distribution, the midpoints of
+     * the non-empty buckets in milliseconds with their counts. Neighbouring buckets are merged while
+     * there are more values than CloudWatch accepts.
+     * @return the Values and Counts, or null if nothing was recorded
+     */
+    public JSONObject toEmfValue()
+    {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = counts.get(i);
+        }
+        int width = 1;
+        while (nonEmptyGroups(snapshot, width) > MAX_EMF_VALUES)
+        {
+            width *= 2;
+        }
+        if (nonEmptyGroups(snapshot, width) == 0)
+        {
+            return null;
+        }
+        JSONArray values = new JSONArray();
+        JSONArray valueCounts = new JSONArray();
+        for (int start = 0; start < BUCKETS; start += width)
+        {
+            long bucketCount = 0;
+            double weighted = 0;
+            for (int i = start; i < Math.min(BUCKETS, start + width); i++)
+            {
+                bucketCount += snapshot[i];
+                weighted += snapshot[i] * midpoint(i);
+            }
+            if (bucketCount > 0)
+            {
+                values.put(Math.round(weighted / bucketCount) / 1000.0);
+                valueCounts.put(bucketCount);
+            }
+        }
+        JSONObject distribution = new JSONObject();
+        distribution.put("Values", values);
+        distribution.put("Counts", valueCounts);
+        return distribution;
+    }
+
+    private static int nonEmptyGroups(long[] snapshot, int width)
+    {
+        int groups = 0;
+        for (int start = 0; start < snapshot.length; start += width)
+        {
+            for (int i = start; i < Math.min(snapshot.length, start + width); i++)
+            {
+                if (snapshot[i] > 0)
+                {
+                    groups++;
+                    break;
+                }
+            }
+        }
+        return groups;
+    }
+}
@@ -0,0 +1,61 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes the objects to a local directory, with the key as the relative path. The content type is not
+ * kept, the key of a compressed object has the extension of its compression.
+ *
+ * Objects are written to a temporary file first and then moved in place, so a reader never sees a
+ * partial object. Files are written by the calling thread, at disk speed.
+ */
+public class LocalFileSink extends AbstractOutputSink
+{
+    private final Path root;
+
+    public LocalFileSink(Path root)
+    {
+        this.root = root.toAbsolutePath().normalize();
+    }
+
+    @Override
+    protected CompletableFuture<Void> writeContent(String key, OutputBuffer content, String contentType,
+            String contentEncoding)
+    {
+        Path target = root.resolve(key).normalize();
+        if (!target.startsWith(root))
+        {
+            throw new IllegalArgumentException("Key " + key + " is outside of " + root);
+        }
+        try
+        {
+            Files.createDirectories(target.getParent());
+            Path temporary = Files.createTempFile(target.getParent(), ".sink", ".tmp");
+            try
+            {
+                Files.copy(content.toInputStream(), temporary, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally
+            {
+                Files.deleteIfExists(temporary);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to write " + target, e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "file:" + root;
+    }
+}
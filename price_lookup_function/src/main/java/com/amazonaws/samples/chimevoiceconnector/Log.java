@@ -0,0 +1,143 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * A level gated facade over the LambdaLogger. The level is set by the LOG_LEVEL environment
+ * variable (DEBUG, INFO, WARN, ERROR or OFF, default INFO).
+ *
+ * Messages below the level are neither formatted nor written. Verbose messages take a supplier,
+ * so the CDR and price list dumps are only built when DEBUG is enabled.
+ */
+public final class Log
+{
+    public enum Level
+    {
+        DEBUG, INFO, WARN, ERROR, OFF;
+
+        /**
+         * @param value
+         * @return the level with the given name, INFO if the value is missing or unknown
+         */
+        public static Level fromString(String value)
+        {
+            if (value != null)
+            {
+                for (Level level : values())
+                {
+                    if (level.name().equalsIgnoreCase(value.trim()))
+                    {
+                        return level;
+                    }
+                }
+            }
+            return INFO;
+        }
+    }
+
+    private static final Level DEFAULT_LEVEL = Level.fromString(System.getenv("LOG_LEVEL"));
+
+    private final LambdaLogger logger;
+    private final Level level;
+
+    public Log(LambdaLogger logger)
+    {
+        this(logger, DEFAULT_LEVEL);
+    }
+
+    public Log(LambdaLogger logger, Level level)
+    {
+        this.logger = logger;
+        this.level = level;
+    }
+
+    public boolean isEnabled(Level messageLevel)
+    {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public boolean isDebugEnabled()
+    {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(Supplier<String> message)
+    {
+        if (isEnabled(Level.DEBUG))
+        {
+            write(Level.DEBUG, message.get());
+        }
+    }
+
+    public void info(String message)
+    {
+        if (isEnabled(Level.INFO))
+        {
+            write(Level.INFO, message);
+        }
+    }
+
+    public void info(Supplier<String> message)
+    {
+        if (isEnabled(Level.INFO))
+        {
+            write(Level.INFO, message.get());
+        }
+    }
+
+    public void warn(String message)
+    {
+        if (isEnabled(Level.WARN))
+        {
+            write(Level.WARN, message);
+        }
+    }
+
+    public void error(String message)
+    {
+        if (isEnabled(Level.ERROR))
+        {
+            write(Level.ERROR, message);
+        }
+    }
+
+    /**
+     * This method logs the message with the exception, and its stack trace when DEBUG is enabled
+     * @param message
+     * @param error
+     */
+    public void error(String message, Throwable error)
+    {
+        if (!isEnabled(Level.ERROR))
+        {
+            return;
+        }
+        if (isDebugEnabled())
+        {
+            StringWriter stackTrace = new StringWriter();
+            error.printStackTrace(new PrintWriter(stackTrace));
+            write(Level.ERROR, message + " " + stackTrace);
+        }
+        else
+        {
+            write(Level.ERROR, message + " " + error);
+        }
+    }
+
+    /**
+     * @return the underlying logger, for the components that log through it directly
+     */
+    public LambdaLogger getLogger()
+    {
+        return logger;
+    }
+
+    private void write(Level messageLevel, String message)
+    {
+        logger.log(messageLevel.name() + ' ' + message);
+    }
+}
@@ -0,0 +1,55 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.time.LocalDate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The billable seconds accumulated by each Voice Connector and usage type in the current calendar
+ * month (UTC), which selects the volume tier of tiered prices.
+ *
+ * Usage is counted from the calls added, in the order they are added, so the tiers are only
+ * deterministic when every call of the month is added once and in the same order. The BackfillRunner
+ * does so on a single worker. The Lambda function counts no usage, it prices tiered usage types at the
+ * first tier and marks their CDRs PriceTierProvisional.
+ */
+public class MonthlyUsage
+{
+    private static final long SECONDS_PER_DAY = 86400;
+
+    private final ConcurrentMap<Integer, ConcurrentMap<String, AtomicLong>> months =
+            new ConcurrentHashMap<Integer, ConcurrentMap<String, AtomicLong>>();
+
+    /**
+     * This method adds the seconds of a call to the usage of its month
+     * @param connectorId
+     * @param usageType
+     * @param startEpochSeconds the start of the call, which selects the month
+     * @param billableSeconds
+     * @return the usage of the month before this call
+     */
+    public long add(String connectorId, String usageType, long startEpochSeconds, long billableSeconds)
+    {
+        ConcurrentMap<String, AtomicLong> usage = months.computeIfAbsent(monthOf(startEpochSeconds),
+                key -> new ConcurrentHashMap<String, AtomicLong>());
+        AtomicLong seconds = usage.computeIfAbsent(connectorId + '/' + usageType, key -> new AtomicLong());
+        return seconds.getAndAdd(billableSeconds);
+    }
+
+    /**
+     * @return the usage of the month of the given time, without adding to it
+     */
+    public long get(String connectorId, String usageType, long epochSeconds)
+    {
+        ConcurrentMap<String, AtomicLong> usage = months.get(monthOf(epochSeconds));
+        AtomicLong seconds = usage == null ? null : usage.get(connectorId + '/' + usageType);
+        return seconds == null ? 0 : seconds.get();
+    }
+
+    private static int monthOf(long epochSeconds)
+    {
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(epochSeconds, SECONDS_PER_DAY));
+        return date.getYear() * 12 + date.getMonthValue() - 1;
+    }
+}
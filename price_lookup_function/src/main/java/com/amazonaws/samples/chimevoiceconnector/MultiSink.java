@@ -0,0 +1,59 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes every object to several sinks. The content is buffered once and read by all the sinks,
+ * which write concurrently. A write fails if it fails on any of the sinks.
+ */
+public class MultiSink extends AbstractOutputSink
+{
+    private final List<OutputSink> sinks;
+
+    public MultiSink(List<OutputSink> sinks)
+    {
+        this.sinks = Collections.unmodifiableList(new ArrayList<OutputSink>(sinks));
+    }
+
+    @Override
+    protected CompletableFuture<Void> writeContent(String key, OutputBuffer content, String contentType,
+            String contentEncoding)
+    {
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[sinks.size()];
+        for (int i = 0; i < writes.length; i++)
+        {
+            writes[i] = sinks.get(i).write(key, content, contentType, contentEncoding);
+        }
+        return CompletableFuture.allOf(writes);
+    }
+
+    public List<OutputSink> getSinks()
+    {
+        return sinks;
+    }
+
+    @Override
+    public String getName()
+    {
+        StringBuilder name = new StringBuilder();
+        for (OutputSink sink : sinks)
+        {
+            name.append(name.length() == 0 ? "" : ",").append(sink.getName());
+        }
+        return name.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder report = new StringBuilder(super.toString());
+        for (OutputSink sink : sinks)
+        {
+            report.append(", ").append(sink);
+        }
+        return report.toString();
+    }
+}
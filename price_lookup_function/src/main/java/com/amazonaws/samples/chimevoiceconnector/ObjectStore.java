@@ -0,0 +1,34 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * Asynchronous access to the CDR objects, so downloads, enrichment and uploads of different
+ * objects overlap. Futures complete exceptionally with the SDK exception when a transfer fails.
+ */
+public interface ObjectStore
+{
+    /**
+     * This method downloads an object
+     * @param bucket
+     * @param key
+     * @return the object, with its content fully downloaded
+     */
+    CompletableFuture<S3Object> get(String bucket, String key);
+
+    /**
+     * This method uploads an object, the content is read before the future completes
+     * @param bucket
+     * @param key
+     * @param content
+     * @param length the length of the content in bytes
+     * @param contentType
+     * @param contentEncoding the compression of the content, null if it is not compressed
+     * @return
+     */
+    CompletableFuture<Void> put(String bucket, String key, InputStream content, long length, String contentType,
+            String contentEncoding);
+}
@@ -0,0 +1,98 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reusable in-memory buffer that output objects are serialized into before they are uploaded,
+ * so no temporary files are written to /tmp.
+ *
+ * Buffers are taken from a pool shared by all threads, and the upload of an object releases its
+ * buffer once it completes, on whatever thread that is. A released buffer keeps its capacity for the
+ * next object, unless it grew beyond the retained capacity.
+ */
+public class OutputBuffer extends ByteArrayOutputStream
+{
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    // larger buffers are released after use rather than held by a warm container
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024 * 1024;
+
+    // at most one idle buffer per object in flight is worth keeping
+    private static final int MAX_POOLED = 32;
+
+    private static final Queue<OutputBuffer> POOL = new ConcurrentLinkedQueue<OutputBuffer>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private final boolean pooled;
+
+    private OutputBuffer()
+    {
+        super(INITIAL_CAPACITY);
+        this.pooled = true;
+    }
+
+    /**
+     * Creates a buffer that is owned by the caller rather than by the calling thread.
+     * @param capacity the initial capacity in bytes
+     */
+    public OutputBuffer(int capacity)
+    {
+        super(capacity);
+        this.pooled = false;
+    }
+
+    /**
+     * @return an empty buffer of the pool, the caller owns it until it calls release
+     */
+    public static OutputBuffer acquire()
+    {
+        OutputBuffer buffer = POOL.poll();
+        if (buffer == null)
+        {
+            return new OutputBuffer();
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Resets the buffer and returns it to the pool, unless it grew beyond the retained capacity
+     * or the pool is full. The buffer must not be used after it is released.
+     */
+    public void release()
+    {
+        reset();
+        if (!pooled || buf.length > MAX_RETAINED_CAPACITY)
+        {
+            return;
+        }
+        if (POOLED.incrementAndGet() <= MAX_POOLED)
+        {
+            POOL.offer(this);
+        }
+        else
+        {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the internal array, holding the buffered bytes up to size()
+     */
+    public byte[] getBuffer()
+    {
+        return buf;
+    }
+
+    /**
+     * @return a stream over the buffered bytes, without copying them
+     */
+    public InputStream toInputStream()
+    {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
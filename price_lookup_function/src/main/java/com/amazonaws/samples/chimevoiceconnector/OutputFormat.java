@@ -0,0 +1,49 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+/**
+ * The output formats of enriched CDRs, selected by the OUTPUT_FORMAT environment variable.
+ */
+public enum OutputFormat
+{
+    JSON("application/json", ".json"),
+    CSV("text/csv", ".csv"),
+    PARQUET("application/vnd.apache.parquet", ".parquet");
+
+    private final String contentType;
+    private final String extension;
+
+    OutputFormat(String contentType, String extension)
+    {
+        this.contentType = contentType;
+        this.extension = extension;
+    }
+
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    public String getExtension()
+    {
+        return extension;
+    }
+
+    /**
+     * @param value the OUTPUT_FORMAT value
+     * @return the matching format, JSON if the value is not set or not known
+     */
+    public static OutputFormat fromString(String value)
+    {
+        if (value != null)
+        {
+            for (OutputFormat format : values())
+            {
+                if (format.name().equalsIgnoreCase(value.trim()))
+                {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,91 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A destination of the enriched CDR objects. The enrichment writes every object to one sink, which is
+ * S3 by default. The OUTPUT_SINK environment variable selects other sinks, and several sinks receive
+ * the same objects in one pass.
+ *
+ * Every sink reports its throughput.
+ */
+public interface OutputSink
+{
+    /**
+     * This method writes an object, the content must not change until the future completes
+     * @param key
+     * @param content
+     * @param contentType
+     * @param contentEncoding the compression of the content, null if it is not compressed
+     * @return a future that completes exceptionally if the object could not be written
+     */
+    CompletableFuture<Void> write(String key, OutputBuffer content, String contentType, String contentEncoding);
+
+    /**
+     * @return the destination, i.e. s3://bucket
+     */
+    String getName();
+
+    /**
+     * @return the objects and bytes written so far, and the rate they were written at
+     */
+    SinkThroughput getThroughput();
+
+    /**
+     * This method builds the sinks set by the OUTPUT_SINK environment variable
+     * @param objectStore the store of the s3 sink
+     * @param bucket the bucket of the s3 sink
+     * @return the sink, S3 if OUTPUT_SINK is not set
+     */
+    static OutputSink fromEnvironment(ObjectStore objectStore, String bucket)
+    {
+        return fromString(System.getenv("OUTPUT_SINK"), objectStore, bucket);
+    }
+
+    /**
+     * This method builds the sinks of a comma separated list, each either s3, file:DIRECTORY or memory
+     * @param value
+     * @param objectStore the store of the s3 sink
+     * @param bucket the bucket of the s3 sink
+     * @return the only sink of the list, or a MultiSink of all of them. S3 if the list is empty
+     */
+    static OutputSink fromString(String value, ObjectStore objectStore, String bucket)
+    {
+        List<OutputSink> sinks = new ArrayList<OutputSink>();
+        if (value != null)
+        {
+            for (String name : value.split(","))
+            {
+                name = name.trim();
+                if (name.isEmpty())
+                {
+                    continue;
+                }
+                if ("s3".equalsIgnoreCase(name))
+                {
+                    sinks.add(new S3OutputSink(objectStore, bucket));
+                }
+                else if ("memory".equalsIgnoreCase(name))
+                {
+                    sinks.add(new InMemoryOutputSink());
+                }
+                else if (name.regionMatches(true, 0, "file:", 0, 5))
+                {
+                    sinks.add(new LocalFileSink(Paths.get(name.substring(5))));
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Unknown output sink " + name);
+                }
+            }
+        }
+        if (sinks.isEmpty())
+        {
+            return new S3OutputSink(objectStore, bucket);
+        }
+        return sinks.size() == 1 ? sinks.get(0) : new MultiSink(sinks);
+    }
+}
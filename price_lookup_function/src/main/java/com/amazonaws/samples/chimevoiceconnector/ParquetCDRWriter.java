@@ -0,0 +1,229 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.schema.LogicalTypeAnnotation;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+import org.apache.parquet.schema.Types;
+import org.json.JSONObject;
+
+/**
+ * Writes enriched CDRs as a Parquet file with a fixed, typed schema into an in-memory buffer.
+ *
+ * Low cardinality columns such as the usage type and the countries are dictionary encoded,
+ * and the pages are compressed with the codec set by PARQUET_COMPRESSION (default GZIP).
+ */
+public class ParquetCDRWriter implements Closeable
+{
+    private static final String[] STRING_COLUMNS = {
+            "AwsAccountId", "TransactionId", "CallId", "VoiceConnectorId", "Status", "StatusMessage",
+            "SipAuthUser", "SchemaVersion", "SourcePhoneNumber", "SourceCountry", "DestinationPhoneNumber",
+            "DestinationCountry", "UsageType", "ServiceCode", "Direction", "Region" };
+
+    private static final String[] LONG_COLUMNS = {
+            "BillableDurationSeconds", "StartTimeEpochSeconds", "EndTimeEpochSeconds" };
+
+    // columns with few distinct values, all others are plain encoded
+    private static final String[] DICTIONARY_COLUMNS = {
+            "UsageType", "SourceCountry", "DestinationCountry", "VoiceConnectorId", "Direction", "Region",
+            "Status", "ServiceCode", "SchemaVersion", "AwsAccountId" };
+
+    private static final int PRICE_SCALE = 10;
+    private static final int COST_SCALE = 6;
+
+    public static final MessageType SCHEMA = buildSchema();
+
+    private final ParquetWriter<Group> writer;
+    private final SimpleGroupFactory groupFactory = new SimpleGroupFactory(SCHEMA);
+
+    public ParquetCDRWriter(OutputBuffer target) throws IOException
+    {
+        this(target, codecFromEnvironment());
+    }
+
+    public ParquetCDRWriter(OutputBuffer target, CompressionCodecName codec) throws IOException
+    {
+        ExampleParquetWriter.Builder builder = ExampleParquetWriter.builder(new BufferOutputFile(target))
+                .withType(SCHEMA)
+                .withCompressionCodec(codec)
+                .withDictionaryEncoding(false);
+        for (String column : DICTIONARY_COLUMNS)
+        {
+            builder.withDictionaryEncoding(column, true);
+        }
+        writer = builder.build();
+    }
+
+    private static MessageType buildSchema()
+    {
+        Types.MessageTypeBuilder builder = Types.buildMessage();
+        for (String column : STRING_COLUMNS)
+        {
+            builder.optional(PrimitiveTypeName.BINARY).as(LogicalTypeAnnotation.stringType()).named(column);
+        }
+        for (String column : LONG_COLUMNS)
+        {
+            builder.optional(PrimitiveTypeName.INT64).named(column);
+        }
+        builder.optional(PrimitiveTypeName.DOUBLE).named("BillableDurationMinutes");
+        builder.optional(PrimitiveTypeName.BOOLEAN).named("Streaming");
+        builder.optional(PrimitiveTypeName.INT64)
+                .as(LogicalTypeAnnotation.decimalType(PRICE_SCALE, 18)).named("PricePerUnitUSD");
+        builder.optional(PrimitiveTypeName.INT64)
+                .as(LogicalTypeAnnotation.decimalType(COST_SCALE, 18)).named("CostUSD");
+        builder.optional(PrimitiveTypeName.BOOLEAN).named(PriceTierTable.PROVISIONAL_TIER_FIELD);
+        return builder.named("cdr");
+    }
+
+    private static CompressionCodecName codecFromEnvironment()
+    {
+        String value = System.getenv("PARQUET_COMPRESSION");
+        if (value == null || value.trim().isEmpty())
+        {
+            return CompressionCodecName.GZIP;
+        }
+        return CompressionCodecName.fromConf(value.trim().toUpperCase());
+    }
+
+    /**
+     * This method appends one enriched CDR as a row, fields that are missing are written as nulls
+     * @param enrichedCDR
+     * @throws IOException
+     */
+    public void write(JSONObject enrichedCDR) throws IOException
+    {
+        Group row = groupFactory.newGroup();
+        for (String column : STRING_COLUMNS)
+        {
+            String value = enrichedCDR.optString(column, null);
+            if (value != null)
+            {
+                row.append(column, value);
+            }
+        }
+        for (String column : LONG_COLUMNS)
+        {
+            if (enrichedCDR.has(column))
+            {
+                row.append(column, enrichedCDR.getLong(column));
+            }
+        }
+        if (enrichedCDR.has("BillableDurationMinutes"))
+        {
+            row.append("BillableDurationMinutes", enrichedCDR.getDouble("BillableDurationMinutes"));
+        }
+        if (enrichedCDR.has("Streaming"))
+        {
+            row.append("Streaming", enrichedCDR.getBoolean("Streaming"));
+        }
+        if (enrichedCDR.has("PricePerUnitUSD"))
+        {
+            row.append("PricePerUnitUSD", unscaled(enrichedCDR.getString("PricePerUnitUSD"), PRICE_SCALE));
+        }
+        if (enrichedCDR.has("CostUSD"))
+        {
+            row.append("CostUSD", unscaled(String.valueOf(enrichedCDR.get("CostUSD")), COST_SCALE));
+        }
+        if (enrichedCDR.optBoolean(PriceTierTable.PROVISIONAL_TIER_FIELD))
+        {
+            row.append(PriceTierTable.PROVISIONAL_TIER_FIELD, true);
+        }
+        writer.write(row);
+    }
+
+    private static long unscaled(String decimal, int scale) throws IOException
+    {
+        try
+        {
+            return new BigDecimal(decimal).setScale(scale, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        }
+        catch (ArithmeticException e)
+        {
+            throw new IOException(decimal + " does not fit an INT64 decimal column of scale " + scale, e);
+        }
+    }
+
+    /**
+     * @return the buffered size of the rows written so far
+     */
+    public long getDataSize()
+    {
+        return writer.getDataSize();
+    }
+
+    /**
+     * Writes the remaining row group and the file footer to the target buffer.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        writer.close();
+    }
+
+    /**
+     * An OutputFile that writes to an in-memory buffer instead of a Hadoop file system.
+     */
+    private static final class BufferOutputFile implements OutputFile
+    {
+        private final OutputBuffer buffer;
+
+        BufferOutputFile(OutputBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public PositionOutputStream create(long blockSizeHint)
+        {
+            return new PositionOutputStream()
+            {
+                @Override
+                public long getPos()
+                {
+                    return buffer.size();
+                }
+
+                @Override
+                public void write(int b)
+                {
+                    buffer.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len)
+                {
+                    buffer.write(b, off, len);
+                }
+            };
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(long blockSizeHint)
+        {
+            return create(blockSizeHint);
+        }
+
+        @Override
+        public boolean supportsBlockSize()
+        {
+            return false;
+        }
+
+        @Override
+        public long defaultBlockSize()
+        {
+            return 0;
+        }
+    }
+}
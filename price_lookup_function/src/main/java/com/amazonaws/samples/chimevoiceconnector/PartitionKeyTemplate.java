@@ -0,0 +1,206 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.json.JSONObject;
+
+/**
+ * Builds the partition of an enriched CDR from its fields, i.e. with the template
+ * connector={VoiceConnectorId}/date={StartTimeEpochSeconds:yyyy-MM-dd}/direction={Direction}
+ * a CDR is written under connector=abcd1234/date=2020-09-21/direction=Outbound. Hive-style name=value
+ * directories let Athena prune the partitions a query does not need.
+ *
+ * A placeholder holds the name of a top-level CDR field, optionally followed by a date pattern that
+ * formats an epoch seconds field in UTC. Missing values are written as unknown, and in the values of
+ * the CDR characters other than letters, digits, '.', '-' and '_' are replaced by '_' so a value never
+ * adds a directory.
+ *
+ * The template is set by the OUTPUT_KEY_TEMPLATE environment variable.
+ */
+public final class PartitionKeyTemplate
+{
+    static final String UNKNOWN = "unknown";
+
+    private final String template;
+    // literal text and placeholders, in order
+    private final List<Object> segments = new ArrayList<Object>();
+    private final Set<String> fields = new LinkedHashSet<String>();
+
+    private static final class Placeholder
+    {
+        final String field;
+        final DateTimeFormatter dateFormat;
+
+        Placeholder(String field, DateTimeFormatter dateFormat)
+        {
+            this.field = field;
+            this.dateFormat = dateFormat;
+        }
+    }
+
+    /**
+     * @param template
+     * @throws IllegalArgumentException if a placeholder is not closed, has no field or has an invalid date pattern
+     */
+    public PartitionKeyTemplate(String template)
+    {
+        this.template = template;
+        int i = 0;
+        while (i < template.length())
+        {
+            int open = template.indexOf('{', i);
+            if (open < 0)
+            {
+                segments.add(template.substring(i));
+                break;
+            }
+            int close = template.indexOf('}', open);
+            if (close < 0)
+            {
+                throw new IllegalArgumentException("Unclosed placeholder in key template " + template);
+            }
+            if (open > i)
+            {
+                segments.add(template.substring(i, open));
+            }
+            String placeholder = template.substring(open + 1, close);
+            int colon = placeholder.indexOf(':');
+            String field = (colon < 0 ? placeholder : placeholder.substring(0, colon)).trim();
+            if (field.isEmpty())
+            {
+                throw new IllegalArgumentException("Empty placeholder in key template " + template);
+            }
+            DateTimeFormatter dateFormat = colon < 0 ? null
+                    : DateTimeFormatter.ofPattern(placeholder.substring(colon + 1)).withZone(ZoneOffset.UTC);
+            segments.add(new Placeholder(field, dateFormat));
+            fields.add(field);
+            i = close + 1;
+        }
+    }
+
+    /**
+     * @return the template set by OUTPUT_KEY_TEMPLATE, null if it is not set and the input keys are kept
+     */
+    public static PartitionKeyTemplate fromEnvironment()
+    {
+        String value = System.getenv("OUTPUT_KEY_TEMPLATE");
+        return value == null || value.trim().isEmpty() ? null : new PartitionKeyTemplate(value.trim());
+    }
+
+    /**
+     * @return the names of the CDR fields the template reads
+     */
+    public Set<String> getFields()
+    {
+        return Collections.unmodifiableSet(fields);
+    }
+
+    /**
+     * This method builds the partition of an enriched CDR
+     * @param cdr
+     * @return the partition, without a leading or trailing slash
+     */
+    public String render(JSONObject cdr)
+    {
+        return render(cdr::opt);
+    }
+
+    /**
+     * This method builds the partition of a CDR from the given field values
+     * @param fields returns the value of a field, null if the CDR has none
+     * @return the partition, without a leading or trailing slash
+     */
+    public String render(Function<String, Object> fields)
+    {
+        StringBuilder partition = new StringBuilder();
+        for (Object segment : segments)
+        {
+            if (segment instanceof Placeholder)
+            {
+                Placeholder placeholder = (Placeholder) segment;
+                Object value = fields.apply(placeholder.field);
+                if (placeholder.dateFormat == null)
+                {
+                    appendValue(partition, value == null || JSONObject.NULL.equals(value) ? null : value.toString());
+                }
+                else
+                {
+                    // the pattern comes from the template, it may add directories
+                    String date = formatDate(placeholder.dateFormat, value);
+                    partition.append(date == null ? UNKNOWN : date);
+                }
+            }
+            else
+            {
+                partition.append((String) segment);
+            }
+        }
+        int start = 0;
+        int end = partition.length();
+        while (start < end && partition.charAt(start) == '/')
+        {
+            start++;
+        }
+        while (end > start && partition.charAt(end - 1) == '/')
+        {
+            end--;
+        }
+        return partition.substring(start, end);
+    }
+
+    private static String formatDate(DateTimeFormatter dateFormat, Object value)
+    {
+        if (value == null || JSONObject.NULL.equals(value))
+        {
+            return null;
+        }
+        long epochSeconds;
+        if (value instanceof Number)
+        {
+            epochSeconds = ((Number) value).longValue();
+        }
+        else
+        {
+            try
+            {
+                epochSeconds = Long.parseLong(value.toString().trim());
+            }
+            catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+        return dateFormat.format(Instant.ofEpochSecond(epochSeconds));
+    }
+
+    private static void appendValue(StringBuilder partition, String value)
+    {
+        if (value == null || value.isEmpty())
+        {
+            partition.append(UNKNOWN);
+            return;
+        }
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            // a leading dot could make the value . or ..
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || (c == '.' && i > 0) || c == '-' || c == '_';
+            partition.append(safe ? c : '_');
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return template;
+    }
+}
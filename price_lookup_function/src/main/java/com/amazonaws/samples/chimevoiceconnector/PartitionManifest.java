@@ -0,0 +1,101 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * The partitions an invocation wrote enriched objects to, with their objects. The manifest is written
+ * next to the output, so a catalog can add the new partitions (ALTER TABLE ADD PARTITION) without
+ * listing the whole bucket.
+ *
+ * Objects are added as their uploads complete, from any thread.
+ */
+public class PartitionManifest
+{
+    private static final String DEFAULT_PREFIX = "partition-manifests";
+
+    // objects by partition location, the key up to its last slash
+    private final Map<String, List<String>> partitions = new TreeMap<String, List<String>>();
+
+    /**
+     * @return the MANIFEST_PREFIX environment variable, partition-manifests by default
+     */
+    public static String prefixFromEnvironment()
+    {
+        String prefix = System.getenv("MANIFEST_PREFIX");
+        return prefix == null || prefix.trim().isEmpty() ? DEFAULT_PREFIX : prefix.trim();
+    }
+
+    /**
+     * This method records an object written to a partition
+     * @param key the key of the object
+     */
+    public synchronized void add(String key)
+    {
+        int slash = key.lastIndexOf('/');
+        String location = slash < 0 ? "" : key.substring(0, slash);
+        List<String> objects = partitions.get(location);
+        if (objects == null)
+        {
+            objects = new ArrayList<String>();
+            partitions.put(location, objects);
+        }
+        objects.add(key);
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return partitions.isEmpty();
+    }
+
+    public synchronized int size()
+    {
+        return partitions.size();
+    }
+
+    /**
+     * @param location
+     * @return the values of the name=value directories of the location, in order
+     */
+    static Map<String, String> partitionValues(String location)
+    {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (String directory : location.split("/"))
+        {
+            int equals = directory.indexOf('=');
+            if (equals > 0)
+            {
+                values.put(directory.substring(0, equals), directory.substring(equals + 1));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @param requestId the invocation that wrote the objects
+     * @return the manifest, i.e. {"requestId":"...","partitions":[{"location":"connector=abcd/date=2020-09-21",
+     *         "values":{"connector":"abcd","date":"2020-09-21"},"objects":["connector=abcd/date=2020-09-21/cdr.json"]}]}
+     */
+    public synchronized JSONObject toJson(String requestId)
+    {
+        JSONArray entries = new JSONArray();
+        for (Map.Entry<String, List<String>> partition : partitions.entrySet())
+        {
+            JSONObject entry = new JSONObject();
+            entry.put("location", partition.getKey());
+            entry.put("values", new JSONObject(partitionValues(partition.getKey())));
+            entry.put("objects", new JSONArray(partition.getValue()));
+            entries.put(entry);
+        }
+        JSONObject manifest = new JSONObject();
+        manifest.put("requestId", requestId);
+        manifest.put("partitions", entries);
+        return manifest;
+    }
+}
@@ -0,0 +1,331 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded, in-process cache of the price versions keyed by CDR usage type
+ * (i.e. USW2-US-US-outbound-minutes).
+ *
+ * The handler keeps one instance per container so prices survive warm invocations.
+ * Entries expire after the TTL. An entry read after its refresh-ahead point is
+ * still served, while a reload is scheduled in the background.
+ *
+ * Concurrent misses of the same usage type share a single load, so a burst of CDRs
+ * of a new usage type sends one Pricing request instead of one per CDR.
+ */
+public class PriceCache
+{
+    /**
+     * Loads the price versions for a usage type, or returns null if there is no price.
+     */
+    public interface PriceLoader
+    {
+        PriceHistory load(String usageType);
+    }
+
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+    private static final long DEFAULT_TTL_SECONDS = 3600;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final long refreshAheadMillis;
+    private final Executor refreshExecutor;
+    private final LongSupplier clock;
+
+    private final LinkedHashMap<String, Entry> entries;
+    private final Set<String> refreshing = new HashSet<String>();
+    // the loads in flight, waited for by the misses of the same usage type
+    private final ConcurrentMap<String, CompletableFuture<PriceHistory>> loading =
+            new ConcurrentHashMap<String, CompletableFuture<PriceHistory>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private static final class Entry
+    {
+        final PriceHistory price;
+        final long refreshAt;
+        final long expiresAt;
+
+        Entry(PriceHistory price, long refreshAt, long expiresAt)
+        {
+            this.price = price;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public PriceCache(int maxEntries, long ttlMillis, long refreshAheadMillis,
+            Executor refreshExecutor, LongSupplier clock)
+    {
+        if (maxEntries <= 0)
+        {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.refreshAheadMillis = Math.min(refreshAheadMillis, ttlMillis);
+        this.refreshExecutor = refreshExecutor;
+        this.clock = clock;
+        // access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Creates a cache configured by the PRICE_CACHE_MAX_ENTRIES and PRICE_CACHE_TTL_SECONDS
+     * environment variables. Entries are refreshed ahead once 80% of the TTL has elapsed.
+     * @return
+     */
+    public static PriceCache fromEnvironment()
+    {
+        int maxEntries = parsePositive(System.getenv("PRICE_CACHE_MAX_ENTRIES"), DEFAULT_MAX_ENTRIES);
+        long ttlMillis = parsePositive(System.getenv("PRICE_CACHE_TTL_SECONDS"), DEFAULT_TTL_SECONDS) * 1000L;
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "price-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return new PriceCache(maxEntries, ttlMillis, ttlMillis * 4 / 5, executor, System::currentTimeMillis);
+    }
+
+    /**
+     * Returns the cached price for the given usage type, calling the loader on a miss
+     * or once the cached entry has expired. Null prices are not cached.
+     * @param usageType
+     * @param loader
+     * @return
+     */
+    public PriceHistory get(String usageType, PriceLoader loader)
+    {
+        long now = clock.getAsLong();
+        boolean scheduleRefresh = false;
+        PriceHistory cached = null;
+
+        synchronized (this)
+        {
+            Entry entry = entries.get(usageType);
+            if (entry != null && now < entry.expiresAt)
+            {
+                cached = entry.price;
+                if (now >= entry.refreshAt && refreshing.add(usageType))
+                {
+                    scheduleRefresh = true;
+                }
+            }
+        }
+
+        if (cached != null)
+        {
+            hits.incrementAndGet();
+            if (scheduleRefresh)
+            {
+                scheduleRefresh(usageType, loader);
+            }
+            return cached;
+        }
+
+        misses.incrementAndGet();
+        return loadOnce(usageType, loader);
+    }
+
+    /**
+     * This method loads the price, or waits for the load of another thread that is already in flight
+     * @param usageType
+     * @param loader
+     * @return
+     */
+    private PriceHistory loadOnce(String usageType, PriceLoader loader)
+    {
+        CompletableFuture<PriceHistory> load = new CompletableFuture<PriceHistory>();
+        CompletableFuture<PriceHistory> inFlight = loading.putIfAbsent(usageType, load);
+        if (inFlight == null)
+        {
+            // the load of another thread may have completed since the entry was looked up
+            PriceHistory loaded = fresh(usageType);
+            if (loaded != null)
+            {
+                loading.remove(usageType, load);
+                load.complete(loaded);
+                coalesced.incrementAndGet();
+                return loaded;
+            }
+        }
+        else
+        {
+            coalesced.incrementAndGet();
+            try
+            {
+                return inFlight.join();
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try
+        {
+            PriceHistory price = loader.load(usageType);
+            if (price != null)
+            {
+                put(usageType, price);
+            }
+            load.complete(price);
+            return price;
+        }
+        catch (RuntimeException | Error e)
+        {
+            load.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            loading.remove(usageType, load);
+        }
+    }
+
+    private void scheduleRefresh(final String usageType, final PriceLoader loader)
+    {
+        refreshes.incrementAndGet();
+        try
+        {
+            refreshExecutor.execute(() -> {
+                try
+                {
+                    loadOnce(usageType, loader);
+                }
+                catch (RuntimeException e)
+                {
+                    // keep serving the current value until it expires
+                }
+                finally
+                {
+                    synchronized (PriceCache.this)
+                    {
+                        refreshing.remove(usageType);
+                    }
+                }
+            });
+        }
+        catch (RuntimeException e)
+        {
+            synchronized (this)
+            {
+                refreshing.remove(usageType);
+            }
+        }
+    }
+
+    /**
+     * @param usageType
+     * @return the cached price if it is not due for a refresh yet, otherwise null
+     */
+    private synchronized PriceHistory fresh(String usageType)
+    {
+        Entry entry = entries.get(usageType);
+        return entry != null && clock.getAsLong() < entry.refreshAt ? entry.price : null;
+    }
+
+    private synchronized void put(String usageType, PriceHistory price)
+    {
+        long now = clock.getAsLong();
+        entries.put(usageType, new Entry(price, now + refreshAheadMillis, now + ttlMillis));
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext())
+        {
+            eldest.next();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public long getHitCount()
+    {
+        return hits.get();
+    }
+
+    public long getMissCount()
+    {
+        return misses.get();
+    }
+
+    public long getRefreshCount()
+    {
+        return refreshes.get();
+    }
+
+    public long getEvictionCount()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of misses that waited for the load of another thread
+     */
+    public long getCoalescedCount()
+    {
+        return coalesced.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PriceCache[size=" + size() + ", hits=" + hits.get() + ", misses=" + misses.get()
+                + ", refreshes=" + refreshes.get() + ", evictions=" + evictions.get()
+                + ", coalesced=" + coalesced.get() + "]";
+    }
+
+    private static int parsePositive(String value, int defaultValue)
+    {
+        return (int) parsePositive(value, (long) defaultValue);
+    }
+
+    private static long parsePositive(String value, long defaultValue)
+    {
+        if (value == null || value.trim().isEmpty())
+        {
+            return defaultValue;
+        }
+        try
+        {
+            long parsed = Long.parseLong(value.trim());
+            return parsed > 0 ? parsed : defaultValue;
+        }
+        catch (NumberFormatException e)
+        {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+
+/**
+ * An in-memory index of the complete Amazon Chime Voice Connector price list, keyed by usage type,
+ * with the price dimensions of every usage type compiled into a tier table for each effective date.
+ * The versions of the retained price snapshots are merged in, so old CDRs get the price of their time.
+ *
+ * The catalog is fetched once with paginated GetProducts calls and then refreshed in the background
+ * once it is older than the refresh interval, so enrichment never calls the Pricing API per record.
+ */
+public class PriceCatalog
+{
+    private static final String CHIME_VOICE_CONNECTOR_SERVICE_CODE = "AmazonChimeVoiceConnector";
+    private static final String DEFAULT_FORMAT_VERISION = "aws_v1";
+    // maximum page size supported by GetProducts
+    private static final int MAX_RESULTS = 100;
+    private static final long DEFAULT_REFRESH_SECONDS = 6 * 3600;
+    // wait between attempts when the initial load failed
+    private static final long RETRY_MILLIS = 60 * 1000;
+
+    private final AWSPricing pricingClient;
+    private final long refreshMillis;
+    private final Executor refreshExecutor;
+
+    private volatile Map<String, PriceHistory> index;
+    private volatile PriceHistoryIndex snapshots = new PriceHistoryIndex();
+    private volatile long loadedAt;
+    private volatile long lastAttemptAt;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    public PriceCatalog(AWSPricing pricingClient, long refreshMillis, Executor refreshExecutor)
+    {
+        this.pricingClient = pricingClient;
+        this.refreshMillis = refreshMillis;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * This method sets the retained price snapshots that are merged into the catalog when it is loaded
+     * @param snapshots
+     */
+    public void setSnapshots(PriceHistoryIndex snapshots)
+    {
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Creates a catalog that is refreshed every PRICE_CATALOG_REFRESH_SECONDS (default 6 hours).
+     * @param pricingClient
+     * @return
+     */
+    public static PriceCatalog fromEnvironment(AWSPricing pricingClient)
+    {
+        long refreshSeconds = DEFAULT_REFRESH_SECONDS;
+        String value = System.getenv("PRICE_CATALOG_REFRESH_SECONDS");
+        if (value != null && !value.trim().isEmpty())
+        {
+            try
+            {
+                refreshSeconds = Math.max(1, Long.parseLong(value.trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                // keep the default
+            }
+        }
+        return new PriceCatalog(pricingClient, refreshSeconds * 1000L, runnable -> {
+            Thread thread = new Thread(runnable, "price-catalog-refresh");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * This method pages through the whole Amazon Chime Voice Connector product list
+     * and builds the usage type index.
+     * @return the number of priced usage types
+     */
+    public int load()
+    {
+        Map<String, PriceHistory> newIndex = new HashMap<String, PriceHistory>();
+        PriceHistoryIndex retained = snapshots;
+        for (String usageType : retained.getUsageTypes())
+        {
+            newIndex.put(usageType, retained.get(usageType));
+        }
+
+        String nextToken = null;
+        do
+        {
+            GetProductsRequest getProductsRequest = new GetProductsRequest()
+                    .withServiceCode(CHIME_VOICE_CONNECTOR_SERVICE_CODE)
+                    .withFormatVersion(DEFAULT_FORMAT_VERISION)
+                    .withMaxResults(MAX_RESULTS)
+                    .withNextToken(nextToken);
+
+            GetProductsResult productResult = pricingClient.getProducts(getProductsRequest);
+            if (productResult.getPriceList() != null)
+            {
+                for (String price : productResult.getPriceList())
+                {
+                    for (PriceListEntry entry : PriceListEntry.parseTerms(price))
+                    {
+                        if (entry.getUsageType() != null && !entry.getDimensions().isEmpty())
+                        {
+                            newIndex.merge(entry.getUsageType(),
+                                    PriceHistory.of(PriceHistory.parseEffectiveDate(entry.getEffectiveDate()),
+                                            PriceTierTable.compile(entry.getDimensions())),
+                                    PriceHistory::merge);
+                        }
+                    }
+                }
+            }
+            nextToken = productResult.getNextToken();
+        }
+        while (nextToken != null && !nextToken.isEmpty());
+
+        index = Collections.unmodifiableMap(newIndex);
+        loadedAt = System.currentTimeMillis();
+        return newIndex.size();
+    }
+
+    /**
+     * Loads the catalog if it has never been loaded, or schedules a background refresh once it is stale.
+     * Load failures are logged and leave the current index in place.
+     * @param logger
+     */
+    public void refreshIfStale(final LambdaLogger logger)
+    {
+        if (index == null)
+        {
+            synchronized (this)
+            {
+                if (index == null && System.currentTimeMillis() - lastAttemptAt >= RETRY_MILLIS)
+                {
+                    lastAttemptAt = System.currentTimeMillis();
+                    loadAndLog(logger);
+                }
+            }
+        }
+        else if (System.currentTimeMillis() - loadedAt >= refreshMillis && refreshing.compareAndSet(false, true))
+        {
+            try
+            {
+                refreshExecutor.execute(() -> {
+                    try
+                    {
+                        loadAndLog(logger);
+                    }
+                    finally
+                    {
+                        refreshing.set(false);
+                    }
+                });
+            }
+            catch (RuntimeException e)
+            {
+                refreshing.set(false);
+                logger.log("Unable to schedule price catalog refresh " + e.getMessage());
+            }
+        }
+    }
+
+    private void loadAndLog(LambdaLogger logger)
+    {
+        try
+        {
+            long start = System.currentTimeMillis();
+            int size = load();
+            logger.log("Loaded price catalog with " + size + " usage types in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (RuntimeException e)
+        {
+            logger.log("Unable to load the price catalog " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param usageType
+     * @return the price versions of the usage type, or null if the usage type is not in the catalog
+     */
+    public PriceHistory getHistory(String usageType)
+    {
+        Map<String, PriceHistory> current = index;
+        return current == null ? null : current.get(usageType);
+    }
+
+    public boolean isLoaded()
+    {
+        return index != null;
+    }
+
+    public int size()
+    {
+        Map<String, PriceHistory> current = index;
+        return current == null ? 0 : current.size();
+    }
+}
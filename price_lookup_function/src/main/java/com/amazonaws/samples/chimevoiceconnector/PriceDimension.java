@@ -0,0 +1,72 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.math.BigDecimal;
+
+/**
+ * One price dimension of an AWS Price List entry, i.e. the USD price per minute
+ * between the begin and end range of a usage type.
+ */
+public class PriceDimension
+{
+    private final String unit;
+    private final BigDecimal beginRange;
+    // null when the range is unbounded ("Inf")
+    private final BigDecimal endRange;
+    private final BigDecimal pricePerUnitUSD;
+    // pre-parsed for the cost engine and the CDR output
+    private final long fixedPricePerUnit;
+    private final String pricePerUnitText;
+
+    public PriceDimension(String unit, BigDecimal beginRange, BigDecimal endRange, BigDecimal pricePerUnitUSD)
+    {
+        this.unit = unit;
+        this.beginRange = beginRange;
+        this.endRange = endRange;
+        this.pricePerUnitUSD = pricePerUnitUSD;
+        this.fixedPricePerUnit = CostEngine.toFixedPrice(pricePerUnitUSD);
+        this.pricePerUnitText = pricePerUnitUSD.toPlainString();
+    }
+
+    public String getUnit()
+    {
+        return unit;
+    }
+
+    public BigDecimal getBeginRange()
+    {
+        return beginRange;
+    }
+
+    public BigDecimal getEndRange()
+    {
+        return endRange;
+    }
+
+    public BigDecimal getPricePerUnitUSD()
+    {
+        return pricePerUnitUSD;
+    }
+
+    /**
+     * @return the price per unit with CostEngine.PRICE_SCALE decimal places
+     */
+    public long getFixedPricePerUnit()
+    {
+        return fixedPricePerUnit;
+    }
+
+    /**
+     * @return the price per unit as published, i.e. 0.0048000000
+     */
+    public String getPricePerUnitText()
+    {
+        return pricePerUnitText;
+    }
+
+    @Override
+    public String toString()
+    {
+        return pricePerUnitUSD.toPlainString() + " USD per " + unit + " [" + beginRange.toPlainString() + ", "
+                + (endRange == null ? "Inf" : endRange.toPlainString()) + ")";
+    }
+}
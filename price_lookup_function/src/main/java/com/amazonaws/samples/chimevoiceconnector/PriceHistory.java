@@ -0,0 +1,161 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+
+/**
+ * The price versions of one usage type, sorted by the epoch second each became effective.
+ *
+ * The price of a call is the version in force when it started, found by binary search. Calls older
+ * than the first known version have no price, unless the first version is undated, since the price
+ * they were billed at is not known. Instances are immutable, adding a version returns a new history.
+ */
+public final class PriceHistory
+{
+    /**
+     * The effective time of prices without an effective date, before any dated version.
+     */
+    public static final long UNDATED = Long.MIN_VALUE;
+
+    public static final PriceHistory EMPTY = new PriceHistory(new long[0], new PriceTierTable[0]);
+
+    private final long[] effectiveSeconds;
+    private final PriceTierTable[] versions;
+
+    private PriceHistory(long[] effectiveSeconds, PriceTierTable[] versions)
+    {
+        this.effectiveSeconds = effectiveSeconds;
+        this.versions = versions;
+    }
+
+    /**
+     * @param effectiveEpochSeconds
+     * @param prices
+     * @return a history with a single version
+     */
+    public static PriceHistory of(long effectiveEpochSeconds, PriceTierTable prices)
+    {
+        return EMPTY.with(effectiveEpochSeconds, prices);
+    }
+
+    /**
+     * This method parses the effectiveDate of a price list term, i.e. 2020-09-01T00:00:00Z
+     * @param effectiveDate
+     * @return the epoch second, or UNDATED if the date is missing or not valid
+     */
+    public static long parseEffectiveDate(String effectiveDate)
+    {
+        if (effectiveDate == null || effectiveDate.isEmpty())
+        {
+            return UNDATED;
+        }
+        try
+        {
+            return Instant.parse(effectiveDate).getEpochSecond();
+        }
+        catch (DateTimeParseException e)
+        {
+            return UNDATED;
+        }
+    }
+
+    /**
+     * This method adds a price version, replacing the version with the same effective time if any
+     * @param effectiveEpochSeconds
+     * @param prices
+     * @return the new history
+     */
+    public PriceHistory with(long effectiveEpochSeconds, PriceTierTable prices)
+    {
+        int index = Arrays.binarySearch(effectiveSeconds, effectiveEpochSeconds);
+        if (index >= 0)
+        {
+            PriceTierTable[] replaced = versions.clone();
+            replaced[index] = prices;
+            return new PriceHistory(effectiveSeconds, replaced);
+        }
+
+        int insertAt = -index - 1;
+        long[] newSeconds = new long[effectiveSeconds.length + 1];
+        PriceTierTable[] newVersions = new PriceTierTable[versions.length + 1];
+        System.arraycopy(effectiveSeconds, 0, newSeconds, 0, insertAt);
+        System.arraycopy(versions, 0, newVersions, 0, insertAt);
+        newSeconds[insertAt] = effectiveEpochSeconds;
+        newVersions[insertAt] = prices;
+        System.arraycopy(effectiveSeconds, insertAt, newSeconds, insertAt + 1, effectiveSeconds.length - insertAt);
+        System.arraycopy(versions, insertAt, newVersions, insertAt + 1, versions.length - insertAt);
+        return new PriceHistory(newSeconds, newVersions);
+    }
+
+    /**
+     * This method merges two histories, the versions of the other history win on the same effective time
+     * @param other
+     * @return the merged history
+     */
+    public PriceHistory merge(PriceHistory other)
+    {
+        PriceHistory merged = this;
+        for (int i = 0; i < other.effectiveSeconds.length; i++)
+        {
+            merged = merged.with(other.effectiveSeconds[i], other.versions[i]);
+        }
+        return merged;
+    }
+
+    /**
+     * @param epochSeconds the start of the call
+     * @return the price in force at the given time, or null if the history is empty or the call
+     *         started before the first known version
+     */
+    public PriceTierTable at(long epochSeconds)
+    {
+        int index = Arrays.binarySearch(effectiveSeconds, epochSeconds);
+        // between two versions, the one that became effective last
+        int inForce = index >= 0 ? index : -index - 2;
+        return inForce < 0 ? null : versions[inForce];
+    }
+
+    /**
+     * @return the epoch second the first known version became effective, UNDATED if it has no
+     *         effective date, or Long.MAX_VALUE if the history is empty
+     */
+    public long firstEffective()
+    {
+        return effectiveSeconds.length == 0 ? Long.MAX_VALUE : effectiveSeconds[0];
+    }
+
+    /**
+     * @return the most recent price, or null if the history is empty
+     */
+    public PriceTierTable latest()
+    {
+        return versions.length == 0 ? null : versions[versions.length - 1];
+    }
+
+    public int size()
+    {
+        return versions.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return versions.length == 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < versions.length; i++)
+        {
+            if (i > 0)
+            {
+                builder.append(", ");
+            }
+            builder.append(effectiveSeconds[i] == UNDATED ? "undated" : Instant.ofEpochSecond(effectiveSeconds[i]).toString())
+                    .append('=').append(versions[i]);
+        }
+        return builder.append(']').toString();
+    }
+}
@@ -0,0 +1,203 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+/**
+ * The price history of every usage type, built from retained price list snapshots, which are merged
+ * with the terms returned by the Pricing API when prices are looked up.
+ *
+ * A snapshot is either the output of "aws pricing get-products" (a JSON object with a PriceList array)
+ * or one price list JSON document per line. Every OnDemand term is added at its effectiveDate.
+ */
+public class PriceHistoryIndex
+{
+    private static final String DEFAULT_SNAPSHOT_PREFIX = "price-snapshots/";
+
+    private final ConcurrentMap<String, PriceHistory> histories = new ConcurrentHashMap<String, PriceHistory>();
+
+    /**
+     * Loads the snapshots stored under PRICE_SNAPSHOT_PREFIX (default price-snapshots/) in the
+     * PRICE_SNAPSHOT_BUCKET, the index is empty when no bucket is configured.
+     * @param s3
+     * @return
+     */
+    public static PriceHistoryIndex fromEnvironment(AmazonS3 s3)
+    {
+        PriceHistoryIndex index = new PriceHistoryIndex();
+        String bucket = System.getenv("PRICE_SNAPSHOT_BUCKET");
+        if (bucket != null && !bucket.trim().isEmpty())
+        {
+            String prefix = System.getenv("PRICE_SNAPSHOT_PREFIX");
+            index.loadSnapshots(s3, bucket.trim(), prefix == null ? DEFAULT_SNAPSHOT_PREFIX : prefix.trim());
+        }
+        return index;
+    }
+
+    /**
+     * This method adds the price of a price list term at its effective date
+     * @param entry
+     */
+    public void add(PriceListEntry entry)
+    {
+        if (entry.getUsageType() == null || entry.getDimensions().isEmpty())
+        {
+            return;
+        }
+        PriceHistory version = PriceHistory.of(PriceHistory.parseEffectiveDate(entry.getEffectiveDate()),
+                PriceTierTable.compile(entry.getDimensions()));
+        histories.merge(entry.getUsageType(), version, PriceHistory::merge);
+    }
+
+    /**
+     * This method adds every term of a price list JSON document
+     * @param priceJson
+     */
+    public void addPriceList(String priceJson)
+    {
+        for (PriceListEntry entry : PriceListEntry.parseTerms(priceJson))
+        {
+            add(entry);
+        }
+    }
+
+    /**
+     * This method reads one snapshot
+     * @param snapshot
+     * @return the number of price list documents read
+     * @throws IOException
+     */
+    public int addSnapshot(InputStream snapshot) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(snapshot, StandardCharsets.UTF_8));
+        String content = reader.lines().collect(Collectors.joining("\n")).trim();
+        if (content.isEmpty())
+        {
+            return 0;
+        }
+
+        Object first = new JSONTokener(content).nextValue();
+        if (first instanceof JSONObject && ((JSONObject) first).has("PriceList"))
+        {
+            JSONArray priceList = ((JSONObject) first).getJSONArray("PriceList");
+            for (int i = 0; i < priceList.length(); i++)
+            {
+                // the CLI returns the documents as strings
+                addPriceList(priceList.get(i).toString());
+            }
+            return priceList.length();
+        }
+
+        int documents = 0;
+        for (String line : content.split("\n"))
+        {
+            if (!line.trim().isEmpty())
+            {
+                addPriceList(line);
+                documents++;
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * This method reads every snapshot file of a directory
+     * @param directory
+     * @return the number of price list documents read
+     * @throws IOException
+     */
+    public int loadSnapshots(Path directory) throws IOException
+    {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory))
+        {
+            files = listing.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        int documents = 0;
+        for (Path file : files)
+        {
+            try (InputStream in = Files.newInputStream(file))
+            {
+                documents += addSnapshot(in);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * This method reads every snapshot object under the given prefix
+     * @param s3
+     * @param bucket
+     * @param prefix
+     * @return the number of price list documents read
+     */
+    public int loadSnapshots(AmazonS3 s3, String bucket, String prefix)
+    {
+        int documents = 0;
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+        ListObjectsV2Result result;
+        do
+        {
+            result = s3.listObjectsV2(request);
+            for (S3ObjectSummary summary : result.getObjectSummaries())
+            {
+                try (S3Object object = s3.getObject(bucket, summary.getKey()))
+                {
+                    documents += addSnapshot(object.getObjectContent());
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException("Unable to read the price snapshot " + summary.getKey(), e);
+                }
+            }
+            request.setContinuationToken(result.getNextContinuationToken());
+        }
+        while (result.isTruncated());
+        return documents;
+    }
+
+    /**
+     * @param usageType
+     * @return the retained price versions of the usage type, empty if there are none
+     */
+    public PriceHistory get(String usageType)
+    {
+        PriceHistory history = histories.get(usageType);
+        return history == null ? PriceHistory.EMPTY : history;
+    }
+
+    /**
+     * @return the usage types with a price history
+     */
+    public Set<String> getUsageTypes()
+    {
+        return histories.keySet();
+    }
+
+    public int size()
+    {
+        return histories.size();
+    }
+}
@@ -0,0 +1,109 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * A parsed AWS Price List product (as returned by GetProducts) for Amazon Chime Voice Connector.
+ * Only the usage type, the OnDemand effective date and the price dimensions are kept.
+ */
+public class PriceListEntry
+{
+    private final String usageType;
+    private final String effectiveDate;
+    private final List<PriceDimension> dimensions;
+
+    public PriceListEntry(String usageType, String effectiveDate, List<PriceDimension> dimensions)
+    {
+        this.usageType = usageType;
+        this.effectiveDate = effectiveDate;
+        this.dimensions = Collections.unmodifiableList(dimensions);
+    }
+
+    /**
+     * This method parses one price list JSON document into an entry for each of its OnDemand terms,
+     * so terms with different effective dates stay apart
+     * @param priceJson
+     * @return
+     */
+    public static List<PriceListEntry> parseTerms(String priceJson)
+    {
+        JSONObject jsonPrice = new JSONObject(priceJson);
+
+        String usageType = null;
+        JSONObject product = jsonPrice.optJSONObject("product");
+        if (product != null && product.optJSONObject("attributes") != null)
+        {
+            usageType = product.getJSONObject("attributes").optString("usagetype", null);
+        }
+
+        List<PriceListEntry> entries = new ArrayList<PriceListEntry>();
+        JSONObject ondemand = (JSONObject) jsonPrice.query("/terms/OnDemand");
+        if (ondemand != null)
+        {
+            Iterator<String> termKeys = ondemand.keys();
+            while (termKeys.hasNext())
+            {
+                JSONObject term = ondemand.getJSONObject(termKeys.next());
+                List<PriceDimension> dimensions = new ArrayList<PriceDimension>();
+                addDimensions(term, dimensions);
+                entries.add(new PriceListEntry(usageType, term.optString("effectiveDate", null), dimensions));
+            }
+        }
+        return entries;
+    }
+
+    private static void addDimensions(JSONObject term, List<PriceDimension> dimensions)
+    {
+        JSONObject pricedemensions = term.getJSONObject("priceDimensions");
+        Iterator<String> dimensionKeys = pricedemensions.keys();
+        while (dimensionKeys.hasNext())
+        {
+            JSONObject dimension = pricedemensions.getJSONObject(dimensionKeys.next());
+            JSONObject priceUnit = dimension.getJSONObject("pricePerUnit");
+
+            dimensions.add(new PriceDimension(
+                    dimension.optString("unit", null),
+                    parseRange(dimension.optString("beginRange", "0")),
+                    parseRange(dimension.optString("endRange", "Inf")),
+                    new BigDecimal(priceUnit.getString("USD"))));
+        }
+    }
+
+    private static BigDecimal parseRange(String range)
+    {
+        if (range == null || range.isEmpty() || "Inf".equalsIgnoreCase(range))
+        {
+            return null;
+        }
+        return new BigDecimal(range);
+    }
+
+    public String getUsageType()
+    {
+        return usageType;
+    }
+
+    public String getEffectiveDate()
+    {
+        return effectiveDate;
+    }
+
+    public List<PriceDimension> getDimensions()
+    {
+        return dimensions;
+    }
+
+    /**
+     * @return the first price dimension, or null if the entry has no dimensions
+     */
+    public PriceDimension getFirstDimension()
+    {
+        return dimensions.isEmpty() ? null : dimensions.get(0);
+    }
+}
@@ -0,0 +1,133 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The price dimensions of one usage type compiled into an immutable tier table: the tier start
+ * boundaries in billable seconds, sorted, with the price of each tier.
+ *
+ * Tier i applies from its begin range up to the begin range of tier i + 1, the last tier is unbounded.
+ * The tier of a given monthly usage is found by binary search, and a call that crosses a boundary is
+ * billed at the price of each tier for the seconds it spends in it.
+ */
+public final class PriceTierTable
+{
+    /** marks a CDR priced at the first tier because the monthly usage of its Voice Connector is not known */
+    public static final String PROVISIONAL_TIER_FIELD = "PriceTierProvisional";
+
+    private static final BigDecimal SECONDS_PER_UNIT = BigDecimal.valueOf(60);
+
+    private final long[] startSeconds;
+    private final PriceDimension[] tiers;
+
+    private PriceTierTable(long[] startSeconds, PriceDimension[] tiers)
+    {
+        this.startSeconds = startSeconds;
+        this.tiers = tiers;
+    }
+
+    /**
+     * This method compiles the price dimensions of a usage type, ranges are in minutes
+     * @param dimensions
+     * @return the tier table, or null if there are no dimensions
+     */
+    public static PriceTierTable compile(List<PriceDimension> dimensions)
+    {
+        if (dimensions == null || dimensions.isEmpty())
+        {
+            return null;
+        }
+        List<PriceDimension> sorted = new ArrayList<PriceDimension>(dimensions);
+        Collections.sort(sorted, Comparator.comparing(PriceDimension::getBeginRange));
+
+        long[] startSeconds = new long[sorted.size()];
+        for (int i = 0; i < startSeconds.length; i++)
+        {
+            startSeconds[i] = sorted.get(i).getBeginRange().multiply(SECONDS_PER_UNIT)
+                    .setScale(0, RoundingMode.HALF_UP).longValueExact();
+        }
+        // usage below the first published range is billed at the first tier
+        startSeconds[0] = Math.min(startSeconds[0], 0);
+        return new PriceTierTable(startSeconds, sorted.toArray(new PriceDimension[sorted.size()]));
+    }
+
+    /**
+     * @param usageSeconds the billable seconds already used this month
+     * @return the index of the tier the next second is billed at
+     */
+    public int tierIndex(long usageSeconds)
+    {
+        int index = Arrays.binarySearch(startSeconds, usageSeconds);
+        // between two boundaries, the tier is the one starting below
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    /**
+     * @param usageSeconds the billable seconds already used this month
+     * @return the tier the next second is billed at
+     */
+    public PriceDimension tierAt(long usageSeconds)
+    {
+        return tiers[tierIndex(usageSeconds)];
+    }
+
+    /**
+     * This method calculates the cost of a call, billing each of its seconds at the price of the tier
+     * the monthly usage is in at that point
+     * @param usageSeconds the billable seconds used this month before the call
+     * @param billableSeconds the billable seconds of the call
+     * @return the cost in micro-dollars
+     */
+    public long costMicros(long usageSeconds, long billableSeconds)
+    {
+        int tier = tierIndex(usageSeconds);
+        if (tier == tiers.length - 1)
+        {
+            return CostEngine.costMicros(billableSeconds, tiers[tier].getFixedPricePerUnit());
+        }
+
+        long secondsTimesPrice = 0;
+        long position = usageSeconds;
+        long remaining = billableSeconds;
+        while (remaining > 0)
+        {
+            long inTier = tier == tiers.length - 1 ? remaining : Math.min(remaining, startSeconds[tier + 1] - position);
+            secondsTimesPrice = Math.addExact(secondsTimesPrice,
+                    Math.multiplyExact(inTier, tiers[tier].getFixedPricePerUnit()));
+            remaining -= inTier;
+            position += inTier;
+            tier++;
+        }
+        return CostEngine.roundCost(secondsTimesPrice);
+    }
+
+    /**
+     * @return true if the price depends on the monthly usage
+     */
+    public boolean isTiered()
+    {
+        return tiers.length > 1;
+    }
+
+    public PriceDimension getFirstTier()
+    {
+        return tiers[0];
+    }
+
+    public List<PriceDimension> getTiers()
+    {
+        return Collections.unmodifiableList(Arrays.asList(tiers));
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(tiers);
+    }
+}
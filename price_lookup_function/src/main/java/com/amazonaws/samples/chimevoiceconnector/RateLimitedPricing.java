@@ -0,0 +1,181 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ResponseMetadata;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.AbstractAWSPricing;
+import com.amazonaws.services.pricing.model.DescribeServicesRequest;
+import com.amazonaws.services.pricing.model.DescribeServicesResult;
+import com.amazonaws.services.pricing.model.GetAttributeValuesRequest;
+import com.amazonaws.services.pricing.model.GetAttributeValuesResult;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+
+/**
+ * A Pricing client that sends the requests of the whole container through one adaptive token bucket,
+ * and retries throttled and server errors with exponential backoff and full jitter. A burst of CDRs
+ * then slows down to the rate the Pricing API accepts instead of failing the invocation.
+ *
+ * The wrapped client should not retry on its own, so the attempts are not multiplied.
+ */
+public class RateLimitedPricing extends AbstractAWSPricing
+{
+    /**
+     * Waits between attempts, replaced by tests.
+     */
+    public interface Sleeper
+    {
+        void sleep(long nanos) throws InterruptedException;
+    }
+
+    private static final double DEFAULT_REQUESTS_PER_SECOND = 5;
+    private static final int DEFAULT_MAX_ATTEMPTS = 5;
+    private static final long BASE_DELAY_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 5000;
+
+    private final AWSPricing delegate;
+    private final TokenBucket bucket;
+    private final int maxAttempts;
+    private final Sleeper sleeper;
+    private final AtomicLong throttled = new AtomicLong();
+
+    public RateLimitedPricing(AWSPricing delegate, TokenBucket bucket, int maxAttempts, Sleeper sleeper)
+    {
+        this.delegate = delegate;
+        this.bucket = bucket;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.sleeper = sleeper;
+    }
+
+    /**
+     * Wraps the client with a bucket of PRICING_REQUESTS_PER_SECOND (default 5, with a burst of as many
+     * requests) and PRICING_MAX_ATTEMPTS attempts per request (default 5).
+     * @param delegate
+     * @return
+     */
+    public static RateLimitedPricing fromEnvironment(AWSPricing delegate)
+    {
+        double rate = DEFAULT_REQUESTS_PER_SECOND;
+        int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+        try
+        {
+            String value = System.getenv("PRICING_REQUESTS_PER_SECOND");
+            if (value != null && !value.trim().isEmpty())
+            {
+                rate = Math.max(0.1, Double.parseDouble(value.trim()));
+            }
+            value = System.getenv("PRICING_MAX_ATTEMPTS");
+            if (value != null && !value.trim().isEmpty())
+            {
+                maxAttempts = Math.max(1, Integer.parseInt(value.trim()));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            // keep the defaults
+        }
+        return new RateLimitedPricing(delegate, new TokenBucket(rate, Math.max(1, rate), System::nanoTime),
+                maxAttempts, TimeUnit.NANOSECONDS::sleep);
+    }
+
+    @Override
+    public GetProductsResult getProducts(GetProductsRequest request)
+    {
+        return call(() -> delegate.getProducts(request));
+    }
+
+    @Override
+    public GetAttributeValuesResult getAttributeValues(GetAttributeValuesRequest request)
+    {
+        return call(() -> delegate.getAttributeValues(request));
+    }
+
+    @Override
+    public DescribeServicesResult describeServices(DescribeServicesRequest request)
+    {
+        return call(() -> delegate.describeServices(request));
+    }
+
+    @Override
+    public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request)
+    {
+        return delegate.getCachedResponseMetadata(request);
+    }
+
+    @Override
+    public void shutdown()
+    {
+        delegate.shutdown();
+    }
+
+    /**
+     * @return the number of throttled attempts
+     */
+    public long getThrottledCount()
+    {
+        return throttled.get();
+    }
+
+    private <T> T call(Supplier<T> request)
+    {
+        for (int attempt = 1; ; attempt++)
+        {
+            pause(bucket.reserve());
+            try
+            {
+                T result = request.get();
+                bucket.onSuccess();
+                return result;
+            }
+            catch (AmazonServiceException e)
+            {
+                boolean throttling = RetryUtils.isThrottlingException(e);
+                if (throttling)
+                {
+                    throttled.incrementAndGet();
+                    bucket.onThrottled();
+                }
+                if (attempt >= maxAttempts || !(throttling || e.getStatusCode() >= 500))
+                {
+                    throw e;
+                }
+            }
+            pause(backoffNanos(attempt));
+        }
+    }
+
+    /**
+     * @param attempt the number of attempts made
+     * @return a random delay up to the exponential backoff of the attempt
+     */
+    static long backoffNanos(int attempt)
+    {
+        long ceiling = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempt - 1, 16));
+        return TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(ceiling + 1));
+    }
+
+    private void pause(long nanos)
+    {
+        if (nanos <= 0)
+        {
+            return;
+        }
+        try
+        {
+            sleeper.sleep(nanos);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted while waiting to call the Pricing API", e);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * The result of processing one S3 notification record, i.e. one CDR object.
+ */
+public class RecordOutcome
+{
+    public enum Status
+    {
+        ENRICHED,
+        SKIPPED,
+        FAILED
+    }
+
+    private final String bucket;
+    private final String key;
+    private Status status;
+    private int cdrCount;
+    private int enrichedCount;
+    private int duplicateCount;
+    private long costMicros;
+    private String message;
+    private CostAggregate aggregate;
+    private final List<String> claimedIds = new ArrayList<String>();
+
+    public RecordOutcome(String bucket, String key)
+    {
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    public static RecordOutcome skipped(String bucket, String key, String message)
+    {
+        RecordOutcome outcome = new RecordOutcome(bucket, key);
+        outcome.status = Status.SKIPPED;
+        outcome.message = message;
+        return outcome;
+    }
+
+    public static RecordOutcome failed(String bucket, String key, String message)
+    {
+        RecordOutcome outcome = new RecordOutcome(bucket, key);
+        outcome.status = Status.FAILED;
+        outcome.message = message;
+        return outcome;
+    }
+
+    /**
+     * Counts one CDR read from the object, with its cost if it could be priced.
+     * @param costMicros the cost in micro-dollars, or CostEngine.NOT_PRICED if the CDR was not priced
+     */
+    public void addCDR(long costMicros)
+    {
+        cdrCount++;
+        if (costMicros != CostEngine.NOT_PRICED)
+        {
+            enrichedCount++;
+            this.costMicros += costMicros;
+        }
+    }
+
+    /**
+     * Counts one CDR that was skipped because it was enriched before.
+     */
+    public void addDuplicate()
+    {
+        duplicateCount++;
+    }
+
+    /**
+     * Keeps the id the duplicate filter recorded for a CDR of the object, so it can be dropped if the object fails.
+     * @param id
+     */
+    public void addClaimedId(String id)
+    {
+        claimedIds.add(id);
+    }
+
+    public List<String> getClaimedIds()
+    {
+        return claimedIds;
+    }
+
+    /**
+     * Drops the claimed ids once the CDRs are committed to the batch writer, which reports the ids of the
+     * CDRs it could not upload.
+     */
+    public void clearClaimedIds()
+    {
+        claimedIds.clear();
+    }
+
+    public void setStatus(Status status)
+    {
+        this.status = status;
+    }
+
+    public void setMessage(String message)
+    {
+        this.message = message;
+    }
+
+    public String getBucket()
+    {
+        return bucket;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public Status getStatus()
+    {
+        return status;
+    }
+
+    public int getCdrCount()
+    {
+        return cdrCount;
+    }
+
+    public int getEnrichedCount()
+    {
+        return enrichedCount;
+    }
+
+    public int getDuplicateCount()
+    {
+        return duplicateCount;
+    }
+
+    /**
+     * @return the cost of the priced CDRs in micro-dollars
+     */
+    public long getCostMicros()
+    {
+        return costMicros;
+    }
+
+    public String getMessage()
+    {
+        return message;
+    }
+
+    /**
+     * @return the cost totals of the priced CDRs of the object, only filled when cost aggregation is enabled
+     */
+    public CostAggregate getAggregate()
+    {
+        if (aggregate == null)
+        {
+            aggregate = new CostAggregate();
+        }
+        return aggregate;
+    }
+
+    public JSONObject toJson()
+    {
+        JSONObject json = new JSONObject();
+        json.put("bucket", bucket);
+        json.put("key", key);
+        json.put("status", status);
+        json.put("cdrs", cdrCount);
+        json.put("enriched", enrichedCount);
+        if (duplicateCount > 0)
+        {
+            json.put("duplicates", duplicateCount);
+        }
+        json.put("costUSD", CostEngine.formatMicros(costMicros));
+        if (message != null)
+        {
+            json.put("message", message);
+        }
+        return json;
+    }
+}
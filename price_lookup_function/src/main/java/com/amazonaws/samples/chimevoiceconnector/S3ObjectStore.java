@@ -0,0 +1,133 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * An ObjectStore over the synchronous AmazonS3 client, which runs the transfers on a pool of
+ * I/O threads so they do not hold the threads that enrich the CDRs.
+ *
+ * The content of a downloaded object is held in memory until it is enriched, the handler bounds the
+ * bytes of the objects in flight (MAX_IN_FLIGHT_BYTES).
+ */
+public class S3ObjectStore implements ObjectStore
+{
+    private static final int DEFAULT_IO_CONCURRENCY = 16;
+
+    private final AmazonS3 s3;
+    private final Executor ioExecutor;
+
+    public S3ObjectStore(AmazonS3 s3, Executor ioExecutor)
+    {
+        this.s3 = s3;
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * @return the number of concurrent transfers, IO_CONCURRENCY (default 16)
+     */
+    public static int ioConcurrency()
+    {
+        String value = System.getenv("IO_CONCURRENCY");
+        if (value != null && !value.trim().isEmpty())
+        {
+            try
+            {
+                return Math.max(1, Integer.parseInt(value.trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                // keep the default
+            }
+        }
+        return DEFAULT_IO_CONCURRENCY;
+    }
+
+    /**
+     * Creates the I/O pool with the given number of daemon threads
+     * @param concurrency
+     * @return
+     */
+    public static ExecutorService createIoExecutor(int concurrency)
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), runnable -> {
+                    Thread thread = new Thread(runnable, "s3-io");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public CompletableFuture<S3Object> get(String bucket, String key)
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            S3Object object = s3.getObject(new GetObjectRequest(bucket, key));
+            try
+            {
+                byte[] content = IOUtils.toByteArray(object.getObjectContent());
+                S3Object downloaded = new S3Object();
+                downloaded.setBucketName(bucket);
+                downloaded.setKey(key);
+                downloaded.setObjectMetadata(object.getObjectMetadata());
+                downloaded.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+                return downloaded;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException("Unable to download " + key, e);
+            }
+            finally
+            {
+                // To ensure that the network connection doesn't remain open, close any open input streams.
+                closeQuietly(object);
+            }
+        }, ioExecutor);
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String bucket, String key, InputStream content, long length, String contentType,
+            String contentEncoding)
+    {
+        return CompletableFuture.runAsync(() -> {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(contentType);
+            metadata.setContentLength(length);
+            if (contentEncoding != null)
+            {
+                metadata.setContentEncoding(contentEncoding);
+            }
+            s3.putObject(new PutObjectRequest(bucket, key, content, metadata));
+        }, ioExecutor);
+    }
+
+    private static void closeQuietly(S3Object object)
+    {
+        try
+        {
+            object.close();
+        }
+        catch (IOException e)
+        {
+            // the content was read already
+        }
+    }
+}
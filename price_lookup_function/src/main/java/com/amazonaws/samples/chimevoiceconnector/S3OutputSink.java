@@ -0,0 +1,31 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes the objects to a bucket, through the object store and its IO threads.
+ */
+public class S3OutputSink extends AbstractOutputSink
+{
+    private final ObjectStore objectStore;
+    private final String bucket;
+
+    public S3OutputSink(ObjectStore objectStore, String bucket)
+    {
+        this.objectStore = objectStore;
+        this.bucket = bucket;
+    }
+
+    @Override
+    protected CompletableFuture<Void> writeContent(String key, OutputBuffer content, String contentType,
+            String contentEncoding)
+    {
+        return objectStore.put(bucket, key, content.toInputStream(), content.size(), contentType, contentEncoding);
+    }
+
+    @Override
+    public String getName()
+    {
+        return "s3://" + bucket;
+    }
+}
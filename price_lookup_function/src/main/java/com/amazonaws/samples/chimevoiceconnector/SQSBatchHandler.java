@@ -0,0 +1,174 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.amazonaws.services.s3.event.S3EventNotification;
+import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
+
+/**
+ * Enriches the CDR objects of a batch of SQS messages, each holding an S3 event notification, in a
+ * single invocation. The objects of all the messages go through the same pipeline, caches and clients
+ * as the S3 event handler.
+ *
+ * The handler returns the ids of the failed messages as batchItemFailures, so only those are delivered
+ * again. The event source mapping must report batch item failures (ReportBatchItemFailures). With
+ * BATCH_OUTPUT, a batch that could not be uploaded fails every message that has CDRs in it. The CDRs of
+ * a failed object are never added to a batch, those of the other objects of a failed message are skipped
+ * by the duplicate filter when it is delivered again.
+ *
+ * The event is read as JSON from the stream, the Lambda events library of this project predates SQS events.
+ */
+public class SQSBatchHandler implements RequestStreamHandler
+{
+    private final LambdaFunctionHandler handler;
+
+    public SQSBatchHandler()
+    {
+        this(new LambdaFunctionHandler());
+    }
+
+    // Test purpose only.
+    SQSBatchHandler(LambdaFunctionHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException
+    {
+        JSONObject event = new JSONObject(new JSONTokener(new InputStreamReader(input, StandardCharsets.UTF_8)));
+        Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+        handle(event, context).write(writer);
+        writer.flush();
+    }
+
+    /**
+     * This method enriches the objects of every message of the SQS event
+     * @param event
+     * @param context
+     * @return the batch response, with the ids of the messages to deliver again
+     */
+    JSONObject handle(JSONObject event, Context context)
+    {
+        long started = handler.startInvocation(context);
+        Log log = new Log(context.getLogger());
+
+        JSONArray messages = event.optJSONArray("Records");
+        List<String> messageIds = new ArrayList<String>();
+        Set<String> failedIds = new HashSet<String>();
+        List<S3EventNotificationRecord> records = new ArrayList<S3EventNotificationRecord>();
+        // the message of every record, by index
+        List<String> recordMessageIds = new ArrayList<String>();
+        for (int i = 0; messages != null && i < messages.length(); i++)
+        {
+            JSONObject message = messages.getJSONObject(i);
+            String messageId = message.optString("messageId");
+            messageIds.add(messageId);
+            try
+            {
+                // the S3 test event sent when the notification is configured has no records
+                List<S3EventNotificationRecord> notification =
+                        S3EventNotification.parseJson(message.getString("body")).getRecords();
+                if (notification != null)
+                {
+                    for (S3EventNotificationRecord record : notification)
+                    {
+                        records.add(record);
+                        recordMessageIds.add(messageId);
+                    }
+                }
+            }
+            catch (RuntimeException e)
+            {
+                log.error("Message " + messageId + " is not an S3 event notification", e);
+                failedIds.add(messageId);
+            }
+        }
+
+        List<RecordOutcome> outcomes = handler.processRecords(records);
+        for (int i = 0; i < outcomes.size(); i++)
+        {
+            if (outcomes.get(i).getStatus() == RecordOutcome.Status.FAILED)
+            {
+                failedIds.add(recordMessageIds.get(i));
+            }
+        }
+
+        InvocationSummary summary = new InvocationSummary();
+        for (RecordOutcome outcome : outcomes)
+        {
+            summary.add(outcome);
+        }
+
+        try
+        {
+            CDRBatchWriter.Results batches = handler.flushBatches();
+            if (!batches.getFailedKeys().isEmpty())
+            {
+                // a batch holds the CDRs of several messages, every one of them is delivered again
+                log.error("Unable to upload CDR batches " + batches.getFailedKeys()
+                        + ", the messages of their CDRs are delivered again");
+                for (int i = 0; i < outcomes.size(); i++)
+                {
+                    if (batches.isFailed(outcomes.get(i)))
+                    {
+                        failedIds.add(recordMessageIds.get(i));
+                    }
+                }
+            }
+            List<RecordOutcome> delivered = new ArrayList<RecordOutcome>();
+            for (int i = 0; i < outcomes.size(); i++)
+            {
+                if (!failedIds.contains(recordMessageIds.get(i)))
+                {
+                    delivered.add(outcomes.get(i));
+                }
+            }
+            // the CDRs written for a failed message keep their ids in the duplicate filter and are skipped
+            // when it is delivered again, without a filter that delivery stores their totals
+            handler.writeAggregates(handler.isDeduplicating() ? outcomes : delivered, batches,
+                    context.getAwsRequestId());
+        }
+        catch (RuntimeException e)
+        {
+            log.error("Unable to store the results of the batch, all its messages are delivered again", e);
+            failedIds.addAll(messageIds);
+        }
+        finally
+        {
+            handler.finishInvocation(context, started);
+            handler.persistDuplicateFilter();
+        }
+
+        JSONObject summaryJson = new JSONObject(summary.toJson());
+        summaryJson.put("messages", messageIds.size());
+        summaryJson.put("failedMessages", failedIds.size());
+        log.info(() -> "Batch summary: " + summaryJson);
+
+        JSONArray failures = new JSONArray();
+        for (String messageId : messageIds)
+        {
+            if (failedIds.remove(messageId))
+            {
+                failures.put(new JSONObject().put("itemIdentifier", messageId));
+            }
+        }
+        return new JSONObject().put("batchItemFailures", failures);
+    }
+}
@@ -0,0 +1,44 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.AWSPricingClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+
+/**
+ * The AWS SDK clients shared by every handler instance of the container.
+ *
+ * Each client is built on first use by the class loader of its holder, so building it is
+ * thread safe, and a container that never needs a client never pays for it.
+ */
+public final class SdkClients
+{
+    private SdkClients()
+    {
+    }
+
+    private static final class S3Holder
+    {
+        static final AmazonS3 S3 = AmazonS3ClientBuilder.standard().build();
+    }
+
+    private static final class PricingHolder
+    {
+        // the requests are rate limited and retried with jitter by RateLimitedPricing
+        static final AWSPricing PRICING = RateLimitedPricing.fromEnvironment(AWSPricingClientBuilder.standard()
+                .withClientConfiguration(new ClientConfiguration().withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY))
+                .build());
+    }
+
+    public static AmazonS3 s3()
+    {
+        return S3Holder.S3;
+    }
+
+    public static AWSPricing pricing()
+    {
+        return PricingHolder.PRICING;
+    }
+}
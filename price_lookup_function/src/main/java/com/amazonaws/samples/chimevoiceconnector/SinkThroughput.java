@@ -0,0 +1,93 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import org.json.JSONObject;
+
+/**
+ * The objects and bytes written to a sink. The rate is taken over the time at least one write was
+ * in flight, so concurrent writes are not counted twice and idle time between invocations is left out.
+ */
+public final class SinkThroughput
+{
+    private long objects;
+    private long bytes;
+    private long failures;
+    private long busyNanos;
+    private long busySince;
+    private int inFlight;
+
+    /**
+     * This method records the start of a write, to pair with completed
+     */
+    public synchronized void started()
+    {
+        if (inFlight++ == 0)
+        {
+            busySince = System.nanoTime();
+        }
+    }
+
+    /**
+     * This method records the end of a write
+     * @param length the bytes of the object
+     * @param succeeded
+     */
+    public synchronized void completed(long length, boolean succeeded)
+    {
+        if (succeeded)
+        {
+            objects++;
+            bytes += length;
+        }
+        else
+        {
+            failures++;
+        }
+        if (--inFlight == 0)
+        {
+            busyNanos += System.nanoTime() - busySince;
+        }
+    }
+
+    public synchronized long getObjects()
+    {
+        return objects;
+    }
+
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+    public synchronized long getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * @return the time at least one write was in flight, in nanoseconds
+     */
+    public synchronized long getBusyNanos()
+    {
+        return inFlight > 0 ? busyNanos + System.nanoTime() - busySince : busyNanos;
+    }
+
+    /**
+     * @return the bytes written per second of busy time, 0 before the first write
+     */
+    public synchronized double getBytesPerSecond()
+    {
+        long busy = getBusyNanos();
+        return busy == 0 ? 0 : bytes * 1e9 / busy;
+    }
+
+    public synchronized JSONObject toJson()
+    {
+        JSONObject json = new JSONObject();
+        json.put("objects", objects);
+        json.put("bytes", bytes);
+        json.put("failures", failures);
+        json.put("busyMs", getBusyNanos() / 1000000);
+        json.put("MBps", Math.round(getBytesPerSecond() / 10000) / 100.0);
+        return json;
+    }
+}
@@ -0,0 +1,67 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.LambdaLogger;
+
+/**
+ * Measures how long a new container takes from loading the handler, or from being restored
+ * from a snapshot, to enriching its first CDR. The figures are logged once per container.
+ */
+public final class StartupMetrics
+{
+    private static volatile long startedAt = System.currentTimeMillis();
+    private static volatile long initMillis = -1;
+    private static volatile boolean restored;
+    private static final AtomicBoolean REPORTED = new AtomicBoolean();
+
+    private StartupMetrics()
+    {
+    }
+
+    /**
+     * This method is called once the handler is constructed, at the end of the init phase
+     */
+    public static void initialized()
+    {
+        if (initMillis < 0)
+        {
+            initMillis = System.currentTimeMillis() - startedAt;
+        }
+    }
+
+    /**
+     * This method restarts the clock when the container is restored from a snapshot,
+     * the time spent before the checkpoint is not seen by callers.
+     */
+    public static void restored()
+    {
+        startedAt = System.currentTimeMillis();
+        initMillis = 0;
+        restored = true;
+        REPORTED.set(false);
+    }
+
+    /**
+     * This method logs the time to first enriched CDR the first time it is called in the container
+     * @param logger
+     */
+    public static void firstEnrichedCDR(LambdaLogger logger)
+    {
+        if (!REPORTED.get() && REPORTED.compareAndSet(false, true))
+        {
+            logger.log("Startup: " + toJson(System.currentTimeMillis() - startedAt));
+        }
+    }
+
+    static String toJson(long timeToFirstEnrichedCDR)
+    {
+        JSONObject json = new JSONObject();
+        json.put("start", restored ? "restore" : "cold");
+        json.put("initMs", initMillis);
+        json.put("timeToFirstEnrichedCdrMs", timeToFirstEnrichedCDR);
+        return json.toString();
+    }
+}
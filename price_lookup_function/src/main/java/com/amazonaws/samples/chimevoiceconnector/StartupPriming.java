@@ -0,0 +1,170 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.crac.Context;
+import org.crac.Core;
+import org.crac.Resource;
+import org.json.JSONObject;
+
+import com.amazonaws.services.lambda.runtime.LambdaRuntime;
+import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.pricing.model.Filter;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/**
+ * Warms the code paths of the first invocation during the init phase: the SDK clients, the JSON
+ * parser, the CDR enrichment and the configured output writer all run once on a sample CDR, so
+ * the first burst of CDRs after an idle period does not pay for class loading.
+ *
+ * On SnapStart the priming runs before the snapshot is taken, so restored containers start warm.
+ * Priming makes no network calls and only runs inside Lambda. It is disabled with STARTUP_PRIMING=false.
+ */
+public final class StartupPriming implements Resource
+{
+    private static final String SAMPLE_CDR = "{\"AwsAccountId\":\"111122223333\",\"TransactionId\":\"priming\","
+            + "\"CallId\":\"priming\",\"VoiceConnectorId\":\"priming\",\"Status\":\"Completed\","
+            + "\"StatusMessage\":\"OK\",\"BillableDurationSeconds\":6,\"BillableDurationMinutes\":0.1,"
+            + "\"SchemaVersion\":\"2.0\",\"SourceCountry\":\"US\",\"DestinationCountry\":\"US\","
+            + "\"UsageType\":\"USE1-US-US-outbound-minutes\",\"ServiceCode\":\"AmazonChimeVoiceConnector\","
+            + "\"Direction\":\"Outbound\",\"StartTimeEpochSeconds\":1565399625,\"EndTimeEpochSeconds\":1565399629,"
+            + "\"Region\":\"us-east-1\",\"Streaming\":true}";
+
+    private static final String SAMPLE_PRICE_LIST = "{\"product\":{\"attributes\":{"
+            + "\"usagetype\":\"USE1-US-US-outbound-minutes\"}},\"terms\":{\"OnDemand\":{\"term\":{"
+            + "\"effectiveDate\":\"2019-08-01T00:00:00Z\",\"priceDimensions\":{\"dimension\":{\"unit\":\"minute\","
+            + "\"beginRange\":\"0\",\"endRange\":\"Inf\",\"pricePerUnit\":{\"USD\":\"0.0048000000\"}}}}}}}";
+
+    // the global context only keeps a weak reference to its resources
+    private static final StartupPriming INSTANCE = new StartupPriming();
+
+    private final OutputFormat format;
+
+    private StartupPriming()
+    {
+        this.format = OutputFormat.fromString(System.getenv("OUTPUT_FORMAT"));
+    }
+
+    /**
+     * This method registers the checkpoint hooks and, unless the container is being initialized
+     * for a snapshot, primes it right away. It does nothing outside of Lambda.
+     */
+    public static void register()
+    {
+        if (System.getenv("AWS_LAMBDA_FUNCTION_NAME") == null)
+        {
+            return;
+        }
+        Core.getGlobalContext().register(INSTANCE);
+        if (!"snap-start".equals(System.getenv("AWS_LAMBDA_INITIALIZATION_TYPE")))
+        {
+            INSTANCE.primeIfEnabled();
+        }
+    }
+
+    @Override
+    public void beforeCheckpoint(Context<? extends Resource> context)
+    {
+        primeIfEnabled();
+    }
+
+    @Override
+    public void afterRestore(Context<? extends Resource> context)
+    {
+        StartupMetrics.restored();
+    }
+
+    private void primeIfEnabled()
+    {
+        if ("false".equalsIgnoreCase(System.getenv("STARTUP_PRIMING")))
+        {
+            return;
+        }
+        Log log = new Log(LambdaRuntime.getLogger());
+        long start = System.currentTimeMillis();
+        try
+        {
+            prime(format);
+            SdkClients.s3();
+            SdkClients.pricing();
+            log.info("Primed the " + format + " enrichment in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (IOException | RuntimeException e)
+        {
+            // priming is an optimization, the first invocation loads whatever is missing
+            log.warn("Unable to prime the function " + e);
+        }
+    }
+
+    /**
+     * This method enriches a sample CDR in memory and writes it in the given format
+     * @param format
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    static int prime(OutputFormat format) throws IOException
+    {
+        PriceHistory history = PriceHistory.EMPTY;
+        for (PriceListEntry entry : PriceListEntry.parseTerms(SAMPLE_PRICE_LIST))
+        {
+            history = history.with(PriceHistory.parseEffectiveDate(entry.getEffectiveDate()),
+                    PriceTierTable.compile(entry.getDimensions()));
+        }
+
+        OutputBuffer buffer = OutputBuffer.acquire();
+        try
+        {
+            CDRStreamReader reader = new CDRStreamReader(
+                    new ByteArrayInputStream(SAMPLE_CDR.getBytes(StandardCharsets.UTF_8)));
+            CDRFieldScanner scanner = new CDRFieldScanner();
+            while (reader.advance())
+            {
+                scanner.scan(reader.getBuffer(), reader.getLength());
+                PriceTierTable prices = history.at(scanner.getStartTimeEpochSeconds());
+                PriceDimension price = prices.tierAt(0);
+                long costMicros = prices.costMicros(0, scanner.getBillableSeconds());
+                scanner.writeEnriched(buffer, price, costMicros);
+
+                JSONObject cdr = reader.getObject();
+                cdr.put("PricePerUnitUSD", price.getPricePerUnitText());
+                cdr.put("CostUSD", CostEngine.toDecimal(costMicros));
+                if (format == OutputFormat.CSV)
+                {
+                    CSVCDRWriter csv = new CSVCDRWriter(buffer);
+                    csv.write(cdr);
+                    csv.flush();
+                }
+                else if (format == OutputFormat.PARQUET)
+                {
+                    ParquetCDRWriter parquet = new ParquetCDRWriter(buffer);
+                    parquet.write(cdr);
+                    parquet.close();
+                }
+            }
+
+            // request models and the event serializer used by every invocation
+            new S3Event(new ArrayList<S3EventNotificationRecord>()).toJson();
+            List<Filter> filters = Collections.singletonList(new Filter().withField("UsageType")
+                    .withValue(scanner.getUsageType()).withType("TERM_MATCH"));
+            new GetProductsRequest().withServiceCode("AmazonChimeVoiceConnector").withFilters(filters);
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(format.getContentType());
+            metadata.setContentLength(buffer.size());
+            new PutObjectRequest("priming", "priming", buffer.toInputStream(), metadata);
+
+            return buffer.size();
+        }
+        finally
+        {
+            buffer.release();
+        }
+    }
+}
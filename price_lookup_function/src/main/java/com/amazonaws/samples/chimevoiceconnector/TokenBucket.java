@@ -0,0 +1,87 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A thread safe token bucket whose rate adapts to throttling: the rate is halved on every throttled
+ * request, down to a tenth of the configured rate, and grows back by a twentieth of the configured rate
+ * on every successful one.
+ *
+ * Callers reserve a token and wait for the returned time outside the lock, tokens may go negative so
+ * concurrent callers are spaced out in the order they reserved.
+ */
+public final class TokenBucket
+{
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final double maxRate;
+    private final double minRate;
+    private final double burst;
+    private final LongSupplier nanoClock;
+
+    private double rate;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * @param ratePerSecond the sustained rate when nothing is throttled
+     * @param burst the tokens available at once
+     * @param nanoClock
+     */
+    public TokenBucket(double ratePerSecond, double burst, LongSupplier nanoClock)
+    {
+        if (ratePerSecond <= 0 || burst < 1)
+        {
+            throw new IllegalArgumentException("Invalid token bucket rate");
+        }
+        this.maxRate = ratePerSecond;
+        this.minRate = ratePerSecond / 10;
+        this.burst = burst;
+        this.nanoClock = nanoClock;
+        this.rate = ratePerSecond;
+        this.tokens = burst;
+        this.refilledAt = nanoClock.getAsLong();
+    }
+
+    /**
+     * This method takes a token
+     * @return the nanoseconds to wait before the request may be sent, 0 if it may be sent now
+     */
+    public synchronized long reserve()
+    {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / rate * NANOS_PER_SECOND);
+    }
+
+    /**
+     * This method slows the bucket down after a throttled request
+     */
+    public synchronized void onThrottled()
+    {
+        refill();
+        rate = Math.max(minRate, rate / 2);
+        tokens = Math.min(tokens, 0);
+    }
+
+    /**
+     * This method speeds the bucket back up after a successful request
+     */
+    public synchronized void onSuccess()
+    {
+        refill();
+        rate = Math.min(maxRate, rate + maxRate / 20);
+    }
+
+    public synchronized double getRate()
+    {
+        return rate;
+    }
+
+    private void refill()
+    {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * rate / NANOS_PER_SECOND);
+        refilledAt = now;
+    }
+}
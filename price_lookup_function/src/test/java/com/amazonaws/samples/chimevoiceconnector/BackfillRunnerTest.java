@@ -0,0 +1,195 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+/**
+ * Tests for re-enriching a local directory of CDRs.
+ */
+public class BackfillRunnerTest {
+
+    private static final String CDR_DIRECTORY = "Amazon-Chime-Voice-Connector-CDRs/json/abcd/2020/09/21/";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path input;
+    private Path output;
+    private LambdaFunctionHandler handler;
+
+    @Before
+    public void setUp() throws IOException {
+        input = folder.newFolder("input").toPath();
+        output = folder.newFolder("output").toPath();
+        Path cdrs = Files.createDirectories(input.resolve(CDR_DIRECTORY));
+        Files.copy(Paths.get("src/test/resources/cdr_sample.json"), cdrs.resolve("call-1"));
+        Files.copy(Paths.get("src/test/resources/cdr_sample.json"), cdrs.resolve("call-2"));
+        Files.write(Files.createDirectories(input.resolve("other")).resolve("notes.json"),
+                "{}".getBytes(StandardCharsets.UTF_8));
+
+        String priceList = new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8);
+        AWSPricing pricing = mock(AWSPricing.class);
+        when(pricing.getProducts(any(GetProductsRequest.class)))
+                .thenReturn(new GetProductsResult().withPriceList(Collections.singletonList(priceList)));
+
+        handler = new LambdaFunctionHandler(new FileSystemS3(input, output), pricing, null);
+        handler.setContext(new TestContext());
+    }
+
+    private JSONObject run(Path checkpointFile) throws Exception {
+        try (BackfillCheckpoint checkpoint = new BackfillCheckpoint(checkpointFile)) {
+            return new JSONObject(new BackfillRunner(handler, input, checkpoint, 2, message -> { }).run());
+        }
+    }
+
+    @Test
+    public void testEveryObjectIsEnriched() throws Exception {
+        JSONObject summary = run(folder.getRoot().toPath().resolve("checkpoint"));
+
+        Assert.assertEquals(3, summary.getInt("objects"));
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        Assert.assertEquals(1, summary.getInt("skipped"));
+        Assert.assertEquals(0, summary.getInt("failed"));
+        Assert.assertEquals("0.038400", summary.getString("totalCostUSD"));
+
+        Path enriched = output.resolve(CDR_DIRECTORY + "call-1");
+        Assert.assertTrue(Files.exists(enriched));
+        JSONObject cdr = new JSONObject(new String(Files.readAllBytes(enriched), StandardCharsets.UTF_8));
+        Assert.assertEquals("0.1920000000", cdr.getString("PricePerUnitUSD"));
+    }
+
+    @Test
+    public void testRunResumesFromTheCheckpoint() throws Exception {
+        Path checkpointFile = folder.getRoot().toPath().resolve("checkpoint");
+        Files.write(checkpointFile, (CDR_DIRECTORY + "call-1\n").getBytes(StandardCharsets.UTF_8));
+
+        JSONObject first = run(checkpointFile);
+        Assert.assertEquals(1, first.getInt("resumed"));
+        Assert.assertEquals(1, first.getInt("enriched"));
+        Assert.assertFalse(Files.exists(output.resolve(CDR_DIRECTORY + "call-1")));
+
+        JSONObject second = run(checkpointFile);
+        Assert.assertEquals(3, second.getInt("resumed"));
+        Assert.assertEquals(0, second.getInt("enriched"));
+        Assert.assertEquals(3, Files.readAllLines(checkpointFile).size());
+    }
+
+    @Test
+    public void testCostTotalsAreStoredBeforeCheckpointing() throws Exception {
+        FileSystemS3 fileSystem = new FileSystemS3(input, output);
+        CostAggregateStore store = new CostAggregateStore("aggregates", (key, content, contentType) -> {
+            fileSystem.putObject(new PutObjectRequest("backfill", key, content.toInputStream(), new ObjectMetadata()));
+            return true;
+        });
+        handler.setAggregateStore(store);
+        Path checkpointFile = folder.getRoot().toPath().resolve("checkpoint");
+
+        try (BackfillCheckpoint checkpoint = new BackfillCheckpoint(checkpointFile)) {
+            BackfillRunner runner = new BackfillRunner(handler, input, checkpoint, 2, message -> { });
+            runner.setAggregateStore(store);
+            runner.run();
+        }
+
+        // the sample calls started on 2019-08-10
+        JSONObject report = CostReport.report(CostAggregateStore.read(output, "aggregates", "2019-08"), "2019-08");
+        Assert.assertEquals(2, report.getLong("calls"));
+        Assert.assertEquals("0.038400", report.getString("costUSD"));
+        Assert.assertEquals("Outbound", report.getJSONArray("groups").getJSONObject(0).getString("direction"));
+        Assert.assertEquals(3, Files.readAllLines(checkpointFile).size());
+    }
+
+    @Test
+    public void testOnlyIdsOfCheckpointedObjectsAreKept() throws Exception {
+        DuplicateFilter duplicates = new DuplicateFilter(100, null);
+        handler.setDuplicateFilter(duplicates);
+        CostAggregateStore store = new CostAggregateStore("aggregates", (key, content, contentType) -> false);
+        handler.setAggregateStore(store);
+        DuplicateFilter checkpointedIds = new DuplicateFilter(100, null);
+        Path checkpointFile = folder.getRoot().toPath().resolve("checkpoint");
+
+        JSONObject summary;
+        try (BackfillCheckpoint checkpoint = new BackfillCheckpoint(checkpointFile)) {
+            BackfillRunner runner = new BackfillRunner(handler, input, checkpoint, 2, message -> { });
+            runner.setAggregateStore(store);
+            runner.setCheckpointedIds(checkpointedIds);
+            summary = new JSONObject(runner.run());
+        }
+
+        // both objects hold the same CDR, the totals could not be stored so neither is checkpointed
+        Assert.assertEquals("0.019200", summary.getString("totalCostUSD"));
+        Assert.assertTrue(duplicates.contains("879eee6e-eec7-4167-b634-a2519506d142"));
+        Assert.assertEquals(0, checkpointedIds.size());
+        Assert.assertEquals(0, Files.readAllLines(checkpointFile).size());
+    }
+
+    @Test
+    public void testTieredPricesFollowTheKeyOrder() throws Exception {
+        // a usage type of its own, the price cache is shared by the tests
+        String usageType = "USE1-US-US-tiered-minutes";
+        String cdr = new String(Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json")), StandardCharsets.UTF_8)
+                .replace("USE1-US-US-outbound-minutes", usageType);
+        Files.write(input.resolve(CDR_DIRECTORY + "call-1"), cdr.getBytes(StandardCharsets.UTF_8));
+        Files.write(input.resolve(CDR_DIRECTORY + "call-2"), cdr.getBytes(StandardCharsets.UTF_8));
+
+        // the first 6 seconds of the month at 0.192 per minute, the following ones at 0.096
+        JSONObject priceList = new JSONObject(new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8).replace("USE1-US-US-outbound-minutes", usageType));
+        JSONObject term = priceList.getJSONObject("terms").getJSONObject("OnDemand").getJSONObject("2HS5GXBWJBA9Q3C8.JRTCKXETXF");
+        JSONObject dimensions = term.getJSONObject("priceDimensions");
+        JSONObject firstTier = dimensions.getJSONObject("2HS5GXBWJBA9Q3C8.JRTCKXETXF.6YS6EN2CT7");
+        dimensions.put("2HS5GXBWJBA9Q3C8.JRTCKXETXF.7YS6EN2CT7", new JSONObject(firstTier.toString())
+                .put("beginRange", "0.1").put("pricePerUnit", new JSONObject().put("USD", "0.0960000000")));
+        firstTier.put("endRange", "0.1");
+        AWSPricing pricing = mock(AWSPricing.class);
+        when(pricing.getProducts(any(GetProductsRequest.class)))
+                .thenReturn(new GetProductsResult().withPriceList(Collections.singletonList(priceList.toString())));
+
+        // without the monthly usage the tier is unknown, both calls are priced at the first tier
+        handler = new LambdaFunctionHandler(new FileSystemS3(input, output), pricing, null);
+        handler.setContext(new TestContext());
+        Assert.assertEquals("0.038400", run(folder.getRoot().toPath().resolve("unordered")).getString("totalCostUSD"));
+        Assert.assertEquals("0.1920000000", readOutput("call-2").getString("PricePerUnitUSD"));
+        Assert.assertTrue(readOutput("call-2").getBoolean(PriceTierTable.PROVISIONAL_TIER_FIELD));
+
+        // the resumed run counts the checkpointed call before pricing the next one
+        Path checkpointFile = folder.getRoot().toPath().resolve("checkpoint");
+        Files.write(checkpointFile, (CDR_DIRECTORY + "call-1\n").getBytes(StandardCharsets.UTF_8));
+        JSONObject summary;
+        try (BackfillCheckpoint checkpoint = new BackfillCheckpoint(checkpointFile)) {
+            BackfillRunner runner = new BackfillRunner(handler, input, checkpoint, 4, message -> { });
+            runner.setMonthlyUsage(new MonthlyUsage());
+            summary = new JSONObject(runner.run());
+        }
+
+        Assert.assertEquals(1, summary.getInt("enriched"));
+        Assert.assertEquals("0.009600", summary.getString("totalCostUSD"));
+        Assert.assertEquals("0.0960000000", readOutput("call-2").getString("PricePerUnitUSD"));
+        Assert.assertFalse(readOutput("call-2").has(PriceTierTable.PROVISIONAL_TIER_FIELD));
+    }
+
+    private JSONObject readOutput(String name) throws IOException {
+        return new JSONObject(new String(Files.readAllBytes(output.resolve(CDR_DIRECTORY + name)), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,224 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.util.IOUtils;
+
+/**
+ * Tests for rolling enriched CDRs up into batch objects.
+ */
+public class CDRBatchWriterTest {
+
+    private final Map<String, String> uploads = new LinkedHashMap<String, String>();
+
+    private boolean upload(String key, OutputBuffer content, String contentType) {
+        uploads.put(key, new String(content.toByteArray(), StandardCharsets.UTF_8));
+        return true;
+    }
+
+    private static void add(CDRBatchWriter writer, JSONObject cdr) throws IOException {
+        CDRBatchWriter.Staging staging = writer.stage(null, false);
+        staging.add(cdr, CostEngine.NOT_PRICED, null);
+        writer.commit(staging);
+    }
+
+    private static void addScanned(CDRBatchWriter writer, String partition, JSONObject cdr) throws IOException {
+        byte[] enrichedCDR = cdr.toString().getBytes(StandardCharsets.UTF_8);
+        CDRFieldScanner scanner = new CDRFieldScanner();
+        Assert.assertTrue(scanner.scan(enrichedCDR, enrichedCDR.length));
+        CDRBatchWriter.Staging staging = writer.stage(null, false);
+        staging.addScanned(partition, scanner, CostEngine.NOT_PRICED, enrichedCDR, enrichedCDR.length, null);
+        writer.commit(staging);
+    }
+
+    private static JSONObject cdr(String connectorId, long startTime, String callId) {
+        return new JSONObject().put("VoiceConnectorId", connectorId).put("StartTimeEpochSeconds", startTime)
+                .put("CallId", callId).put("CostUSD", "0.0192");
+    }
+
+    @Test
+    public void testBatchesByConnectorAndWindow() throws IOException {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, this::upload);
+
+        add(writer, cdr("abcd", 1600700400L, "1"));
+        add(writer, cdr("abcd", 1600703999L, "2"));
+        add(writer, cdr("abcd", 1600704000L, "3"));
+        add(writer, cdr("efgh", 1600700400L, "4"));
+        Assert.assertTrue(uploads.isEmpty());
+
+        Assert.assertTrue(writer.flushAll().isEmpty());
+        Assert.assertEquals(3, uploads.size());
+        Assert.assertEquals(0, writer.getPendingBatches());
+
+        String firstKey = uploads.keySet().iterator().next();
+        Assert.assertTrue(firstKey, firstKey.startsWith("batches/abcd/2020/09/21/15/1600700400-"));
+        Assert.assertTrue(firstKey.endsWith(".json"));
+        String[] lines = uploads.get(firstKey).split("\n");
+        Assert.assertEquals(2, lines.length);
+        Assert.assertEquals("2", new JSONObject(lines[1]).getString("CallId"));
+    }
+
+    @Test
+    public void testBatchesByPartitionWithKeyTemplate() throws IOException {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, this::upload);
+        writer.setKeyTemplate(new PartitionKeyTemplate(
+                "connector={VoiceConnectorId}/date={StartTimeEpochSeconds:yyyy-MM-dd}/direction={Direction}"));
+
+        add(writer, cdr("abcd", 1600700400L, "1").put("Direction", "Outbound"));
+        add(writer, cdr("abcd", 1600700401L, "2").put("Direction", "Inbound"));
+        addScanned(writer, "connector=abcd/date=2020-09-21/direction=Outbound",
+                cdr("abcd", 1600700402L, "3").put("Direction", "Outbound"));
+
+        Assert.assertTrue(writer.flushAll().isEmpty());
+        Assert.assertEquals(2, uploads.size());
+        String firstKey = uploads.keySet().iterator().next();
+        Assert.assertTrue(firstKey, firstKey.startsWith("batches/connector=abcd/date=2020-09-21/direction=Outbound/1600700400-"));
+        Assert.assertEquals(2, uploads.get(firstKey).split("\n").length);
+    }
+
+    @Test
+    public void testFlushWhenRecordLimitIsReached() throws IOException {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 2, 1024 * 1024,
+                60000, this::upload);
+
+        add(writer, cdr("abcd", 1600700400L, "1"));
+        add(writer, cdr("abcd", 1600700401L, "2"));
+        add(writer, cdr("abcd", 1600700402L, "3"));
+
+        Assert.assertEquals(1, uploads.size());
+        Assert.assertEquals(1, writer.getPendingBatches());
+    }
+
+    @Test
+    public void testSerializedCDRsAreBatched() throws IOException {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, this::upload);
+
+        addScanned(writer, null, cdr("abcd", 1600700400L, "1"));
+        add(writer, cdr("abcd", 1600700401L, "2"));
+        addScanned(writer, null, cdr(null, 1600700402L, "3"));
+        writer.flushAll();
+
+        Assert.assertEquals(2, uploads.size());
+        String[] lines = uploads.values().iterator().next().split("\n");
+        Assert.assertEquals(2, lines.length);
+        Assert.assertEquals("1", new JSONObject(lines[0]).getString("CallId"));
+        Assert.assertEquals("2", new JSONObject(lines[1]).getString("CallId"));
+        Assert.assertTrue(uploads.keySet().toArray()[1].toString().startsWith("batches/unknown/"));
+    }
+
+    @Test
+    public void testCSVHeaderIsWrittenOncePerBatch() throws IOException {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.CSV, "batches", 3600, 100, 1024 * 1024,
+                60000, this::upload);
+
+        add(writer, cdr("abcd", 1600700400L, "1"));
+        add(writer, cdr("abcd", 1600700401L, "2"));
+        writer.flushAll();
+
+        String[] lines = uploads.values().iterator().next().split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertTrue(lines[0].contains("CallId"));
+    }
+
+    @Test
+    public void testBatchesAreCompressedAsTheyAreWritten() throws IOException {
+        Map<String, String> encoded = new LinkedHashMap<String, String>();
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, (key, content, contentType) -> {
+                    try {
+                        encoded.put(key, IOUtils.toString(Compression.decompress(content.toInputStream(), "gzip")));
+                    } catch (IOException e) {
+                        return false;
+                    }
+                    return true;
+                });
+        writer.setCompression(Compression.GZIP, 6);
+
+        add(writer, cdr("abcd", 1600700400L, "1"));
+        add(writer, cdr("abcd", 1600700401L, "2"));
+        Assert.assertTrue(writer.flushAll().isEmpty());
+
+        String key = encoded.keySet().iterator().next();
+        Assert.assertTrue(key, key.endsWith(".json.gz"));
+        String[] lines = encoded.get(key).split("\n");
+        Assert.assertEquals(2, lines.length);
+        Assert.assertEquals("2", new JSONObject(lines[1]).getString("CallId"));
+    }
+
+    @Test
+    public void testParquetBatchesAreNotCompressedTwice() {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.PARQUET, "batches", 3600, 100, 1024 * 1024,
+                60000, this::upload);
+        writer.setCompression(Compression.ZSTD, 3);
+
+        Assert.assertEquals(Compression.NONE, writer.getCompression());
+    }
+
+    @Test
+    public void testExpiredBatchesAreFlushedOnTheNextCDR() throws IOException {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                0, this::upload);
+
+        add(writer, cdr("abcd", 1600700400L, "1"));
+        add(writer, cdr("efgh", 1600700400L, "2"));
+
+        Assert.assertEquals(2, uploads.size());
+        Assert.assertEquals(0, writer.getPendingBatches());
+    }
+
+    @Test
+    public void testCDRsAreAddedWhileABatchIsUploaded() throws Exception {
+        CountDownLatch uploading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 1, 1024 * 1024,
+                60000, (key, content, contentType) -> {
+                    if (key.startsWith("batches/abcd/")) {
+                        uploading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return true;
+                });
+
+        Thread slowUpload = new Thread(() -> {
+            try {
+                add(writer, cdr("abcd", 1600700400L, "1"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        slowUpload.start();
+        Assert.assertTrue(uploading.await(5, TimeUnit.SECONDS));
+
+        // the lock is not held by the upload in progress
+        add(writer, cdr("efgh", 1600700400L, "2"));
+        Assert.assertEquals(1, writer.getFlushedBatches());
+
+        release.countDown();
+        slowUpload.join();
+        Assert.assertEquals(2, writer.getFlushedBatches());
+    }
+
+    @Test(expected = IOException.class)
+    public void testFailedUploadIsReported() throws IOException {
+        CDRBatchWriter writer = new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 1, 1024 * 1024,
+                60000, (key, content, contentType) -> false);
+
+        add(writer, cdr("abcd", 1600700400L, "1"));
+    }
+}
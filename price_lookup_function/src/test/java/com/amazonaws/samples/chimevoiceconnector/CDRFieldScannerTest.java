@@ -0,0 +1,119 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for enriching CDRs from their raw bytes.
+ */
+public class CDRFieldScannerTest {
+
+    private static final PriceDimension PRICE = new PriceDimension("min", BigDecimal.ZERO, null,
+            new BigDecimal("0.1920000000"));
+
+    private final CDRFieldScanner scanner = new CDRFieldScanner();
+
+    private boolean scan(String cdr) {
+        byte[] bytes = cdr.getBytes(StandardCharsets.UTF_8);
+        return scanner.scan(bytes, bytes.length);
+    }
+
+    private String enriched(long costMicros) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scanner.writeEnriched(out, PRICE, costMicros);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testPricingFieldsAreScanned() {
+        Assert.assertTrue(scan("{\"VoiceConnectorId\":\"abcd\", \"Nested\":{\"UsageType\":\"x\",\"List\":[1,\"}\"]},"
+                + "\"UsageType\":\"USE1-US-US-outbound-minutes\",\"BillableDurationMinutes\":0.1,"
+                + "\"StartTimeEpochSeconds\":1565399625,\"BillableDurationSeconds\":6,\"Streaming\":true}"));
+
+        Assert.assertEquals("USE1-US-US-outbound-minutes", scanner.getUsageType());
+        Assert.assertEquals("abcd", scanner.getVoiceConnectorId());
+        Assert.assertEquals(6, scanner.getBillableSeconds());
+        Assert.assertEquals(1565399625L, scanner.getStartTimeEpochSeconds());
+        Assert.assertFalse(scanner.isEnriched());
+    }
+
+    @Test
+    public void testMinutesAreUsedWithoutSeconds() {
+        Assert.assertTrue(scan("{\"UsageType\":\"a\",\"BillableDurationMinutes\":1.5}"));
+        Assert.assertEquals(90, scanner.getBillableSeconds());
+
+        Assert.assertTrue(scan("{\"UsageType\":\"a\"}"));
+        Assert.assertEquals(0, scanner.getBillableSeconds());
+
+        Assert.assertTrue(scan("{\"BillableDurationSeconds\":0,\"UsageType\":\"a\",\"BillableDurationMinutes\":1.5}"));
+        Assert.assertEquals(0, scanner.getBillableSeconds());
+    }
+
+    @Test
+    public void testFieldsAreSplicedBeforeTheClosingBrace() throws IOException {
+        String cdr = "{\"CallId\":\"a\\\"b\" , \"UsageType\":\"USE1-US-US-outbound-minutes\",\"Duration\":6.50 }";
+        Assert.assertTrue(scan(cdr));
+
+        String output = enriched(19200);
+        Assert.assertTrue(output, output.startsWith(cdr.substring(0, cdr.length() - 1)));
+
+        JSONObject json = new JSONObject(output);
+        Assert.assertEquals("a\"b", json.getString("CallId"));
+        Assert.assertEquals("0.1920000000", json.getString("PricePerUnitUSD"));
+        Assert.assertTrue(output, output.endsWith(",\"CostUSD\":0.019200}"));
+    }
+
+    @Test
+    public void testEmptyObject() throws IOException {
+        Assert.assertTrue(scan("{ }"));
+        Assert.assertNull(scanner.getUsageType());
+        Assert.assertEquals("{ \"PricePerUnitUSD\":\"0.1920000000\",\"CostUSD\":0.000000}", enriched(0));
+    }
+
+    @Test
+    public void testProvisionalTierIsMarked() throws IOException {
+        Assert.assertTrue(scan("{\"UsageType\":\"a\"}"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scanner.writeEnriched(out, PRICE, 0, true);
+
+        JSONObject json = new JSONObject(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        Assert.assertTrue(json.getBoolean(PriceTierTable.PROVISIONAL_TIER_FIELD));
+        Assert.assertFalse(new JSONObject(enriched(0)).has(PriceTierTable.PROVISIONAL_TIER_FIELD));
+    }
+
+    @Test
+    public void testFieldsOfAnotherTypeGoThroughTheJSONObjectPath() {
+        // org.json reads the number as the id, the scanner must not fall back to the CallId
+        Assert.assertFalse(scan("{\"UsageType\":\"a\",\"TransactionId\":42,\"CallId\":\"c\"}"));
+        Assert.assertFalse(scan("{\"UsageType\":\"a\",\"VoiceConnectorId\":{\"id\":\"abcd\"}}"));
+        Assert.assertFalse(scan("{\"UsageType\":\"a\",\"BillableDurationSeconds\":\"6\"}"));
+
+        // a null id is missing for both paths
+        String cdr = "{\"UsageType\":\"a\",\"TransactionId\":null,\"CallId\":\"c\"}";
+        Assert.assertTrue(scan(cdr));
+        Assert.assertEquals("c", scanner.getDeduplicationId());
+        Assert.assertNull(new JSONObject(cdr).optString("TransactionId", null));
+    }
+
+    @Test
+    public void testEscapedUsageTypeIsDecoded() {
+        Assert.assertTrue(scan("{\"UsageType\":\"USE1-US-US-outbound-\\u006Dinutes\"}"));
+        Assert.assertEquals("USE1-US-US-outbound-minutes", scanner.getUsageType());
+    }
+
+    @Test
+    public void testEnrichedAndMalformedCDRsAreReported() {
+        Assert.assertTrue(scan("{\"UsageType\":\"a\",\"CostUSD\":0.1}"));
+        Assert.assertTrue(scanner.isEnriched());
+
+        Assert.assertFalse(scan("{\"UsageType\":\"a\""));
+        Assert.assertFalse(scan("{\"UsageType\":42}"));
+        Assert.assertFalse(scan("[1]"));
+    }
+}
@@ -0,0 +1,79 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for reading single, array and newline delimited CDR files.
+ */
+public class CDRStreamReaderTest {
+
+    private static List<JSONObject> readAll(String content) throws IOException {
+        List<JSONObject> cdrs = new ArrayList<JSONObject>();
+        try (CDRStreamReader reader = new CDRStreamReader(
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)))) {
+            while (reader.advance()) {
+                cdrs.add(reader.getObject());
+            }
+        }
+        return cdrs;
+    }
+
+    @Test
+    public void testSingleObject() throws IOException {
+        try (CDRStreamReader reader = new CDRStreamReader(new FileInputStream("src/test/resources/cdr_sample.json"))) {
+            Assert.assertTrue(reader.advance());
+            Assert.assertEquals("USE1-US-US-outbound-minutes", reader.getObject().getString("UsageType"));
+            Assert.assertFalse(reader.advance());
+        }
+    }
+
+    @Test
+    public void testPrettyPrintedArray() throws IOException {
+        List<JSONObject> cdrs = readAll("[\n  {\"CallId\": \"1\",\n \"Nested\": {\"a\": [1, 2]}},\n  {\"CallId\": \"2\"}\n]\n");
+
+        Assert.assertEquals(2, cdrs.size());
+        Assert.assertEquals("2", cdrs.get(1).getString("CallId"));
+    }
+
+    @Test
+    public void testNewlineDelimited() throws IOException {
+        List<JSONObject> cdrs = readAll("{\"CallId\":\"1\"}\r\n{\"CallId\":\"2\"}\n\n{\"CallId\":\"3\"}");
+
+        Assert.assertEquals(3, cdrs.size());
+        Assert.assertEquals("3", cdrs.get(2).getString("CallId"));
+    }
+
+    @Test
+    public void testBracesAndQuotesInsideStrings() throws IOException {
+        List<JSONObject> cdrs = readAll("{\"CallId\":\"a}b{\\\"c\\\\\"}{\"CallId\":\"d\"}");
+
+        Assert.assertEquals(2, cdrs.size());
+        Assert.assertEquals("a}b{\"c\\", cdrs.get(0).getString("CallId"));
+    }
+
+    @Test
+    public void testByteOrderMarkAndEmptyInput() throws IOException {
+        Assert.assertEquals(1, readAll("\uFEFF{\"CallId\":\"1\"}").size());
+        Assert.assertTrue(readAll("").isEmpty());
+        Assert.assertTrue(readAll("[]").isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedObject() throws IOException {
+        readAll("{\"CallId\":\"1\"}{\"CallId\":");
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotJson() throws IOException {
+        readAll("CallId,UsageType\n1,USE1-US-US-outbound-minutes");
+    }
+}
@@ -0,0 +1,59 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the schema driven CSV output.
+ */
+public class CSVCDRWriterTest {
+
+    private static String header() {
+        return String.join(",", CDRSchema.V2.getColumns());
+    }
+
+    @Test
+    public void testColumnsFollowTheSchema() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CSVCDRWriter writer = new CSVCDRWriter(out);
+        writer.write(new JSONObject().put("CostUSD", new BigDecimal("0.019200")).put("CallId", "a")
+                .put("SchemaVersion", "2.0").put("Streaming", true).put("BillableDurationSeconds", 6)
+                .put("NotInTheSchema", "x"));
+        writer.write(new JSONObject().put("CallId", "b"));
+        writer.close();
+
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertEquals(header(), lines[0]);
+        Assert.assertEquals(",,a,,,,,6,,2.0,,,,,,,,,,,true,,0.019200", lines[1]);
+        Assert.assertEquals(",,b,,,,,,,,,,,,,,,,,,,,", lines[2]);
+        Assert.assertEquals(2, writer.getRowCount());
+        Assert.assertSame(CDRSchema.V2, writer.getSchema());
+    }
+
+    @Test
+    public void testFieldsAreEscaped() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CSVCDRWriter writer = new CSVCDRWriter(out);
+        writer.write(new JSONObject().put("AwsAccountId", "a,b").put("TransactionId", "say \"hi\"")
+                .put("CallId", "line\nbreak"));
+        writer.close();
+
+        String csv = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        Assert.assertTrue(csv, csv.startsWith(header() + "\n\"a,b\",\"say \"\"hi\"\"\",\"line\nbreak\","));
+    }
+
+    @Test
+    public void testUnknownVersionUsesLatestSchema() {
+        Assert.assertSame(CDRSchema.V2, CDRSchema.forVersion("2.0"));
+        Assert.assertSame(CDRSchema.LATEST, CDRSchema.forVersion("9.9"));
+        Assert.assertSame(CDRSchema.LATEST, CDRSchema.forVersion(null));
+        Assert.assertEquals("CostUSD", CDRSchema.LATEST.getColumns().get(CDRSchema.LATEST.getColumns().size() - 1));
+    }
+}
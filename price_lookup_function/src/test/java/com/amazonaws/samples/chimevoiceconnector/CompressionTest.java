@@ -0,0 +1,96 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.util.IOUtils;
+
+public class CompressionTest {
+
+    private static final String CDRS = "{\"CallId\":\"1\",\"UsageType\":\"USE1-US-US-outbound-minutes\"}\n"
+            + "{\"CallId\":\"2\",\"UsageType\":\"USE1-US-US-inbound-minutes\"}";
+
+    private static byte[] compress(Compression compression, String content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = compression.compress(compressed, compression.getDefaultLevel())) {
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String read(InputStream input) throws IOException {
+        return new String(IOUtils.toByteArray(input), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCompressedContentIsDetectedFromItsMagicBytes() throws IOException {
+        for (Compression compression : Compression.values()) {
+            byte[] content = compress(compression, CDRS);
+            Assert.assertEquals(compression, Compression.detect(new ByteArrayInputStream(content)));
+            Assert.assertEquals(CDRS, read(Compression.decompress(new ByteArrayInputStream(content), null)));
+        }
+    }
+
+    @Test
+    public void testContentEncodingSelectsTheCompression() throws IOException {
+        byte[] content = compress(Compression.ZSTD, CDRS);
+
+        Assert.assertEquals(CDRS, read(Compression.decompress(new ByteArrayInputStream(content), "zstd")));
+        Assert.assertEquals(CDRS, read(Compression.decompress(new ByteArrayInputStream(content), "identity")));
+    }
+
+    @Test
+    public void testShortContentIsNotCompressed() throws IOException {
+        byte[] content = { 0x1f };
+
+        Assert.assertEquals(Compression.NONE, Compression.detect(new ByteArrayInputStream(content)));
+        Assert.assertArrayEquals(content,
+                IOUtils.toByteArray(Compression.decompress(new ByteArrayInputStream(content), null)));
+    }
+
+    @Test
+    public void testHigherLevelCompressesRepetitiveContentFurther() throws IOException {
+        StringBuilder cdrs = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            cdrs.append("{\"CallId\":\"").append(i).append("\",\"UsageType\":\"USE1-US-US-outbound-minutes\"}\n");
+        }
+        ByteArrayOutputStream fast = new ByteArrayOutputStream();
+        try (OutputStream output = Compression.ZSTD.compress(fast, 1)) {
+            output.write(cdrs.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        ByteArrayOutputStream small = new ByteArrayOutputStream();
+        try (OutputStream output = Compression.ZSTD.compress(small, 19)) {
+            output.write(cdrs.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        Assert.assertTrue(small.size() + " >= " + fast.size(), small.size() < fast.size());
+        Assert.assertTrue(fast.size() < cdrs.length() / 4);
+    }
+
+    @Test
+    public void testNamesAndExtensions() {
+        Assert.assertEquals(Compression.GZIP, Compression.fromString(" gzip "));
+        Assert.assertEquals(Compression.NONE, Compression.fromString("brotli"));
+        Assert.assertEquals(Compression.NONE, Compression.fromString(null));
+        Assert.assertEquals("cdrs/call.json", Compression.stripExtension("cdrs/call.json.gz"));
+        Assert.assertEquals("cdrs/call.json", Compression.stripExtension("cdrs/call.json.zst"));
+        Assert.assertEquals("cdrs/call.json", Compression.stripExtension("cdrs/call.json"));
+    }
+
+    @Test
+    public void testLevelsFallBackToTheDefaultAndAreClamped() {
+        Assert.assertEquals(6, Compression.GZIP.parseLevel(null));
+        Assert.assertEquals(6, Compression.GZIP.parseLevel("fast"));
+        Assert.assertEquals(9, Compression.GZIP.parseLevel("19"));
+        Assert.assertEquals(22, Compression.ZSTD.parseLevel("99"));
+        Assert.assertEquals(1, Compression.ZSTD.parseLevel("-5"));
+        Assert.assertEquals(4, Compression.ZSTD.parseLevel(" 4 "));
+    }
+}
@@ -0,0 +1,92 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the mergeable cost totals and their state files.
+ */
+public class CostAggregateTest {
+
+    private static final String CONNECTOR = "abcd112222223333334444";
+    private static final String USAGE_TYPE = "USE1-US-US-outbound-minutes";
+    // 2019-08-10T01:13:45Z
+    private static final long AUGUST_10 = 1565399625L;
+    private static final long AUGUST_11 = AUGUST_10 + 86400;
+
+    private static CostAggregate.Group group(String day) {
+        return new CostAggregate.Group(CONNECTOR, USAGE_TYPE, "Outbound", day);
+    }
+
+    @Test
+    public void testPartialsMergeIntoTheSameTotals() {
+        CostAggregate first = new CostAggregate();
+        first.add(CONNECTOR, USAGE_TYPE, "Outbound", AUGUST_10, 6, 19200);
+        CostAggregate second = new CostAggregate();
+        second.add(CONNECTOR, USAGE_TYPE, "Outbound", AUGUST_10 + 3600, 60, 192000);
+        second.add(CONNECTOR, USAGE_TYPE, "Inbound", AUGUST_10, 30, 5000);
+
+        first.merge(second);
+
+        Assert.assertEquals(2, first.size());
+        Assert.assertEquals(2, first.getCalls(group("2019-08-10")));
+        Assert.assertEquals(66, first.getBillableSeconds(group("2019-08-10")));
+        Assert.assertEquals(211200, first.getCostMicros(group("2019-08-10")));
+    }
+
+    @Test
+    public void testStateFileRoundTrip() throws IOException {
+        CostAggregate aggregate = new CostAggregate();
+        aggregate.add(CONNECTOR, USAGE_TYPE, "Outbound", AUGUST_10, 6, 19200);
+        aggregate.add(null, USAGE_TYPE, null, AUGUST_11, 60, 192000);
+
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        aggregate.write(state);
+        CostAggregate read = new CostAggregate();
+        read.read(new ByteArrayInputStream(state.toByteArray()));
+        read.read(new ByteArrayInputStream(state.toByteArray()));
+
+        Assert.assertEquals(2, state.toString("UTF-8").split("\n").length);
+        Assert.assertEquals(2, read.size());
+        Assert.assertEquals(2, read.getCalls(group("2019-08-10")));
+        Assert.assertEquals(384000, read.getCostMicros(new CostAggregate.Group("", USAGE_TYPE, "", "2019-08-11")));
+    }
+
+    @Test
+    public void testMonthlyReport() {
+        CostAggregate aggregate = new CostAggregate();
+        aggregate.add(CONNECTOR, USAGE_TYPE, "Outbound", AUGUST_10, 6, 19200);
+        aggregate.add(CONNECTOR, USAGE_TYPE, "Outbound", AUGUST_11, 60, 192000);
+
+        JSONObject report = CostReport.report(aggregate, "2019-08");
+
+        Assert.assertEquals("2019-08", report.getString("period"));
+        Assert.assertEquals(2, report.getLong("calls"));
+        Assert.assertEquals("1.10", report.getString("minutes"));
+        Assert.assertEquals("0.211200", report.getString("costUSD"));
+        Assert.assertEquals(1, report.getJSONArray("groups").length());
+        Assert.assertEquals("2019-08", report.getJSONArray("groups").getJSONObject(0).getString("period"));
+    }
+
+    @Test
+    public void testStoreWritesOneStateFilePerDay() throws IOException {
+        List<String> keys = new ArrayList<String>();
+        CostAggregateStore store = new CostAggregateStore("aggregates", (key, content, contentType) -> keys.add(key));
+        CostAggregate aggregate = new CostAggregate();
+        aggregate.add(CONNECTOR, USAGE_TYPE, "Outbound", AUGUST_10, 6, 19200);
+        aggregate.add(CONNECTOR, USAGE_TYPE, "Outbound", AUGUST_11, 6, 19200);
+
+        Assert.assertTrue(store.write(aggregate, "request-1").isEmpty());
+
+        Assert.assertEquals(2, keys.size());
+        Assert.assertEquals("aggregates/2019/08/10/request-1.json", keys.get(0));
+        Assert.assertEquals("aggregates/2019/08/11/request-1.json", keys.get(1));
+    }
+}
@@ -0,0 +1,65 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the fixed-point cost arithmetic.
+ */
+public class CostEngineTest {
+
+    @Test
+    public void testCostIsExact() {
+        long price = CostEngine.toFixedPrice(new BigDecimal("0.1920000000"));
+
+        Assert.assertEquals(1920000000L, price);
+        Assert.assertEquals(19200L, CostEngine.costMicros(6, price));
+        Assert.assertEquals("0.019200", CostEngine.formatMicros(CostEngine.costMicros(6, price)));
+    }
+
+    @Test
+    public void testCostIsRoundedHalfUpToTheMicroDollar() {
+        // 7 seconds at 0.0048 per minute is 0.00056 exactly, at 0.0022 it is 0.000256666...
+        Assert.assertEquals(560L, CostEngine.costMicros(7, CostEngine.toFixedPrice(new BigDecimal("0.0048"))));
+        Assert.assertEquals(257L, CostEngine.costMicros(7, CostEngine.toFixedPrice(new BigDecimal("0.0022"))));
+        Assert.assertEquals(0L, CostEngine.costMicros(0, CostEngine.toFixedPrice(new BigDecimal("0.0022"))));
+    }
+
+    @Test
+    public void testBillableSecondsFallBackToMinutes() {
+        Assert.assertEquals(6L, CostEngine.billableSeconds(new JSONObject().put("BillableDurationSeconds", 6)
+                .put("BillableDurationMinutes", 0.2)));
+        Assert.assertEquals(6L, CostEngine.billableSeconds(new JSONObject().put("BillableDurationMinutes", 0.1)));
+    }
+
+    @Test
+    public void testNegativeDurationsAreClampedOnBothPaths() {
+        for (String cdr : new String[] { "{\"UsageType\":\"a\",\"BillableDurationSeconds\":-6}",
+                "{\"UsageType\":\"a\",\"BillableDurationMinutes\":-0.1}" }) {
+            byte[] bytes = cdr.getBytes(StandardCharsets.UTF_8);
+            CDRFieldScanner scanner = new CDRFieldScanner();
+            Assert.assertTrue(scanner.scan(bytes, bytes.length));
+
+            Assert.assertEquals(cdr, 0L, scanner.getBillableSeconds());
+            Assert.assertEquals(cdr, scanner.getBillableSeconds(), CostEngine.billableSeconds(new JSONObject(cdr)));
+        }
+    }
+
+    @Test
+    public void testCostOfEnrichedCDR() {
+        Assert.assertEquals(19200L, CostEngine.costMicros(new JSONObject().put("CostUSD", CostEngine.toDecimal(19200))));
+        Assert.assertEquals(CostEngine.NOT_PRICED, CostEngine.costMicros(new JSONObject()));
+    }
+
+    @Test
+    public void testFormat() {
+        Assert.assertEquals("0.000001", CostEngine.formatMicros(1));
+        Assert.assertEquals("12.345678", CostEngine.formatMicros(12345678));
+        Assert.assertEquals("-0.000500", CostEngine.formatMicros(-500));
+        Assert.assertEquals("0.0048000000", CostEngine.format(48000000L, CostEngine.PRICE_SCALE));
+    }
+}
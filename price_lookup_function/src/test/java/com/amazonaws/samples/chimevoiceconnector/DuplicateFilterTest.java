@@ -0,0 +1,193 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for the duplicate CDR filter.
+ */
+public class DuplicateFilterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testBloomFilterHasNoFalseNegatives() {
+        BloomFilter bloom = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            bloom.put("transaction-" + i);
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertTrue(bloom.mightContain("transaction-" + i));
+            if (bloom.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        // sized for 1%
+        Assert.assertTrue("false positives " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testDuplicateIsDetected() {
+        DuplicateFilter filter = new DuplicateFilter(100, null);
+        String id = UUID.randomUUID().toString();
+
+        Assert.assertTrue(filter.markIfAbsent(id));
+        Assert.assertFalse(filter.markIfAbsent(id));
+        Assert.assertTrue(filter.contains(id));
+
+        filter.forget(Collections.singletonList(id));
+        Assert.assertFalse(filter.contains(id));
+        Assert.assertTrue(filter.markIfAbsent(id));
+    }
+
+    @Test
+    public void testOldestGenerationIsDropped() {
+        DuplicateFilter filter = new DuplicateFilter(2, null);
+        for (int i = 0; i < 4; i++) {
+            filter.markIfAbsent("id-" + i);
+        }
+        Assert.assertTrue(filter.contains("id-2"));
+        Assert.assertTrue(filter.contains("id-3"));
+
+        filter.markIfAbsent("id-4");
+        filter.markIfAbsent("id-5");
+        Assert.assertFalse(filter.contains("id-0"));
+        Assert.assertFalse(filter.contains("id-3"));
+        Assert.assertTrue(filter.contains("id-5"));
+        Assert.assertEquals(2, filter.size());
+    }
+
+    @Test
+    public void testIdsAreAcceptedOnceWhileGenerationsRotate() throws Exception {
+        // every thread marks the same ids, in batches far smaller than what the two generations keep,
+        // so an id accepted twice was checked against one pair of generations and recorded in the next
+        DuplicateFilter filter = new DuplicateFilter(50, null);
+        int threads = 8;
+        int batches = 500;
+        int batchSize = 20;
+        AtomicIntegerArray accepted = new AtomicIntegerArray(batches * batchSize);
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+        List<Thread> markers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            markers.add(new Thread(() -> {
+                try {
+                    for (int batch = 0; batch < batches; batch++) {
+                        barrier.await();
+                        for (int i = 0; i < batchSize; i++) {
+                            int id = batch * batchSize + (i + offset) % batchSize;
+                            if (filter.markIfAbsent("id-" + id)) {
+                                accepted.incrementAndGet(id);
+                            }
+                        }
+                    }
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread marker : markers) {
+            marker.start();
+        }
+        for (Thread marker : markers) {
+            marker.join();
+        }
+
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        for (int id = 0; id < accepted.length(); id++) {
+            Assert.assertEquals("id-" + id, 1, accepted.get(id));
+        }
+    }
+
+    @Test
+    public void testStateRoundTripAndMerge() throws IOException {
+        DuplicateFilter first = new DuplicateFilter(100, null);
+        first.markIfAbsent("a");
+        first.markIfAbsent("b");
+        DuplicateFilter second = new DuplicateFilter(100, null);
+        second.markIfAbsent("c");
+
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        first.write(state);
+        DuplicateFilter read = new DuplicateFilter(100, null);
+        read.read(new ByteArrayInputStream(state.toByteArray()));
+        read.merge(second);
+
+        Assert.assertEquals(3, read.size());
+        Assert.assertFalse(read.markIfAbsent("a"));
+        Assert.assertFalse(read.markIfAbsent("c"));
+    }
+
+    @Test
+    public void testPersistMergesTheStateOfOtherProcesses() throws IOException {
+        Path stateFile = folder.getRoot().toPath().resolve("dedup").resolve("state");
+        DuplicateFilter first = new DuplicateFilter(100, stateFile);
+        DuplicateFilter second = new DuplicateFilter(100, stateFile);
+        first.markIfAbsent("a");
+        second.markIfAbsent("b");
+
+        first.persist();
+        second.persist();
+
+        DuplicateFilter restarted = new DuplicateFilter(100, stateFile);
+        restarted.load();
+        Assert.assertTrue(restarted.contains("a"));
+        Assert.assertTrue(restarted.contains("b"));
+    }
+
+    @Test
+    public void testConcurrentPersistsKeepEveryId() throws Exception {
+        Path stateFile = folder.getRoot().toPath().resolve("dedup").resolve("state");
+        List<Thread> writers = new ArrayList<Thread>();
+        List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+        for (int w = 0; w < 4; w++) {
+            final String writer = "writer-" + w;
+            writers.add(new Thread(() -> {
+                DuplicateFilter filter = new DuplicateFilter(1000, stateFile);
+                try {
+                    for (int i = 0; i < 20; i++) {
+                        filter.markIfAbsent(writer + "-" + i);
+                        filter.persist();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        DuplicateFilter restarted = new DuplicateFilter(1000, stateFile);
+        restarted.load();
+        Assert.assertEquals(80, restarted.size());
+
+        // nothing was recorded since the load, the state file is left alone
+        Files.delete(stateFile);
+        restarted.persist();
+        Assert.assertFalse(Files.exists(stateFile));
+    }
+}
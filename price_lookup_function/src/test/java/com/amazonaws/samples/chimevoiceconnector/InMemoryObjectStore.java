@@ -0,0 +1,104 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.IOUtils;
+
+/**
+ * An ObjectStore that keeps the objects in memory and completes every transfer after the given latency,
+ * recording how many transfers were in flight at once.
+ */
+public class InMemoryObjectStore implements ObjectStore {
+
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(1, runnable -> {
+        Thread thread = new Thread(runnable, "in-memory-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long latencyMillis;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    public InMemoryObjectStore(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void putObject(String bucket, String key, byte[] content) {
+        objects.put(bucket + "/" + key, content);
+    }
+
+    public byte[] getObject(String bucket, String key) {
+        return objects.get(bucket + "/" + key);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    @Override
+    public CompletableFuture<S3Object> get(String bucket, String key) {
+        return transfer(() -> {
+            byte[] content = objects.get(bucket + "/" + key);
+            if (content == null) {
+                AmazonS3Exception e = new AmazonS3Exception("The specified key does not exist.");
+                e.setStatusCode(404);
+                throw e;
+            }
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType("application/json");
+            metadata.setContentLength(content.length);
+            S3Object object = new S3Object();
+            object.setBucketName(bucket);
+            object.setKey(key);
+            object.setObjectMetadata(metadata);
+            object.setObjectContent(new S3ObjectInputStream(new ByteArrayInputStream(content), null));
+            return object;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> put(String bucket, String key, InputStream content, long length, String contentType,
+            String contentEncoding) {
+        byte[] bytes;
+        try {
+            bytes = IOUtils.toByteArray(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return transfer(() -> {
+            objects.put(bucket + "/" + key, bytes);
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> transfer(Supplier<T> completion) {
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        timer.schedule(() -> {
+            inFlight.decrementAndGet();
+            try {
+                future.complete(completion.get());
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+}
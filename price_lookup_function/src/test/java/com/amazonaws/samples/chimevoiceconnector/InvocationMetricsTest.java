@@ -0,0 +1,82 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the stage latency histograms and their embedded metric format line.
+ */
+public class InvocationMetricsTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.bucketOf(micros);
+            Assert.assertTrue(LatencyHistogram.lowerBound(bucket) <= micros);
+            Assert.assertTrue(micros < LatencyHistogram.lowerBound(bucket + 1));
+        }
+    }
+
+    @Test
+    public void testPercentilesAreWithinOneBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 10000; micros++) {
+            histogram.recordMicros(micros);
+        }
+
+        Assert.assertEquals(10000, histogram.getCount());
+        Assert.assertEquals(10000, histogram.getMaxMicros());
+        long p50 = histogram.percentileMicros(50);
+        long p99 = histogram.percentileMicros(99);
+        Assert.assertTrue("p50 " + p50, p50 >= 5000 && p50 <= 5000 * 9 / 8);
+        Assert.assertTrue("p99 " + p99, p99 >= 9900 && p99 <= 10000);
+    }
+
+    @Test
+    public void testDistributionFitsInOneMetric() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros < 1L << 40; micros = micros * 17 / 16 + 1) {
+            histogram.recordMicros(micros);
+        }
+
+        JSONObject distribution = histogram.toEmfValue();
+        JSONArray values = distribution.getJSONArray("Values");
+        long total = 0;
+        for (int i = 0; i < distribution.getJSONArray("Counts").length(); i++) {
+            total += distribution.getJSONArray("Counts").getLong(i);
+        }
+        Assert.assertTrue(values.length() <= 100);
+        Assert.assertEquals(values.length(), distribution.getJSONArray("Counts").length());
+        Assert.assertEquals(histogram.getCount(), total);
+        Assert.assertNull(new LatencyHistogram().toEmfValue());
+    }
+
+    @Test
+    public void testEmbeddedMetricFormat() {
+        InvocationMetrics metrics = new InvocationMetrics();
+        metrics.getHistogram(InvocationMetrics.Stage.UPLOAD).recordMicros(2500);
+        metrics.addRecord(3);
+        metrics.addPriceLookup();
+        metrics.addPriceLookup();
+        metrics.addPricingCall();
+
+        JSONObject line = metrics.toEmf("Reports", "price-lookup", 1600703918872L);
+
+        JSONObject directive = line.getJSONObject("_aws").getJSONArray("CloudWatchMetrics").getJSONObject(0);
+        Assert.assertEquals(1600703918872L, line.getJSONObject("_aws").getLong("Timestamp"));
+        Assert.assertEquals("Reports", directive.getString("Namespace"));
+        Assert.assertEquals("FunctionName", directive.getJSONArray("Dimensions").getJSONArray(0).getString(0));
+        Assert.assertEquals("price-lookup", line.getString("FunctionName"));
+        // stages without samples are left out
+        Assert.assertEquals("UploadLatency", directive.getJSONArray("Metrics").getJSONObject(0).getString("Name"));
+        Assert.assertFalse(line.has("ParseLatency"));
+        Assert.assertEquals(1, line.getJSONObject("UploadLatency").getJSONArray("Values").length());
+        Assert.assertEquals(2.5, line.getJSONObject("UploadLatency").getJSONArray("Values").getDouble(0), 0.2);
+        Assert.assertEquals(1, line.getLong("Records"));
+        Assert.assertEquals(3, line.getLong("CDRs"));
+        Assert.assertEquals(1, line.getLong("PricingCalls"));
+        Assert.assertEquals(0.5, line.getDouble("PriceCacheHitRatio"), 0.0001);
+    }
+}
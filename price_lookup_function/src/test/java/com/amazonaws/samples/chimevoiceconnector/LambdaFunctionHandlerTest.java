@@ -1,12 +1,30 @@
 package com.amazonaws.samples.chimevoiceconnector;
 
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -18,11 +36,17 @@ import org.mockito.junit.MockitoJUnitRunner;
 
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.event.S3EventNotification.S3EventNotificationRecord;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.IOUtils;
 
 /**
  * A simple test harness for invoking Lambda function handler with sample CDR.
@@ -36,25 +60,38 @@ public class LambdaFunctionHandlerTest {
     @Mock
     private AmazonS3 s3Client;
     @Mock
-    private S3Object s3Object;
+    private AWSPricing pricingClient;
 
     @Captor
     private ArgumentCaptor<GetObjectRequest> getObjectRequest;
+    @Captor
+    private ArgumentCaptor<PutObjectRequest> putObjectRequest;
 
     @Before
     public void setUp() throws IOException {
         event = TestUtils.parse("/s3-event.put.json", S3Event.class);
         
+        // every request gets its own stream over the sample CDR
+        lenient().when(s3Client.getObject(getObjectRequest.capture())).thenAnswer(invocation -> sampleCDRObject());
+
+        // prices are cached across invocations, so the Pricing API may not be called by every test
+        String priceList = new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8);
+        lenient().when(pricingClient.getProducts(any(GetProductsRequest.class)))
+                .thenReturn(new GetProductsResult().withPriceList(Collections.singletonList(priceList)));
+    }
+
+    private S3Object sampleCDRObject() throws IOException {
         File sampleCDR =  new File("src/test/resources/cdr_sample.json");
         InputStream targetStream = new FileInputStream(sampleCDR);
         S3ObjectInputStream s3ObjectInputStream = new S3ObjectInputStream(targetStream, null);
-        // TODO: customize your mock logic for s3 client
-       
+
         ObjectMetadata objectMetadata = new ObjectMetadata();
         objectMetadata.setContentType(CONTENT_TYPE);
-        when(s3Object.getObjectMetadata()).thenReturn(objectMetadata);
-        when(s3Object.getObjectContent()).thenReturn(s3ObjectInputStream);
-        when(s3Client.getObject(getObjectRequest.capture())).thenReturn(s3Object);
+        S3Object s3Object = new S3Object();
+        s3Object.setObjectMetadata(objectMetadata);
+        s3Object.setObjectContent(s3ObjectInputStream);
+        return s3Object;
     }
 
     private Context createContext() {
@@ -69,14 +106,347 @@ public class LambdaFunctionHandlerTest {
     @Test
     public void testLambdaFunctionHandler() {
     	
-        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
         Context ctx = createContext();
         
       
         String output = handler.handleRequest(event, ctx);
     
        
-        // TODO: validate output here if needed.
-        Assert.assertEquals("0.0192", output);
+        JSONObject summary = new JSONObject(output);
+        Assert.assertEquals(1, summary.getInt("enriched"));
+        Assert.assertEquals("0.019200", summary.getJSONArray("outcomes").getJSONObject(0).getString("costUSD"));
+    }
+
+    @Test
+    public void testEnrichedCDRIsUploadedFromMemory() throws IOException {
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.handleRequest(event, createContext());
+
+        verify(s3Client).putObject(putObjectRequest.capture());
+        PutObjectRequest request = putObjectRequest.getValue();
+        Assert.assertNull(request.getFile());
+        Assert.assertEquals("application/json", request.getMetadata().getContentType());
+
+        byte[] body = IOUtils.toByteArray(request.getInputStream());
+        Assert.assertEquals(body.length, request.getMetadata().getContentLength());
+        JSONObject enrichedCDR = new JSONObject(new String(body, StandardCharsets.UTF_8));
+        Assert.assertEquals("0.1920000000", enrichedCDR.getString("PricePerUnitUSD"));
+        // the original fields are copied through verbatim, in their original order
+        Assert.assertTrue(new String(body, StandardCharsets.UTF_8).startsWith("{\"Status\":\"Completed\",\"StartTimeEpochSeconds\":1565399625,"));
+    }
+
+    @Test
+    public void testOldCDRIsPricedAtTheSnapshotPrice() throws IOException {
+        String priceList = new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8);
+        when(pricingClient.getProducts(any(GetProductsRequest.class))).thenReturn(new GetProductsResult()
+                .withPriceList(Collections.singletonList(priceList.replace("2019-08-01T00:00:00Z", "2020-09-01T00:00:00Z"))));
+        PriceHistoryIndex snapshots = new PriceHistoryIndex();
+        snapshots.addPriceList(priceList.replace("2019-08-01T00:00:00Z", "2019-01-01T00:00:00Z")
+                .replace("0.1920000000", "0.0960000000"));
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient,
+                new PriceCatalog(pricingClient, 60000, Runnable::run));
+        handler.setPriceSnapshots(snapshots);
+
+        JSONObject summary = new JSONObject(handler.handleRequest(event, createContext()));
+
+        // the sample call started in August 2019, before the current price became effective
+        Assert.assertEquals("0.009600", summary.getJSONArray("outcomes").getJSONObject(0).getString("costUSD"));
+    }
+
+    @Test
+    public void testCDROlderThanEveryPriceVersionIsNotPriced() throws IOException {
+        String priceList = new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8);
+        when(pricingClient.getProducts(any(GetProductsRequest.class))).thenReturn(new GetProductsResult()
+                .withPriceList(Collections.singletonList(priceList.replace("2019-08-01T00:00:00Z", "2020-09-01T00:00:00Z"))));
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient,
+                new PriceCatalog(pricingClient, 60000, Runnable::run));
+
+        JSONObject outcome = new JSONObject(handler.handleRequest(event, createContext()))
+                .getJSONArray("outcomes").getJSONObject(0);
+
+        // the price the call was billed at is not known, so it is not invented
+        Assert.assertEquals(1, outcome.getInt("cdrs"));
+        Assert.assertEquals(0, outcome.getInt("enriched"));
+    }
+
+    @Test
+    public void testCostTotalsAreStoredOncePerInvocation() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        List<String> states = new ArrayList<String>();
+        List<String> keys = new ArrayList<String>();
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setAggregateStore(new CostAggregateStore("aggregates", (key, content, contentType) -> {
+            keys.add(key);
+            return states.add(new String(content.toByteArray(), StandardCharsets.UTF_8));
+        }));
+
+        handler.handleRequest(batchEvent, createContext());
+
+        Assert.assertEquals(Collections.singletonList("aggregates/2019/08/10/EXAMPLE.json"), keys);
+        Assert.assertEquals("[\"abcd112222223333334444\",\"USE1-US-US-outbound-minutes\",\"Outbound\",\"2019-08-10\",2,12,38400]\n",
+                states.get(0));
+    }
+
+    @Test
+    public void testRedeliveredEventIsSkippedBeforePricing() throws IOException {
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setDuplicateFilter(new DuplicateFilter(100, null));
+
+        JSONObject first = new JSONObject(handler.handleRequest(event, createContext()));
+        JSONObject second = new JSONObject(handler.handleRequest(event, createContext()));
+
+        Assert.assertEquals(1, first.getInt("enriched"));
+        Assert.assertEquals(0, first.getInt("duplicates"));
+        Assert.assertEquals(1, second.getInt("skipped"));
+        Assert.assertEquals(1, second.getInt("duplicates"));
+        Assert.assertEquals("0.000000", second.getString("totalCostUSD"));
+        verify(s3Client, times(1)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void testEveryRecordIsProcessed() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        Assert.assertEquals(3, summary.getInt("records"));
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        Assert.assertEquals(1, summary.getInt("skipped"));
+        Assert.assertEquals("0.038400", summary.getString("totalCostUSD"));
+        verify(s3Client, times(2)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void testBatchedOutputIsFlushedOncePerInvocation() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        List<String> batches = new ArrayList<String>();
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setBatchWriter(new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, (key, content, contentType) -> batches.add(new String(content.toByteArray(), StandardCharsets.UTF_8))));
+
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        // both CDRs belong to the same Voice Connector and hour
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(2, batches.get(0).split("\n").length);
+        verify(s3Client, times(0)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void testRetryOfBatchedOutputOnlyWritesTheFailedRecord() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        String bucket = batchEvent.getRecords().get(0).getS3().getBucket().getName();
+        String secondKey = batchEvent.getRecords().get(1).getS3().getObject().getKey();
+        InMemoryObjectStore store = new InMemoryObjectStore(0);
+        store.putObject(bucket, batchEvent.getRecords().get(0).getS3().getObject().getKey(),
+                Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json")));
+        List<String> batches = new ArrayList<String>();
+        List<String> stateKeys = new ArrayList<String>();
+        DuplicateFilter filter = new DuplicateFilter(100, null);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        handler.setDuplicateFilter(filter);
+        handler.setBatchWriter(new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, (key, content, contentType) -> batches.add(new String(content.toByteArray(), StandardCharsets.UTF_8))));
+        handler.setAggregateStore(new CostAggregateStore("aggregates", (key, content, contentType) -> stateKeys.add(key)));
+
+        // the second object is missing, so the event is retried
+        try {
+            handler.handleRequest(batchEvent, createContext());
+            Assert.fail("the event must be retried");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(1, batches.size());
+        Assert.assertTrue(filter.contains("879eee6e-eec7-4167-b634-a2519506d142"));
+        Assert.assertEquals(1, stateKeys.size());
+        Assert.assertTrue(stateKeys.get(0), stateKeys.get(0).startsWith("aggregates/2019/08/10/EXAMPLE-"));
+
+        store.putObject(bucket, secondKey, new String(Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json")),
+                StandardCharsets.UTF_8).replace("879eee6e", "979eee6e").getBytes(StandardCharsets.UTF_8));
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        // the CDR of the first object was written by the failed invocation and is not written again
+        Assert.assertEquals(1, summary.getInt("enriched"));
+        Assert.assertEquals(1, summary.getInt("duplicates"));
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(1, batches.get(1).split("\n").length);
+        Assert.assertTrue(batches.get(1).contains("979eee6e"));
+        Assert.assertEquals("aggregates/2019/08/10/EXAMPLE.json", stateKeys.get(1));
+    }
+
+    @Test
+    public void testTransfersOfDifferentObjectsOverlap() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        InMemoryObjectStore store = storeWithSampleCDRs(batchEvent, 200);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        // both downloads are in flight at once, the objects do not wait for each other
+        Assert.assertEquals(2, store.getMaxInFlight());
+        Assert.assertNotNull(store.getObject(null, batchEvent.getRecords().get(0).getS3().getObject().getKey()));
+        verify(s3Client, times(0)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void testObjectsInFlightAreBounded() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        InMemoryObjectStore store = storeWithSampleCDRs(batchEvent, 20);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        handler.setMaxInFlight(1);
+
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        Assert.assertEquals(1, store.getMaxInFlight());
+    }
+
+    @Test
+    public void testBytesInFlightAreBounded() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        InMemoryObjectStore store = storeWithSampleCDRs(batchEvent, 20);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        // the objects are 702 bytes each, larger objects than the budget are processed alone
+        handler.setMaxInFlightBytes(500);
+
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        Assert.assertEquals(1, store.getMaxInFlight());
+    }
+
+    @Test
+    public void testFailedDownloadFailsTheRecord() throws IOException {
+        InMemoryObjectStore store = new InMemoryObjectStore(0);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        handler.setContext(createContext());
+
+        RecordOutcome outcome = handler.processRecord("chimevoiceconnector-reports",
+                "Amazon-Chime-Voice-Connector-CDRs/json/missing.json");
+
+        Assert.assertEquals(RecordOutcome.Status.FAILED, outcome.getStatus());
+        Assert.assertTrue(outcome.getMessage(), outcome.getMessage().contains("The specified key does not exist."));
+    }
+
+    @Test
+    public void testCompressedInputIsEnrichedToCompressedOutput() throws IOException {
+        byte[] sampleCDR = Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json"));
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (OutputStream output = Compression.GZIP.compress(gzipped, 6)) {
+            output.write(sampleCDR);
+        }
+        InMemoryObjectStore store = new InMemoryObjectStore(0);
+        store.putObject("chimevoiceconnector-reports", "Amazon-Chime-Voice-Connector-CDRs/json/sample.json.gz",
+                gzipped.toByteArray());
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        handler.setOutputCompression(Compression.ZSTD, 3);
+        handler.setContext(createContext());
+
+        RecordOutcome outcome = handler.processRecord("chimevoiceconnector-reports",
+                "Amazon-Chime-Voice-Connector-CDRs/json/sample.json.gz");
+
+        Assert.assertEquals(outcome.getMessage(), RecordOutcome.Status.ENRICHED, outcome.getStatus());
+        byte[] uploaded = store.getObject(null, "Amazon-Chime-Voice-Connector-CDRs/json/sample.json.zst");
+        Assert.assertNotNull(uploaded);
+        JSONObject enriched = new JSONObject(new String(IOUtils.toByteArray(
+                Compression.decompress(new ByteArrayInputStream(uploaded), null)), StandardCharsets.UTF_8));
+        Assert.assertTrue(enriched.toString(), enriched.has("CostUSD"));
+    }
+
+    @Test
+    public void testEnrichedCDRsAreWrittenToEverySink() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        InMemoryObjectStore store = storeWithSampleCDRs(batchEvent, 0);
+        InMemoryOutputSink memory = new InMemoryOutputSink();
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        handler.setOutputSink(new MultiSink(Arrays.asList(handler.getOutputSink(), memory)));
+
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        for (S3EventNotificationRecord record : batchEvent.getRecords()) {
+            String key = record.getS3().getObject().getKey();
+            Assert.assertArrayEquals(key, store.getObject(null, key), memory.getObject(key));
+        }
+        Assert.assertEquals(2, handler.getOutputSink().getThroughput().getObjects());
+        verify(s3Client, times(0)).putObject(any(PutObjectRequest.class));
+    }
+
+    @Test
+    public void testKeyTemplatePartitionsTheOutputAndWritesAManifest() throws IOException {
+        S3Event batchEvent = TestUtils.parse("/s3-event.batch.json", S3Event.class);
+        InMemoryObjectStore store = storeWithSampleCDRs(batchEvent, 0);
+        InMemoryOutputSink output = new InMemoryOutputSink();
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        handler.setOutputSink(output);
+        handler.setKeyTemplate(new PartitionKeyTemplate(
+                "enriched/connector={VoiceConnectorId}/date={StartTimeEpochSeconds:yyyy-MM-dd}/region={Region}"));
+
+        JSONObject summary = new JSONObject(handler.handleRequest(batchEvent, createContext()));
+
+        Assert.assertEquals(2, summary.getInt("enriched"));
+        String partition = "enriched/connector=abcd112222223333334444/date=2019-08-10/region=us-east-1";
+        Assert.assertNotNull(output.getObject(partition + "/cdr_sample_1.json"));
+        Assert.assertNotNull(output.getObject(partition + "/cdr_sample_2.json"));
+
+        String manifestKey = "partition-manifests/"
+                + DateTimeFormatter.ofPattern("yyyy/MM/dd").withZone(ZoneOffset.UTC).format(Instant.now())
+                + "/EXAMPLE.json";
+        JSONObject manifest = new JSONObject(new String(output.getObject(manifestKey), StandardCharsets.UTF_8));
+        Assert.assertEquals(1, manifest.getJSONArray("partitions").length());
+        JSONObject entry = manifest.getJSONArray("partitions").getJSONObject(0);
+        Assert.assertEquals(partition, entry.getString("location"));
+        Assert.assertEquals("us-east-1", entry.getJSONObject("values").getString("region"));
+        Assert.assertEquals(2, entry.getJSONArray("objects").length());
+        Assert.assertEquals(3, output.size());
+    }
+
+    private static InMemoryObjectStore storeWithSampleCDRs(S3Event event, long latencyMillis) throws IOException {
+        byte[] sampleCDR = Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json"));
+        InMemoryObjectStore store = new InMemoryObjectStore(latencyMillis);
+        for (S3EventNotificationRecord record : event.getRecords()) {
+            store.putObject(record.getS3().getBucket().getName(), record.getS3().getObject().getKey(), sampleCDR);
+        }
+        return store;
+    }
+
+    @Test
+    public void testStageMetricsAreEmittedOncePerInvocation() {
+        List<String> lines = new ArrayList<String>();
+        TestContext ctx = new TestContext();
+        ctx.setFunctionName("price-lookup");
+        ctx.setLogger(lines::add);
+        LambdaFunctionHandler handler = new LambdaFunctionHandler(s3Client, pricingClient);
+
+        handler.handleRequest(event, ctx);
+
+        List<JSONObject> emf = new ArrayList<JSONObject>();
+        for (String line : lines) {
+            if (line.startsWith("{") && new JSONObject(line).has("_aws")) {
+                emf.add(new JSONObject(line));
+            }
+        }
+        Assert.assertEquals(1, emf.size());
+        JSONObject metrics = emf.get(0);
+        Assert.assertEquals(1, metrics.getLong("Records"));
+        Assert.assertEquals(1, metrics.getLong("CDRs"));
+        for (String stage : new String[] { "S3ReadLatency", "ParseLatency", "PriceLookupLatency", "CostLatency",
+                "SerializeLatency", "UploadLatency", "InvocationLatency" }) {
+            Assert.assertTrue(stage, metrics.has(stage));
+        }
     }
 }
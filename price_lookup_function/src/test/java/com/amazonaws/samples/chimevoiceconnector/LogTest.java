@@ -0,0 +1,54 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the level gated logging.
+ */
+public class LogTest {
+
+    private final List<String> lines = new ArrayList<String>();
+
+    @Test
+    public void testMessagesBelowTheLevelAreNotBuilt() {
+        Log log = new Log(lines::add, Log.Level.INFO);
+
+        log.debug(() -> {
+            throw new AssertionError("debug message built at INFO");
+        });
+        log.info(() -> "one");
+        log.warn("two");
+        log.error("three", new IllegalStateException("failed"));
+
+        Assert.assertEquals(3, lines.size());
+        Assert.assertEquals("INFO one", lines.get(0));
+        Assert.assertEquals("WARN two", lines.get(1));
+        Assert.assertEquals("ERROR three java.lang.IllegalStateException: failed", lines.get(2));
+    }
+
+    @Test
+    public void testDebugIncludesStackTraces() {
+        Log log = new Log(lines::add, Log.Level.DEBUG);
+
+        log.debug(() -> "dump");
+        log.error("failed", new IllegalStateException());
+
+        Assert.assertEquals("DEBUG dump", lines.get(0));
+        Assert.assertTrue(lines.get(1).contains("at com.amazonaws.samples.chimevoiceconnector.LogTest"));
+    }
+
+    @Test
+    public void testLevelFromString() {
+        Assert.assertEquals(Log.Level.DEBUG, Log.Level.fromString(" debug "));
+        Assert.assertEquals(Log.Level.INFO, Log.Level.fromString(null));
+        Assert.assertEquals(Log.Level.INFO, Log.Level.fromString("verbose"));
+
+        Log off = new Log(lines::add, Log.Level.OFF);
+        off.error("dropped");
+        Assert.assertTrue(lines.isEmpty());
+    }
+}
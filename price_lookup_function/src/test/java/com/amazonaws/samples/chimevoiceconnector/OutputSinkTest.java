@@ -0,0 +1,124 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutputSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static OutputBuffer content(String text) throws IOException {
+        OutputBuffer buffer = new OutputBuffer(64);
+        buffer.write(text.getBytes(StandardCharsets.UTF_8));
+        return buffer;
+    }
+
+    @Test
+    public void testSinksAreBuiltFromTheList() throws IOException {
+        Path directory = folder.newFolder("out").toPath();
+        InMemoryObjectStore store = new InMemoryObjectStore(0);
+
+        Assert.assertTrue(OutputSink.fromString(null, store, "target") instanceof S3OutputSink);
+        Assert.assertEquals("s3://target", OutputSink.fromString(" ", store, "target").getName());
+        Assert.assertTrue(OutputSink.fromString("memory", store, "target") instanceof InMemoryOutputSink);
+
+        OutputSink sink = OutputSink.fromString("s3, file:" + directory + ",memory", store, "target");
+        Assert.assertTrue(sink instanceof MultiSink);
+        Assert.assertEquals(3, ((MultiSink) sink).getSinks().size());
+        Assert.assertEquals("s3://target,file:" + directory + ",memory", sink.getName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownSinkIsRejected() {
+        OutputSink.fromString("ftp://host", new InMemoryObjectStore(0), "target");
+    }
+
+    @Test
+    public void testLocalFileSinkWritesTheKeyAsRelativePath() throws IOException {
+        Path directory = folder.newFolder("out").toPath();
+        LocalFileSink sink = new LocalFileSink(directory);
+
+        sink.write("cdrs/2020/09/21/call.json", content("{\"CallId\":\"1\"}"), "application/json", null).join();
+
+        Path file = directory.resolve("cdrs/2020/09/21/call.json");
+        Assert.assertEquals("{\"CallId\":\"1\"}", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        Assert.assertEquals(1, sink.getThroughput().getObjects());
+        Assert.assertEquals(14, sink.getThroughput().getBytes());
+    }
+
+    @Test
+    public void testLocalFileSinkRejectsKeysOutsideOfItsDirectory() throws IOException {
+        LocalFileSink sink = new LocalFileSink(folder.newFolder("out").toPath());
+
+        CompletableFuture<Void> written = sink.write("../escape.json", content("{}"), "application/json", null);
+
+        Assert.assertTrue(written.isCompletedExceptionally());
+        Assert.assertEquals(1, sink.getThroughput().getFailures());
+        Assert.assertFalse(Files.exists(folder.getRoot().toPath().resolve("escape.json")));
+    }
+
+    @Test
+    public void testMultiSinkWritesEverySink() throws IOException {
+        InMemoryObjectStore store = new InMemoryObjectStore(10);
+        InMemoryOutputSink memory = new InMemoryOutputSink();
+        Path directory = folder.newFolder("out").toPath();
+        MultiSink sink = new MultiSink(Arrays.asList(new S3OutputSink(store, "target"), memory,
+                new LocalFileSink(directory)));
+
+        sink.write("call.json", content("{\"CallId\":\"1\"}"), "application/json", null).join();
+
+        Assert.assertEquals("{\"CallId\":\"1\"}", new String(store.getObject("target", "call.json"), StandardCharsets.UTF_8));
+        Assert.assertEquals("{\"CallId\":\"1\"}", new String(memory.getObject("call.json"), StandardCharsets.UTF_8));
+        Assert.assertTrue(Files.exists(directory.resolve("call.json")));
+        Assert.assertEquals(1, sink.getThroughput().getObjects());
+        for (OutputSink each : sink.getSinks()) {
+            Assert.assertEquals(each.getName(), 14, each.getThroughput().getBytes());
+        }
+        Assert.assertTrue(sink.getThroughput().getBusyNanos() >= 10000000);
+        Assert.assertTrue(sink.toString(), sink.toString().contains("\"objects\":1"));
+    }
+
+    @Test
+    public void testMultiSinkFailsIfAnySinkFails() throws IOException {
+        InMemoryOutputSink memory = new InMemoryOutputSink();
+        MultiSink sink = new MultiSink(Arrays.asList(memory, new LocalFileSink(folder.newFolder("out").toPath())));
+
+        try {
+            sink.write("../escape.json", content("{}"), "application/json", null).join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        Assert.assertEquals(1, sink.getThroughput().getFailures());
+        Assert.assertEquals(0, sink.getThroughput().getObjects());
+        Assert.assertNotNull(memory.getObject("../escape.json"));
+    }
+
+    @Test
+    public void testThroughputIsTakenOverBusyTime() {
+        SinkThroughput throughput = new SinkThroughput();
+        Assert.assertEquals(0, throughput.getBytesPerSecond(), 0);
+
+        throughput.started();
+        throughput.started();
+        throughput.completed(1000, true);
+        throughput.completed(3000, true);
+
+        Assert.assertEquals(2, throughput.getObjects());
+        Assert.assertEquals(4000, throughput.getBytes());
+        Assert.assertTrue(throughput.getBytesPerSecond() > 0);
+        long busy = throughput.getBusyNanos();
+        Assert.assertEquals(busy, throughput.getBusyNanos());
+    }
+}
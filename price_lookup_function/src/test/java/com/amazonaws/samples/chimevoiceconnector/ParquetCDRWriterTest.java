@@ -0,0 +1,105 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.apache.parquet.column.Encoding;
+import org.apache.parquet.column.page.PageReadStore;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.convert.GroupRecordConverter;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.ColumnIOFactory;
+import org.apache.parquet.io.DelegatingSeekableInputStream;
+import org.apache.parquet.io.InputFile;
+import org.apache.parquet.io.RecordReader;
+import org.apache.parquet.io.SeekableInputStream;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the Parquet output of enriched CDRs.
+ */
+public class ParquetCDRWriterTest {
+
+    @Test
+    public void testRowsAreWrittenWithTypedSchema() throws IOException {
+        JSONObject cdr = new JSONObject(new String(Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json")),
+                StandardCharsets.UTF_8));
+        cdr.put("PricePerUnitUSD", "0.1920000000");
+        cdr.put("CostUSD", CostEngine.toDecimal(19200));
+
+        OutputBuffer buffer = new OutputBuffer(1024);
+        ParquetCDRWriter writer = new ParquetCDRWriter(buffer, CompressionCodecName.GZIP);
+        for (int i = 0; i < 100; i++) {
+            writer.write(cdr);
+        }
+        writer.close();
+
+        try (ParquetFileReader reader = ParquetFileReader.open(new BufferInputFile(buffer.toByteArray()))) {
+            Assert.assertEquals(100, reader.getRecordCount());
+            for (ColumnChunkMetaData column : reader.getFooter().getBlocks().get(0).getColumns()) {
+                Assert.assertEquals(CompressionCodecName.GZIP, column.getCodec());
+                if (column.getPath().toDotString().equals("UsageType")) {
+                    Assert.assertTrue(column.getEncodings().contains(Encoding.PLAIN_DICTIONARY));
+                }
+            }
+
+            PageReadStore rowGroup = reader.readNextRowGroup();
+            RecordReader<Group> records = new ColumnIOFactory().getColumnIO(ParquetCDRWriter.SCHEMA)
+                    .getRecordReader(rowGroup, new GroupRecordConverter(ParquetCDRWriter.SCHEMA));
+            Group row = records.read();
+            Assert.assertEquals("USE1-US-US-outbound-minutes", row.getString("UsageType", 0));
+            Assert.assertEquals(6L, row.getLong("BillableDurationSeconds", 0));
+            Assert.assertEquals(1920000000L, row.getLong("PricePerUnitUSD", 0));
+            Assert.assertEquals(19200L, row.getLong("CostUSD", 0));
+            Assert.assertEquals("5600", row.getString("SipAuthUser", 0));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testCostOutOfRangeIsRejected() throws IOException {
+        try (ParquetCDRWriter writer = new ParquetCDRWriter(new OutputBuffer(1024))) {
+            writer.write(new JSONObject().put("CostUSD", "92233720368547.758080"));
+        }
+    }
+
+    /**
+     * Reads a Parquet file from memory.
+     */
+    private static final class BufferInputFile implements InputFile {
+
+        private final byte[] content;
+
+        BufferInputFile(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public long getLength() {
+            return content.length;
+        }
+
+        @Override
+        public SeekableInputStream newStream() {
+            final ByteArrayInputStream stream = new ByteArrayInputStream(content);
+            return new DelegatingSeekableInputStream(stream) {
+                @Override
+                public long getPos() {
+                    return content.length - stream.available();
+                }
+
+                @Override
+                public void seek(long newPos) {
+                    stream.reset();
+                    stream.skip(newPos);
+                }
+            };
+        }
+    }
+}
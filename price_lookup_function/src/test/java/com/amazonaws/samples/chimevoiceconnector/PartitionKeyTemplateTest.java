@@ -0,0 +1,88 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PartitionKeyTemplateTest {
+
+    private static final String HIVE_TEMPLATE = "connector={VoiceConnectorId}/date={StartTimeEpochSeconds:yyyy-MM-dd}"
+            + "/direction={Direction}/region={Region}";
+
+    private static byte[] sampleCDR() throws IOException {
+        return Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json"));
+    }
+
+    @Test
+    public void testHivePartitionsFromCDRFields() throws IOException {
+        PartitionKeyTemplate template = new PartitionKeyTemplate(HIVE_TEMPLATE);
+        JSONObject cdr = new JSONObject(new String(sampleCDR(), StandardCharsets.UTF_8));
+
+        Assert.assertEquals("connector=abcd112222223333334444/date=2019-08-10/direction=Outbound/region=us-east-1",
+                template.render(cdr));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("VoiceConnectorId", "StartTimeEpochSeconds", "Direction",
+                "Region")), template.getFields());
+    }
+
+    @Test
+    public void testScannedFieldsGiveTheSamePartition() throws IOException {
+        PartitionKeyTemplate template = new PartitionKeyTemplate(HIVE_TEMPLATE);
+        byte[] cdr = sampleCDR();
+        CDRFieldScanner scanner = new CDRFieldScanner();
+        Assert.assertTrue(scanner.scan(cdr, cdr.length));
+
+        Assert.assertTrue(CDRFieldScanner.FIELDS.containsAll(template.getFields()));
+        Assert.assertEquals(template.render(new JSONObject(new String(cdr, StandardCharsets.UTF_8))),
+                template.render(scanner::getField));
+    }
+
+    @Test
+    public void testDatePatternsMayAddDirectories() {
+        PartitionKeyTemplate template = new PartitionKeyTemplate("/enriched/{StartTimeEpochSeconds:yyyy/MM/dd/HH}/");
+
+        Assert.assertEquals("enriched/2020/09/21/15", template.render(new JSONObject().put("StartTimeEpochSeconds",
+                1600700400L)));
+        Assert.assertEquals("enriched/2020/09/21/15", template.render(new JSONObject().put("StartTimeEpochSeconds",
+                "1600700400")));
+    }
+
+    @Test
+    public void testMissingAndUnsafeValues() {
+        PartitionKeyTemplate template = new PartitionKeyTemplate("connector={VoiceConnectorId}/{Region}/"
+                + "date={StartTimeEpochSeconds:yyyy-MM-dd}");
+
+        Assert.assertEquals("connector=unknown/unknown/date=unknown", template.render(new JSONObject()));
+        Assert.assertEquals("connector=a_b_c/_.x/date=unknown", template.render(new JSONObject()
+                .put("VoiceConnectorId", "a/b=c").put("Region", "..x").put("StartTimeEpochSeconds", "soon")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnclosedPlaceholderIsRejected() {
+        new PartitionKeyTemplate("connector={VoiceConnectorId");
+    }
+
+    @Test
+    public void testManifestGroupsObjectsByPartition() {
+        PartitionManifest manifest = new PartitionManifest();
+        manifest.add("connector=abcd/date=2020-09-21/cdr_1.json");
+        manifest.add("connector=abcd/date=2020-09-21/cdr_2.json");
+        manifest.add("connector=efgh/date=2020-09-21/cdr_3.json");
+
+        JSONObject json = manifest.toJson("request-1");
+
+        Assert.assertEquals("request-1", json.getString("requestId"));
+        Assert.assertEquals(2, json.getJSONArray("partitions").length());
+        JSONObject first = json.getJSONArray("partitions").getJSONObject(0);
+        Assert.assertEquals("connector=abcd/date=2020-09-21", first.getString("location"));
+        Assert.assertEquals("abcd", first.getJSONObject("values").getString("connector"));
+        Assert.assertEquals("2020-09-21", first.getJSONObject("values").getString("date"));
+        Assert.assertEquals(2, first.getJSONArray("objects").length());
+    }
+}
@@ -0,0 +1,168 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the usage type price cache.
+ */
+public class PriceCacheTest {
+
+    private static final String USAGE_TYPE = "USW2-US-US-outbound-minutes";
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<Runnable> pendingRefreshes = new ArrayList<Runnable>();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private PriceCache cache;
+
+    @Before
+    public void setUp() {
+        // ttl of 100ms, refreshed ahead after 80ms
+        cache = new PriceCache(2, 100, 80, pendingRefreshes::add, now::get);
+    }
+
+    private PriceHistory load(String usageType) {
+        loads.incrementAndGet();
+        return price("0.00" + loads.get());
+    }
+
+    private static PriceHistory price(String pricePerUnit) {
+        return PriceHistory.of(PriceHistory.UNDATED, PriceTierTable.compile(Collections.singletonList(
+                new PriceDimension("minutes", BigDecimal.ZERO, null, new BigDecimal(pricePerUnit)))));
+    }
+
+    private static BigDecimal priceOf(PriceHistory history) {
+        return history.latest().getFirstTier().getPricePerUnitUSD();
+    }
+
+    @Test
+    public void testHitAfterMiss() {
+        Assert.assertEquals(new BigDecimal("0.001"), priceOf(cache.get(USAGE_TYPE, this::load)));
+        Assert.assertEquals(new BigDecimal("0.001"), priceOf(cache.get(USAGE_TYPE, this::load)));
+
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testRefreshAheadServesCurrentValue() {
+        cache.get(USAGE_TYPE, this::load);
+        now.set(90);
+
+        Assert.assertEquals(new BigDecimal("0.001"), priceOf(cache.get(USAGE_TYPE, this::load)));
+        // only one refresh is scheduled while one is pending
+        cache.get(USAGE_TYPE, this::load);
+        Assert.assertEquals(1, pendingRefreshes.size());
+
+        pendingRefreshes.get(0).run();
+        Assert.assertEquals(new BigDecimal("0.002"), priceOf(cache.get(USAGE_TYPE, this::load)));
+        Assert.assertEquals(1, cache.getRefreshCount());
+    }
+
+    @Test
+    public void testLoadIsSkippedWhenAnotherLoadCompletedFirst() {
+        cache.get(USAGE_TYPE, this::load);
+        now.set(90);
+        cache.get(USAGE_TYPE, this::load);
+        now.set(100);
+        // the expired entry is reloaded before the scheduled refresh runs
+        cache.get(USAGE_TYPE, this::load);
+
+        pendingRefreshes.get(0).run();
+        Assert.assertEquals(2, loads.get());
+        Assert.assertEquals(new BigDecimal("0.002"), priceOf(cache.get(USAGE_TYPE, this::load)));
+    }
+
+    @Test
+    public void testExpiredEntryIsReloaded() {
+        cache.get(USAGE_TYPE, this::load);
+        now.set(100);
+
+        Assert.assertEquals(new BigDecimal("0.002"), priceOf(cache.get(USAGE_TYPE, this::load)));
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        cache.get("A", this::load);
+        cache.get("B", this::load);
+        cache.get("A", this::load);
+        cache.get("C", this::load);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        cache.get("A", this::load);
+        Assert.assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testMissingPriceIsNotCached() {
+        Assert.assertNull(cache.get(USAGE_TYPE, usageType -> null));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PriceCache.PriceLoader slowLoader = usageType -> {
+            loading.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return load(usageType);
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<PriceHistory>> results = new ArrayList<Future<PriceHistory>>();
+            results.add(executor.submit(() -> cache.get(USAGE_TYPE, slowLoader)));
+            loading.await();
+            for (int i = 0; i < 7; i++) {
+                results.add(executor.submit(() -> cache.get(USAGE_TYPE, slowLoader)));
+            }
+            // the other misses wait for the load in flight
+            while (cache.getCoalescedCount() < 7) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            for (Future<PriceHistory> result : results) {
+                Assert.assertEquals(new BigDecimal("0.001"), priceOf(result.get()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(8, cache.getMissCount());
+    }
+
+    @Test
+    public void testFailedLoadIsNotShared() {
+        try {
+            cache.get(USAGE_TYPE, usageType -> {
+                throw new IllegalStateException("throttled");
+            });
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("throttled", e.getMessage());
+        }
+        Assert.assertEquals(new BigDecimal("0.001"), priceOf(cache.get(USAGE_TYPE, this::load)));
+    }
+}
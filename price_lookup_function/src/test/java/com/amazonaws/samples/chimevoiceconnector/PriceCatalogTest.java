@@ -0,0 +1,101 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+
+/**
+ * Tests for the prefetched price catalog.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PriceCatalogTest {
+
+    @Mock
+    private AWSPricing pricingClient;
+
+    @Captor
+    private ArgumentCaptor<GetProductsRequest> getProductsRequest;
+
+    private String priceList;
+
+    @Before
+    public void setUp() throws IOException {
+        priceList = new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8);
+    }
+
+    private static BigDecimal latestPrice(PriceCatalog catalog, String usageType) {
+        return catalog.getHistory(usageType).latest().getFirstTier().getPricePerUnitUSD();
+    }
+
+    @Test
+    public void testLoadFollowsNextToken() {
+        String otherPriceList = priceList.replace("USE1-US-US-outbound-minutes", "USE1-US-DE-outbound-minutes")
+                .replace("0.1920000000", "0.0240000000");
+        when(pricingClient.getProducts(getProductsRequest.capture()))
+                .thenReturn(new GetProductsResult().withPriceList(Collections.singletonList(priceList))
+                        .withNextToken("page-2"))
+                .thenReturn(new GetProductsResult().withPriceList(Arrays.asList(otherPriceList)));
+
+        PriceCatalog catalog = new PriceCatalog(pricingClient, 60000, Runnable::run);
+        Assert.assertEquals(2, catalog.load());
+
+        List<GetProductsRequest> requests = getProductsRequest.getAllValues();
+        Assert.assertNull(requests.get(0).getNextToken());
+        Assert.assertEquals("page-2", requests.get(1).getNextToken());
+        Assert.assertEquals("AmazonChimeVoiceConnector", requests.get(1).getServiceCode());
+
+        Assert.assertEquals(new BigDecimal("0.1920000000"), latestPrice(catalog, "USE1-US-US-outbound-minutes"));
+        Assert.assertEquals(new BigDecimal("0.0240000000"), latestPrice(catalog, "USE1-US-DE-outbound-minutes"));
+        Assert.assertNull(catalog.getHistory("USE1-US-FR-outbound-minutes"));
+    }
+
+    @Test
+    public void testRefreshIfStaleLoadsOnce() {
+        when(pricingClient.getProducts(any(GetProductsRequest.class)))
+                .thenReturn(new GetProductsResult().withPriceList(Collections.singletonList(priceList)));
+
+        PriceCatalog catalog = new PriceCatalog(pricingClient, 60000, Runnable::run);
+        catalog.refreshIfStale(System.err::println);
+        catalog.refreshIfStale(System.err::println);
+
+        Assert.assertTrue(catalog.isLoaded());
+        verify(pricingClient, times(1)).getProducts(any(GetProductsRequest.class));
+    }
+
+    @Test
+    public void testParsePriceListEntry() {
+        List<PriceListEntry> entries = PriceListEntry.parseTerms(priceList);
+        Assert.assertEquals(1, entries.size());
+        PriceListEntry entry = entries.get(0);
+
+        Assert.assertEquals("USE1-US-US-outbound-minutes", entry.getUsageType());
+        Assert.assertEquals("2019-08-01T00:00:00Z", entry.getEffectiveDate());
+        Assert.assertEquals(1, entry.getDimensions().size());
+        Assert.assertNull(entry.getDimensions().get(0).getEndRange());
+        Assert.assertEquals("minutes", entry.getDimensions().get(0).getUnit());
+    }
+}
@@ -0,0 +1,114 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+
+/**
+ * Tests for the price versions matched to the start of the call.
+ */
+public class PriceHistoryTest {
+
+    private static final String USAGE_TYPE = "USE1-US-US-outbound-minutes";
+    private static final long SEPTEMBER_2020 = PriceHistory.parseEffectiveDate("2020-09-01T00:00:00Z");
+    // the start of the sample CDR, 2019-08-10T01:13:45Z
+    private static final long CALL_2019 = 1565399625L;
+
+    private String priceList;
+    private String oldPriceList;
+
+    @Before
+    public void setUp() throws IOException {
+        priceList = new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8);
+        // the sample price became effective before the sample call, here it is the price that replaced an older one
+        priceList = priceList.replace("2019-08-01T00:00:00Z", "2020-09-01T00:00:00Z");
+        oldPriceList = priceList.replace("2020-09-01T00:00:00Z", "2019-01-01T00:00:00Z")
+                .replace("0.1920000000", "0.0960000000");
+    }
+
+    private static PriceTierTable price(String pricePerUnit) {
+        return PriceTierTable.compile(Collections.singletonList(
+                new PriceDimension("minutes", BigDecimal.ZERO, null, new BigDecimal(pricePerUnit))));
+    }
+
+    private static String priceOf(PriceTierTable tiers) {
+        return tiers.getFirstTier().getPricePerUnitText();
+    }
+
+    @Test
+    public void testVersionInForceIsFoundAtTheBoundaries() {
+        PriceHistory history = PriceHistory.of(2000, price("0.02")).with(1000, price("0.01")).with(3000, price("0.03"));
+
+        Assert.assertEquals(3, history.size());
+        Assert.assertNull(history.at(999));
+        Assert.assertEquals("0.01", priceOf(history.at(1000)));
+        Assert.assertEquals("0.01", priceOf(history.at(1999)));
+        Assert.assertEquals("0.02", priceOf(history.at(2000)));
+        Assert.assertEquals("0.03", priceOf(history.at(Long.MAX_VALUE)));
+        Assert.assertEquals("0.03", priceOf(history.latest()));
+        Assert.assertNull(PriceHistory.EMPTY.at(1000));
+        Assert.assertEquals(1000, history.firstEffective());
+    }
+
+    @Test
+    public void testSameEffectiveDateIsReplaced() {
+        PriceHistory history = PriceHistory.of(1000, price("0.01"))
+                .merge(PriceHistory.of(1000, price("0.02")).with(PriceHistory.UNDATED, price("0.005")));
+
+        Assert.assertEquals(2, history.size());
+        Assert.assertEquals("0.005", priceOf(history.at(999)));
+        Assert.assertEquals("0.02", priceOf(history.at(1000)));
+        Assert.assertEquals(PriceHistory.UNDATED, PriceHistory.parseEffectiveDate("not a date"));
+    }
+
+    @Test
+    public void testSnapshotsInBothFormats() throws IOException {
+        PriceHistoryIndex index = new PriceHistoryIndex();
+        String getProductsOutput = new JSONObject()
+                .put("PriceList", new JSONArray().put(oldPriceList)).put("FormatVersion", "aws_v1").toString(2);
+
+        Assert.assertEquals(1, index.addSnapshot(new ByteArrayInputStream(getProductsOutput.getBytes(StandardCharsets.UTF_8))));
+        Assert.assertEquals(1, index.addSnapshot(new ByteArrayInputStream((priceList + "\n").getBytes(StandardCharsets.UTF_8))));
+
+        PriceHistory history = index.get(USAGE_TYPE);
+        Assert.assertEquals(2, history.size());
+        Assert.assertEquals("0.0960000000", priceOf(history.at(CALL_2019)));
+        Assert.assertEquals("0.1920000000", priceOf(history.at(SEPTEMBER_2020)));
+        Assert.assertTrue(index.get("unknown").isEmpty());
+    }
+
+    @Test
+    public void testCatalogMergesSnapshots() throws IOException {
+        AWSPricing pricingClient = mock(AWSPricing.class);
+        when(pricingClient.getProducts(any(GetProductsRequest.class)))
+                .thenReturn(new GetProductsResult().withPriceList(Collections.singletonList(priceList)));
+        PriceHistoryIndex snapshots = new PriceHistoryIndex();
+        snapshots.addPriceList(oldPriceList);
+
+        PriceCatalog catalog = new PriceCatalog(pricingClient, 60000, Runnable::run);
+        catalog.setSnapshots(snapshots);
+        Assert.assertEquals(1, catalog.load());
+
+        Assert.assertEquals("0.0960000000", priceOf(catalog.getHistory(USAGE_TYPE).at(CALL_2019)));
+        Assert.assertEquals("0.1920000000", priceOf(catalog.getHistory(USAGE_TYPE).latest()));
+    }
+}
@@ -0,0 +1,85 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the compiled price tiers and the monthly usage that selects them.
+ */
+public class PriceTierTableTest {
+
+    private static final String CONNECTOR = "abcdef1ghij2klmno3pqr4";
+    private static final String USAGE_TYPE = "USW2-US-US-outbound-minutes";
+    // 2019-08-10T01:13:45Z
+    private static final long AUGUST = 1565399625L;
+    private static final long SEPTEMBER = AUGUST + 31L * 86400;
+    private static final long NOVEMBER = SEPTEMBER + 61L * 86400;
+
+    private static PriceDimension tier(String beginRange, String endRange, String pricePerUnit) {
+        return new PriceDimension("minutes", new BigDecimal(beginRange),
+                endRange == null ? null : new BigDecimal(endRange), new BigDecimal(pricePerUnit));
+    }
+
+    // the first 1000 minutes of the month at 0.01, the rest at 0.005, listed out of order
+    private static PriceTierTable volumeTiers() {
+        return PriceTierTable.compile(Arrays.asList(tier("1000", null, "0.005"), tier("0", "1000", "0.01")));
+    }
+
+    @Test
+    public void testTierIsFoundAtTheBoundaries() {
+        PriceTierTable table = volumeTiers();
+
+        Assert.assertTrue(table.isTiered());
+        Assert.assertEquals(0, table.tierIndex(0));
+        Assert.assertEquals(0, table.tierIndex(59999));
+        Assert.assertEquals(1, table.tierIndex(60000));
+        Assert.assertEquals(1, table.tierIndex(Long.MAX_VALUE));
+        Assert.assertEquals(new BigDecimal("0.01"), table.getFirstTier().getPricePerUnitUSD());
+    }
+
+    @Test
+    public void testCallWithinOneTier() {
+        PriceTierTable table = volumeTiers();
+
+        Assert.assertEquals(10000, table.costMicros(0, 60));
+        Assert.assertEquals(5000, table.costMicros(60000, 60));
+    }
+
+    @Test
+    public void testCallCrossingATierBoundaryIsSplit() {
+        // 60 seconds at 0.01 and 60 seconds at 0.005 per minute
+        Assert.assertEquals(15000, volumeTiers().costMicros(59940, 120));
+    }
+
+    @Test
+    public void testSingleDimensionMatchesCostEngine() {
+        PriceTierTable table = PriceTierTable.compile(Collections.singletonList(tier("0", null, "0.0048")));
+
+        Assert.assertFalse(table.isTiered());
+        Assert.assertEquals(CostEngine.costMicros(245, table.getFirstTier().getFixedPricePerUnit()),
+                table.costMicros(1000000, 245));
+        Assert.assertNull(PriceTierTable.compile(Collections.<PriceDimension>emptyList()));
+    }
+
+    @Test
+    public void testMonthlyUsageRollsOver() {
+        MonthlyUsage usage = new MonthlyUsage();
+
+        Assert.assertEquals(0, usage.add(CONNECTOR, USAGE_TYPE, AUGUST, 60));
+        Assert.assertEquals(60, usage.add(CONNECTOR, USAGE_TYPE, AUGUST + 3600, 30));
+        Assert.assertEquals(0, usage.add("other", USAGE_TYPE, AUGUST, 10));
+
+        // a new month starts from zero, the earlier ones are kept for the CDRs of the next Voice Connector
+        Assert.assertEquals(0, usage.add(CONNECTOR, USAGE_TYPE, SEPTEMBER, 45));
+        Assert.assertEquals(90, usage.get(CONNECTOR, USAGE_TYPE, AUGUST));
+
+        usage.add(CONNECTOR, USAGE_TYPE, NOVEMBER, 1);
+        Assert.assertEquals(90, usage.get(CONNECTOR, USAGE_TYPE, AUGUST));
+        Assert.assertEquals(10, usage.add("other", USAGE_TYPE, AUGUST + 60, 5));
+        Assert.assertEquals(1, usage.get(CONNECTOR, USAGE_TYPE, NOVEMBER));
+    }
+}
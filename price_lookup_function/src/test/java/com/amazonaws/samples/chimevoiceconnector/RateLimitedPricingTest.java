@@ -0,0 +1,121 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+
+/**
+ * Tests for the rate limited Pricing client and its token bucket.
+ */
+public class RateLimitedPricingTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final List<Long> sleeps = new ArrayList<Long>();
+    private final AWSPricing pricing = mock(AWSPricing.class);
+
+    private RateLimitedPricing client(TokenBucket bucket, int maxAttempts) {
+        return new RateLimitedPricing(pricing, bucket, maxAttempts, nanos -> {
+            sleeps.add(nanos);
+            now.addAndGet(nanos);
+        });
+    }
+
+    private static AmazonServiceException error(String code, int status) {
+        AmazonServiceException e = new AmazonServiceException(code);
+        e.setErrorCode(code);
+        e.setStatusCode(status);
+        return e;
+    }
+
+    @Test
+    public void testBucketSpacesRequestsBeyondTheBurst() {
+        TokenBucket bucket = new TokenBucket(10, 2, now::get);
+
+        Assert.assertEquals(0, bucket.reserve());
+        Assert.assertEquals(0, bucket.reserve());
+        // 10 per second, one token every 100ms
+        Assert.assertEquals(100000000L, bucket.reserve());
+        Assert.assertEquals(200000000L, bucket.reserve());
+
+        now.set(1000000000L);
+        Assert.assertEquals(0, bucket.reserve());
+    }
+
+    @Test
+    public void testRateAdaptsToThrottling() {
+        TokenBucket bucket = new TokenBucket(10, 1, now::get);
+
+        bucket.onThrottled();
+        bucket.onThrottled();
+        Assert.assertEquals(2.5, bucket.getRate(), 0.0001);
+        for (int i = 0; i < 100; i++) {
+            bucket.onThrottled();
+        }
+        Assert.assertEquals(1, bucket.getRate(), 0.0001);
+        for (int i = 0; i < 100; i++) {
+            bucket.onSuccess();
+        }
+        Assert.assertEquals(10, bucket.getRate(), 0.0001);
+    }
+
+    @Test
+    public void testThrottledRequestIsRetriedWithBackoff() {
+        GetProductsResult result = new GetProductsResult();
+        when(pricing.getProducts(any(GetProductsRequest.class)))
+                .thenThrow(error("ThrottlingException", 400))
+                .thenThrow(error("InternalError", 500))
+                .thenReturn(result);
+        RateLimitedPricing client = client(new TokenBucket(1000, 1000, now::get), 5);
+
+        Assert.assertSame(result, client.getProducts(new GetProductsRequest()));
+
+        verify(pricing, times(3)).getProducts(any(GetProductsRequest.class));
+        Assert.assertEquals(1, client.getThrottledCount());
+        for (long sleep : sleeps) {
+            Assert.assertTrue(sleep <= 5000000000L);
+        }
+    }
+
+    @Test
+    public void testClientErrorIsNotRetried() {
+        when(pricing.getProducts(any(GetProductsRequest.class))).thenThrow(error("InvalidParameterException", 400));
+        RateLimitedPricing client = client(new TokenBucket(1000, 1000, now::get), 5);
+
+        try {
+            client.getProducts(new GetProductsRequest());
+            Assert.fail();
+        } catch (AmazonServiceException e) {
+            Assert.assertEquals("InvalidParameterException", e.getErrorCode());
+        }
+        verify(pricing, times(1)).getProducts(any(GetProductsRequest.class));
+    }
+
+    @Test
+    public void testRetriesAreBounded() {
+        when(pricing.getProducts(any(GetProductsRequest.class))).thenThrow(error("ThrottlingException", 400));
+        RateLimitedPricing client = client(new TokenBucket(1000, 1000, now::get), 3);
+
+        try {
+            client.getProducts(new GetProductsRequest());
+            Assert.fail();
+        } catch (AmazonServiceException e) {
+            Assert.assertEquals("ThrottlingException", e.getErrorCode());
+        }
+        verify(pricing, times(3)).getProducts(any(GetProductsRequest.class));
+        Assert.assertEquals(3, client.getThrottledCount());
+    }
+}
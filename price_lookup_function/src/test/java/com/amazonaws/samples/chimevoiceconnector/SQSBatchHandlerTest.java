@@ -0,0 +1,129 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.lenient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+import com.amazonaws.services.pricing.AWSPricing;
+import com.amazonaws.services.pricing.model.GetProductsRequest;
+import com.amazonaws.services.pricing.model.GetProductsResult;
+import com.amazonaws.services.s3.AmazonS3;
+
+/**
+ * Tests for the SQS batch handler and its partial batch failures.
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SQSBatchHandlerTest {
+
+    private static final String BUCKET = "chimevoiceconnector-reports";
+    private static final String CDR_KEY = "Amazon-Chime-Voice-Connector-CDRs/json/abcd112222223333334444/2020/09/21/cdr_sample_1.json";
+
+    @Mock
+    private AmazonS3 s3Client;
+    @Mock
+    private AWSPricing pricingClient;
+
+    private InMemoryObjectStore store;
+    private LambdaFunctionHandler handler;
+    private byte[] event;
+
+    @Before
+    public void setUp() throws IOException {
+        String priceList = new String(Files.readAllBytes(Paths.get("src/test/resources/price_list_sample.json")),
+                StandardCharsets.UTF_8);
+        lenient().when(pricingClient.getProducts(any(GetProductsRequest.class)))
+                .thenReturn(new GetProductsResult().withPriceList(Collections.singletonList(priceList)));
+
+        store = new InMemoryObjectStore(0);
+        store.putObject(BUCKET, CDR_KEY, Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json")));
+        handler = new LambdaFunctionHandler(s3Client, pricingClient);
+        handler.setObjectStore(store);
+        event = Files.readAllBytes(Paths.get("src/test/resources/sqs-event.batch.json"));
+    }
+
+    private JSONObject invoke(SQSBatchHandler sqsHandler) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        sqsHandler.handleRequest(new ByteArrayInputStream(event), output, new TestContext());
+        return new JSONObject(new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testOnlyFailedMessagesAreReported() throws IOException {
+        JSONObject response = invoke(new SQSBatchHandler(handler));
+
+        // the missing object and the malformed message, not the enriched object and the S3 test event
+        JSONArray failures = response.getJSONArray("batchItemFailures");
+        Assert.assertEquals(2, failures.length());
+        Assert.assertEquals("059f36b4-87a3-44ab-83d2-661975455712", failures.getJSONObject(0).getString("itemIdentifier"));
+        Assert.assertEquals("059f36b4-87a3-44ab-83d2-661975455714", failures.getJSONObject(1).getString("itemIdentifier"));
+        Assert.assertNotNull(store.getObject(null, CDR_KEY));
+    }
+
+    @Test
+    public void testClaimsOfFailedMessagesAreReleased() throws IOException {
+        DuplicateFilter filter = new DuplicateFilter(100, null);
+        handler.setDuplicateFilter(filter);
+        store.putObject(BUCKET, CDR_KEY.replace("cdr_sample_1", "missing"), "{\"UsageType\":".getBytes(StandardCharsets.UTF_8));
+
+        invoke(new SQSBatchHandler(handler));
+
+        // the delivered message keeps its CDR, the truncated object failed and is retried
+        Assert.assertTrue(filter.contains("879eee6e-eec7-4167-b634-a2519506d142"));
+        Assert.assertEquals(1, filter.size());
+    }
+
+    @Test
+    public void testBatchFailureRedeliversItsMessages() throws IOException {
+        handler.setBatchWriter(new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, (key, content, contentType) -> false));
+        DuplicateFilter filter = new DuplicateFilter(100, null);
+        handler.setDuplicateFilter(filter);
+
+        JSONObject response = invoke(new SQSBatchHandler(handler));
+
+        // the enriched object is in the failed batch, the S3 test event has no CDRs and is not delivered again
+        Assert.assertEquals(3, response.getJSONArray("batchItemFailures").length());
+        Assert.assertEquals(0, filter.size());
+    }
+
+    @Test
+    public void testBatchFailureOnlyRedeliversTheMessagesOfItsCDRs() throws IOException {
+        String cdr = new String(Files.readAllBytes(Paths.get("src/test/resources/cdr_sample.json")), StandardCharsets.UTF_8);
+        store.putObject(BUCKET, CDR_KEY.replace("cdr_sample_1", "missing"), cdr.replace("abcd112222223333334444",
+                "efgh112222223333334444").replace("879eee6e", "979eee6e").getBytes(StandardCharsets.UTF_8));
+        List<String> uploaded = new ArrayList<String>();
+        handler.setBatchWriter(new CDRBatchWriter(OutputFormat.JSON, "batches", 3600, 100, 1024 * 1024,
+                60000, (key, content, contentType) -> key.contains("abcd112222223333334444") && uploaded.add(key)));
+        DuplicateFilter filter = new DuplicateFilter(100, null);
+        handler.setDuplicateFilter(filter);
+
+        JSONObject response = invoke(new SQSBatchHandler(handler));
+
+        // the batch of the second Voice Connector failed, the first message is delivered
+        JSONArray failures = response.getJSONArray("batchItemFailures");
+        Assert.assertEquals(2, failures.length());
+        Assert.assertEquals("059f36b4-87a3-44ab-83d2-661975455712", failures.getJSONObject(0).getString("itemIdentifier"));
+        Assert.assertEquals("059f36b4-87a3-44ab-83d2-661975455714", failures.getJSONObject(1).getString("itemIdentifier"));
+        Assert.assertEquals(1, uploaded.size());
+        Assert.assertTrue(filter.contains("879eee6e-eec7-4167-b634-a2519506d142"));
+        Assert.assertFalse(filter.contains("979eee6e-eec7-4167-b634-a2519506d142"));
+    }
+}
@@ -0,0 +1,30 @@
+package com.amazonaws.samples.chimevoiceconnector;
+
+import java.io.IOException;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the cold start priming and metrics.
+ */
+public class StartupPrimingTest {
+
+    @Test
+    public void testEveryFormatIsPrimed() throws IOException {
+        for (OutputFormat format : OutputFormat.values()) {
+            Assert.assertTrue(format.name(), StartupPriming.prime(format) > 0);
+        }
+    }
+
+    @Test
+    public void testStartupIsReported() {
+        StartupMetrics.initialized();
+        JSONObject startup = new JSONObject(StartupMetrics.toJson(42));
+
+        Assert.assertEquals("cold", startup.getString("start"));
+        Assert.assertTrue(startup.getLong("initMs") >= 0);
+        Assert.assertEquals(42, startup.getLong("timeToFirstEnrichedCdrMs"));
+    }
+}